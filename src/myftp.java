@@ -1,16 +1,40 @@
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
 
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class myftp {
 
@@ -21,24 +45,84 @@ public class myftp {
 
     private final Object fileSystemMutex = new Object();
 
+    // Segmented gets in progress by the command id of their probe, see SegmentedGet
+    private final Map<Integer, SegmentedGet> segmentedGets = new HashMap<>();
+
+    // Upper bound for get -n, every connection is a separate client on the server
+    private static final int SEGMENT_CONNECTIONS_MAX = 16;
+
+    // Default ranges are never smaller than this, small files are not worth extra connections
+    private static final long SEGMENT_SIZE_MIN = 1024 * 1024;
+
+    // Requests mget and mput send ahead of their replies, by default and at most (-p)
+    private static final int PIPELINE_DEPTH = 8;
+    private static final int PIPELINE_DEPTH_MAX = 64;
+
+    // Background command connections, see ConnectionPool
+    private static final int POOL_SIZE = 8;
+    private static final long POOL_IDLE_TIMEOUT = 30 * 1000;
+
     private BufferedReader commandInput;
+    private final PrintStream console;
     private Worker worker;
+    private ConnectionPool pool;
+
+    // Background commands run as streams of one multiplexed connection when the server has "mux"
+    private final Object muxMutex = new Object();
+    private myftpmux mux;
+    private Worker muxWorker;
+    private boolean muxUnsupported;
+
+    // Highest protocol version offered in $hello, lowered only by tools that measure older versions
+    private int offeredVersion = myftpprotocol.VERSION;
 
     public myftp(String address, int nport, int tport) {
 
-        commandInput = new BufferedReader(new InputStreamReader(System.in));
+        this(address, nport, tport, new BufferedReader(new InputStreamReader(System.in)), System.out);
+        ftp();
+    }
+
+    // Without commandInput the client is driven by command() from code, see connect()
+    private myftp(String address, int nport, int tport, BufferedReader commandInput, PrintStream console) {
+
+        this.commandInput = commandInput;
+        this.console = console;
 
         this.address = address;
         this.nport = nport;
         this.tport = tport;
+    }
 
-        ftp();
+    /* IN-PROCESS CLIENT:
+     *      A connected client for tools that run it in their own process (myftpbench, myftpload). Commands are
+     *      given to command() as if typed, and print to console what they would print at the prompt.
+     *      close() ends the session. Offering a version below myftpprotocol.VERSION makes the session speak
+     *      that older protocol, e.g. version 1 with its stop-and-wait put.
+     */
+    static myftp connect(String address, int nport, int tport) {
+        return connect(address, nport, tport, System.out);
+    }
+
+    static myftp connect(String address, int nport, int tport, PrintStream console) {
+        return connect(address, nport, tport, console, myftpprotocol.VERSION);
+    }
+
+    static myftp connect(String address, int nport, int tport, PrintStream console, int version) {
+        myftp client = new myftp(address, nport, tport, null, console);
+        client.offeredVersion = version;
+        client.open();
+        return client;
+    }
+
+    // The id the server gave this client's main connection
+    int clientId() {
+        return clientId;
     }
 
     private void ftp() {
 
         String command;
-        worker = new Worker();
+        open();
         worker.printPrompt();
 
         // Read until quit breaks loop
@@ -47,55 +131,14 @@ public class myftp {
 
                 // Get user input
                 command = commandInput.readLine();
-                String[] args = command.split(" ");
-
-                // If input ends with &, spawn a background thread to handle it
-                if (args.length > 1 && args[args.length-1].equals("&")) {
-                    Worker background = new Worker(command);
-                    background.start();
-                    if (!args[0].equals("get") && !args[0].equals("put") && !args[0].equals("quit"))
-                        worker.printPrompt();
-
-                // Else handle it normally
-                } else {
-
-                    switch (args[0].toLowerCase()) {
-                        case "get":
-                            worker.get(command, args);
-                            break;
-                        case "put":
-                            worker.put(command, args);
-                            break;
-                        case "cd":
-                            worker.cd(command, args);
-                            break;
-                        case "mkdir":
-                            worker.mkdir(command);
-                            break;
-                        case "terminate":
-                            worker.terminate(args);
-                            break;
-                        case "quit":
-                            worker.quit();
-                            break;
-                        case "":
-                            worker.printPrompt();
-                            break;
-                        default:
-                            worker.other(command);
-                            break;
-                    }
-                }
-
-                if (args[0].equalsIgnoreCase("quit")) break;
-                if (worker.isClosed()) break;
+                if (!command(command)) break;
 
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
 
-        // Close the connection
+        close();
         try {
             commandInput.close();
         } catch (IOException e) {
@@ -103,6 +146,76 @@ public class myftp {
         }
     }
 
+    private void open() {
+        worker = new Worker();
+        pool = new ConnectionPool();
+    }
+
+    // Runs one command line, returns false once the session has ended
+    boolean command(String command) throws IOException {
+        String[] args = command.split(" ");
+
+        // If input ends with &, spawn a background thread to handle it
+        if (args.length > 1 && args[args.length-1].equals("&")) {
+            String background = command.substring(0, command.lastIndexOf('&')).trim();
+            new Thread(() -> runInBackground(background)).start();
+            if (!args[0].equals("get") && !args[0].equals("put") && !args[0].equals("quit"))
+                worker.printPrompt();
+
+        // Else handle it normally
+        } else {
+
+            switch (args[0].toLowerCase()) {
+                case "get":
+                    worker.get(command, args);
+                    break;
+                case "put":
+                    worker.put(command, args);
+                    break;
+                case "mget":
+                    worker.mget(args);
+                    break;
+                case "mput":
+                    worker.mput(args);
+                    break;
+                case "ls":
+                    worker.ls(command, args);
+                    break;
+                case "cd":
+                    worker.cd(command, args);
+                    break;
+                case "mkdir":
+                    worker.mkdir(command);
+                    break;
+                case "terminate":
+                    worker.terminate(args);
+                    break;
+                case "quit":
+                    worker.quit();
+                    break;
+                case "":
+                    worker.printPrompt();
+                    break;
+                default:
+                    worker.other(command);
+                    break;
+            }
+        }
+
+        if (args[0].equalsIgnoreCase("quit")) return false;
+        return !worker.isClosed();
+    }
+
+    // Close the connection
+    void close() {
+        if (!worker.isClosed()) worker.quitQuietly();
+        pool.close();
+        synchronized (muxMutex) {
+            // Like busy pooled connections, streams still running end with the process
+            if (mux != null && mux.streamCount() == 0) mux.close();
+        }
+    }
+
     public static void main(String args[]) {
         int nport = 5000;
         int tport = 5001;
@@ -123,263 +236,1497 @@ public class myftp {
         System.exit(0);
     }
 
-    /* WORKER THREAD:
-     *      The worker class is the main driver for executing ftp commands.
+    // Runs a command typed with a trailing & on a stream of the multiplexed connection, or on a pooled one.
+    // It runs on the calling thread, the prompt starts one for it.
+    void runInBackground(String command) {
+        Worker stream = openStream();
+        if (stream != null) {
+            stream.getClientDir();
+            stream.execute(command);
+            stream.closeStream();
+            return;
+        }
+
+        Worker background = pool.borrow();
+        boolean reusable = background.execute(command);
+        pool.release(background, reusable);
+    }
+
+    /* MULTIPLEXED CONNECTION:
+     *      Opened on the first background command and again after it broke. Servers without "mux" are asked
+     *      once, their connection goes to the pool and later commands go straight to the pool.
+     *      The reader thread hands every frame to its stream, see myftpmux.
+     */
+    private Worker openStream() {
+        synchronized (muxMutex) {
+            if (muxUnsupported) return null;
+            if (mux == null || mux.isClosed()) {
+                Worker connection = new Worker(true);
+                if (!connection.features.contains(myftpprotocol.FEATURE_MUX)) {
+                    muxUnsupported = true;
+                    pool.release(connection, true);
+                    return null;
+                }
+                try {
+                    mux = connection.startMux();
+                } catch (IOException e) {
+                    connection.closeQuietly();
+                    return null;
+                }
+                muxWorker = connection;
+                myftpmux reading = mux;
+                Thread reader = new Thread(() -> reading.run(null));
+                reader.setDaemon(true);
+                reader.start();
+            }
+            try {
+                return new Worker(muxWorker, mux.open());
+            } catch (IOException e) {
+                return null;
+            }
+        }
+    }
+
+    /* CONNECTION POOL:
+     *      Background commands borrow an open connection instead of connecting, waiting for the handshake
+     *      and quitting every time. A borrowed connection is first moved to the parent client's current
+     *      directory ($gwd has no reply, so this costs no round trip). Up to POOL_SIZE idle connections
+     *      are kept, most recently used first, and a reaper closes those idle for POOL_IDLE_TIMEOUT.
+     */
+    private class ConnectionPool {
+
+        private final Object poolMutex = new Object();
+        private final Deque<Worker> idle = new ArrayDeque<>();
+        private boolean closed;
+        private boolean reaping;
+
+        Worker borrow() {
+            while (true) {
+                Worker pooled;
+                synchronized (poolMutex) {
+                    pooled = idle.pollFirst();
+                }
+                if (pooled == null) break;
+                if (pooled.isAlive()) {
+                    pooled.getClientDir();
+                    return pooled;
+                }
+                pooled.closeQuietly();
+            }
+
+            Worker fresh = new Worker(true);
+            fresh.getClientDir();
+            return fresh;
+        }
+
+        // Connections that failed, or that the pool has no room for, are closed
+        void release(Worker pooled, boolean reusable) {
+            synchronized (poolMutex) {
+                if (reusable && !closed && idle.size() < POOL_SIZE) {
+                    pooled.idleSince = System.currentTimeMillis();
+                    idle.addFirst(pooled);
+                    startReaper();
+                    return;
+                }
+            }
+            pooled.quitQuietly();
+        }
+
+        void close() {
+            List<Worker> open;
+            synchronized (poolMutex) {
+                closed = true;
+                open = new ArrayList<>(idle);
+                idle.clear();
+            }
+            for (Worker pooled : open) pooled.quitQuietly();
+        }
+
+        private void startReaper() {
+            if (reaping) return;
+            reaping = true;
+            Thread reaper = new Thread(this::reap);
+            reaper.setDaemon(true);
+            reaper.start();
+        }
+
+        // The least recently used connections sit at the end of the deque
+        private void reap() {
+            while (true) {
+                try {
+                    Thread.sleep(POOL_IDLE_TIMEOUT / 2);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                List<Worker> expired = new ArrayList<>();
+                long now = System.currentTimeMillis();
+                synchronized (poolMutex) {
+                    while (!idle.isEmpty() && now - idle.peekLast().idleSince >= POOL_IDLE_TIMEOUT) {
+                        expired.add(idle.pollLast());
+                    }
+                }
+                for (Worker pooled : expired) pooled.quitQuietly();
+            }
+        }
+    }
+
+    /* One file of an mget or mput, results are printed in request order once the batch is done */
+    private static final class BatchFile {
+
+        private final String name;
+        private long offset;
+        private boolean idRead;
+        private int code;
+        private long bytes;
+        private String error;
+
+        BatchFile(String name) {
+            this.name = name;
+        }
+
+        static BatchFile failed(String name, String error) {
+            BatchFile file = new BatchFile(name);
+            file.error = error;
+            return file;
+        }
+    }
+
+    /* The files of a get -r, written like the file of a plain get */
+    private class LocalSink implements myftparchive.Sink {
+
+        public void directory(Path dir) throws IOException {
+            Files.createDirectories(dir);
+        }
+
+        public OutputStream create(Path file) throws IOException {
+            return new BufferedOutputStream(Files.newOutputStream(partial(file)), myftparchive.DATA_SIZE);
+        }
+
+        public void commit(Path file, OutputStream out, FileTime modified) throws IOException {
+            out.close();
+            Files.setLastModifiedTime(partial(file), modified);
+            synchronized (fileSystemMutex) {
+                Files.move(partial(file), file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+
+        public void discard(Path file, OutputStream out) {
+            try {
+                if (out != null) out.close();
+            } catch (IOException e) {
+                // The partial file is deleted anyway
+            }
+            try {
+                Files.deleteIfExists(partial(file));
+            } catch (IOException e) {
+                // Nothing more to clean up
+            }
+        }
+
+        private Path partial(Path file) {
+            return file.resolveSibling(file.getFileName() + ".part");
+        }
+    }
+
+    /* SEGMENTED GET:
+     *      get -n only prints the command id of its probe, every range is a command of its own on a pooled
+     *      connection. "terminate <probe id>" stops the whole download: no more ranges are started and the
+     *      ranges in flight are terminated by their own command ids.
+     */
+    private static class SegmentedGet {
+
+        private boolean terminated;
+        private final Set<Integer> ranges = new HashSet<>();
+
+        synchronized void start(int commandId) {
+            ranges.add(commandId);
+        }
+
+        synchronized void finish(int commandId) {
+            ranges.remove(commandId);
+        }
+
+        synchronized boolean isTerminated() {
+            return terminated;
+        }
+
+        // The command ids of the ranges in flight, which are to be terminated as well
+        synchronized List<Integer> terminate() {
+            terminated = true;
+            return new ArrayList<>(ranges);
+        }
+    }
+
+    /* WORKER:
+     *      The worker class is the main driver for executing ftp commands over one server connection.
      *      These commands can be executed linearly using explicit calls of the command functions (cd, ls, etc...)
-     *      These commands can also be executed as a separate thread using the begin(String command).
-     *      If the worker is running as a thread, then the client who spawned this thread is referred to as the
+     *      These commands can also be executed on a background thread using execute(String command), on a
+     *      pooled connection. The client that started a background command is referred to as the
      *      "parent client"
      */
-    private class Worker extends Thread implements Runnable {
+    private class Worker {
 
         private final String prompt = "myftp> ";
 
         private DataInputStream socket_in;
         private DataOutputStream socket_out;
         private Socket socket;
+        private myftpmux.Stream stream;
         private boolean isThread;
-        private String command;
+        private int version;
+        private Set<String> features;
+        private boolean framed;
+        private long idleSince;
+        private boolean failed;
+
+        // Connects a worker to the remote server as a unique client
+        Worker() {
+            isThread = false;
+            connect(true);
+        }
+
+        // Connects a background worker to the remote server as non-unique client
+        Worker(boolean background) {
+            isThread = background;
+            connect(!background);
+        }
+
+        // A background worker on a stream of the multiplexed connection, it speaks what the connection agreed on
+        Worker(Worker connection, myftpmux.Stream stream) {
+            isThread = true;
+            this.stream = stream;
+            version = connection.version;
+            features = connection.features;
+            framed = connection.framed;
+            socket_in = new DataInputStream(stream.input());
+            socket_out = new DataOutputStream(stream.output());
+        }
+
+        // Executes a background command, returns false if the connection should not be reused
+        boolean execute(String command) {
+
+            // console.println("\t$ Executing background command > " + command);
+
+            // Extract arguments from the command
+            String[] args = command.split(" ");
+
+            // Execute command
+            try {
+                switch (args[0].toLowerCase()) {
+                    case "get":
+                        get(command, args);
+                        break;
+                    case "put":
+                        put(command, args);
+                        break;
+                    case "mget":
+                        mget(args);
+                        break;
+                    case "mput":
+                        mput(args);
+                        break;
+                    case "ls":
+                        ls(command, args);
+                        break;
+                    case "mkdir":
+                        mkdir(command);
+                        break;
+                    case "cd":
+                        cdClient(args);
+                        break;
+                    case "terminate":
+                        terminate(args);
+                        break;
+                    case "quit":
+                        quitClient();
+                        return false;
+                    default:
+                        other(command);
+                        break;
+                }
+                return true;
+
+            } catch (IOException e) {
+                e.printStackTrace();
+                failed = true;
+                return false;
+            }
+        }
+
+        /* ============================================= */
+        /* ===                                       === */
+        /* ===        Command Implementation         === */
+        /* ===                                       === */
+        /* ============================================= */
+
+
+        /* ========================= */
+        /* ===        get        === */
+        /* ========================= */
+
+        /* A plain get streams into <name>.part and renames it once complete. A terminated or broken
+         * download keeps the .part file, and the next get of that file asks the server for the rest
+         * only ("get -o <part size>"). Servers with "validate" also send the file's modification time,
+         * which is kept with its size in <name>.part.origin: the rest is only asked for while the remote
+         * file still has both, else the download starts over. With -o/-l the requested range is written
+         * in place instead.
+         * With -z the server compresses the data when it has a codec for it, else the get is sent as usual.
+         */
+        private void get(String line, String[] args) throws IOException {
+
+            long downloadSize = 0;
+            long wireSize = -1;
+
+            myftpprotocol.Arguments arguments = new myftpprotocol.Arguments(args, "-o", "-l", "-n", "-s");
+            String remote = arguments.operand(0);
+            boolean ranged = arguments.has("-o") || arguments.has("-l");
+            boolean segmented = arguments.has("-n");
+            String codec = compression(arguments);
+            if (remote == null) {
+                console.println("FTP Error: Missing remote file name.");
+                printPrompt();
+                return;
+            }
+            if (arguments.has("-r")) {
+                getDirectory(remote);
+                return;
+            }
+            if ((ranged || segmented) && !features.contains(myftpprotocol.FEATURE_RANGE)) {
+                console.println("FTP Error: Server does not support ranged get.");
+                printPrompt();
+                return;
+            }
+            if (ranged && segmented) {
+                console.println("FTP Error: -n can not be combined with -o or -l.");
+                printPrompt();
+                return;
+            }
+
+            String filename = remote;
+            if (filename.contains("/")) {
+                String [] tempArr = filename.split("/");
+                filename = tempArr[tempArr.length-1];
+            }
+            Path target = Paths.get(filename).toAbsolutePath();
+            Path partial = Paths.get(filename + ".part").toAbsolutePath();
+
+            if (segmented) {
+                long connections, segmentSize;
+                try {
+                    connections = arguments.longValue("-n", 1);
+                    segmentSize = arguments.longValue("-s", 0);
+                } catch (NumberFormatException e) {
+                    connections = segmentSize = -1;
+                }
+                if (connections < 1 || connections > SEGMENT_CONNECTIONS_MAX || segmentSize < 0) {
+                    console.println("FTP Error: Usage: get -n <1-" + SEGMENT_CONNECTIONS_MAX
+                            + "> [-s <segment size>] <file>");
+                    printPrompt();
+                    return;
+                }
+                getSegmented(remote, target, (int) connections, segmentSize);
+                return;
+            }
+
+            // 0. Send Command (resume from an earlier partial download when the server can)
+            long offset = 0;
+            boolean resume = false;
+            boolean validated = !ranged && features.contains(myftpprotocol.FEATURE_VALIDATE);
+            String origin = "";
+            if (ranged) {
+                offset = arguments.longValue("-o", 0);
+            } else if (features.contains(myftpprotocol.FEATURE_RANGE) && Files.isRegularFile(partial)) {
+                origin = validated ? readOrigin(partial) : "";
+                if (origin != null) {
+                    offset = Files.size(partial);
+                    resume = true;
+                }
+            }
+            if (codec != null || resume || validated) {
+                line = "get" + (codec != null ? " -c " + codec : "") + ((ranged || resume) ? " -o " + offset : "")
+                        + (arguments.has("-l") ? " -l " + arguments.longValue("-l", 0) : "")
+                        + (validated ? " -m" : "") + (resume && validated ? " -i " + origin : "") + " " + remote;
+            }
+            socket_out.writeUTF(line);
+
+            try {
+
+                // 1. Get Command ID
+                int commandId = socket_in.readInt();
+                console.println("Command ID : " + commandId);
+                if (isThread) worker.printPrompt();
+
+                // 2. Get Status
+                int code = socket_in.readInt();
+                if (code == myftpprotocol.ERR_RANGE && resume) {
+
+                    // The remote file shrank or changed since the partial download, start over
+                    discardPartial(partial);
+                    get("get " + remote, (codec != null) ? new String[] {"get", "-z", remote} : new String[] {"get", remote});
+                    return;
+                }
+                if (code == myftpprotocol.ERR_RANGE) {
+                    console.println("FTP Error: Offset " + offset + " is past the end of \"" + remote + "\".");
+                    printPrompt();
+                    return;
+                }
+                if (code == 1) {
+                    console.println("FTP Error: Remote file \"" + remote + "\" does not exist.");
+                    printPrompt();
+                    return;
+                }
+
+                // 3. Receive File
+                long fileSize = readSize();
+                long length = (ranged || resume) ? socket_in.readLong() : fileSize;
+                if (validated) {
+                    long modified = socket_in.readLong();
+                    if (!resume) writeOrigin(partial, fileSize, modified);
+                }
+                Path local = ranged ? target : partial;
+
+                try (FileChannel fileOut = ranged
+                        ? FileChannel.open(local, StandardOpenOption.CREATE, StandardOpenOption.WRITE)
+                        : FileChannel.open(local, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                resume ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING)) {
+                    if (codec == null) {
+                        downloadSize = receivePackets(fileOut, offset, length);
+                    } else {
+                        myftpcodec.Decoder decoder = new myftpcodec.Decoder(myftpcodec.forName(codec));
+                        try {
+                            downloadSize = receiveBlocks(fileOut, offset, length, decoder);
+                            wireSize = decoder.wireBytes();
+                        } finally {
+                            decoder.close();
+                        }
+                    }
+                }
+
+                if (downloadSize < length) {
+                    console.println("\nGet command " + commandId + " terminated");
+                    printPrompt();
+                    return;
+                }
+
+                if (!ranged) {
+                    synchronized (fileSystemMutex) {
+                        Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING);
+                        Files.deleteIfExists(origin(partial));
+                    }
+                }
+
+            } catch (IOException e ) {
+                console.println("Error downloading file.");
+                printPrompt();
+                return;
+            }
+
+            if (resume) console.println("Resumed at byte " + offset + ".");
+            console.println("Download success! " + downloadSize + " Bytes copied" + compressed(wireSize) + ".");
+            printPrompt();
+        }
+
+        /* Splits the remote file into ranges that several extra connections download at the same time.
+         * Each connection takes the next range until none are left and writes it at its own offset of a
+         * pre-sized <name>.parts file, which is renamed once every range has arrived. The ranges can
+         * finish in any order, so a failed segmented download is deleted instead of kept for resume.
+         * Terminating the command id printed for the probe terminates every range, see SegmentedGet.
+         */
+        private void getSegmented(String remote, Path target, int connections, long segmentSize)
+                throws IOException {
+
+            Path partial = target.resolveSibling(target.getFileName() + ".parts");
+
+            // 0. Send Command (an empty range only returns the file size)
+            socket_out.writeUTF("get -o 0 -l 0 " + remote);
+
+            // 1. Get Command ID
+            int commandId = socket_in.readInt();
+            console.println("Command ID : " + commandId);
+            if (isThread) worker.printPrompt();
+
+            // 2. Get Status
+            if (socket_in.readInt() != 0) {
+                console.println("FTP Error: Remote file \"" + remote + "\" does not exist.");
+                printPrompt();
+                return;
+            }
+
+            // 3. Get file size
+            long fileSize = socket_in.readLong();
+            socket_in.readLong();
+
+            SegmentedGet segmentedGet = new SegmentedGet();
+            synchronized (segmentedGets) {
+                segmentedGets.put(commandId, segmentedGet);
+            }
+            try {
+                getSegmented(remote, target, partial, commandId, segmentedGet, fileSize, connections, segmentSize);
+            } finally {
+                synchronized (segmentedGets) {
+                    segmentedGets.remove(commandId);
+                }
+            }
+        }
+
+        private void getSegmented(String remote, Path target, Path partial, int commandId, SegmentedGet segmentedGet,
+                long fileSize, int connections, long segmentSize) throws IOException {
+
+            long rangeSize = (segmentSize > 0) ? segmentSize
+                    : Math.max(SEGMENT_SIZE_MIN, (fileSize + connections - 1) / connections);
+            int threadCount = (int) Math.max(1, Math.min(connections, (fileSize + rangeSize - 1) / rangeSize));
+            AtomicLong nextOffset = new AtomicLong(0);
+            AtomicLong downloadSize = new AtomicLong(0);
+            AtomicBoolean failed = new AtomicBoolean(false);
+
+            try (FileChannel fileOut = FileChannel.open(partial, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+                // Writing the last byte sizes the file up front (sparse where supported)
+                if (fileSize > 0) fileOut.write(ByteBuffer.allocate(1), fileSize - 1);
+
+                // Every thread owns one connection, FileChannel positional writes are thread safe
+                Thread[] threads = new Thread[threadCount];
+                for (int i = 0; i < threadCount; i++) {
+                    threads[i] = new Thread(() -> {
+                        Worker segment = pool.borrow();
+                        boolean reusable = true;
+                        try {
+                            long offset;
+                            while (!failed.get() && !segmentedGet.isTerminated()
+                                    && (offset = nextOffset.getAndAdd(rangeSize)) < fileSize) {
+                                long length = Math.min(rangeSize, fileSize - offset);
+                                long received = segment.getRange(remote, fileOut, offset, length, segmentedGet);
+                                downloadSize.addAndGet(received);
+                                if (received < length) failed.set(true);
+                            }
+                        } catch (IOException e) {
+                            failed.set(true);
+                            reusable = false;
+                        }
+                        pool.release(segment, reusable);
+                    });
+                    threads[i].start();
+                }
+
+                for (Thread thread : threads) {
+                    try {
+                        thread.join();
+                    } catch (InterruptedException e) {
+                        failed.set(true);
+                    }
+                }
+            } catch (IOException e) {
+                failed.set(true);
+            }
+
+            // Ranges that were never started leave the download short as well
+            if (failed.get() || downloadSize.get() < fileSize) {
+                Files.deleteIfExists(partial);
+                if (segmentedGet.isTerminated()) console.println("\nGet command " + commandId + " terminated");
+                else console.println("Error downloading file.");
+                printPrompt();
+                return;
+            }
+
+            synchronized (fileSystemMutex) {
+                Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            console.println("Download success! " + downloadSize.get() + " Bytes copied over "
+                    + threadCount + (threadCount == 1 ? " connection." : " connections."));
+            printPrompt();
+        }
+
+        /* Socket Protocol (ranged get, the reply to "get -o <offset> -l <length> <file>"):
+         *          1. Get Command ID
+         *          2. Get Status
+         *          3. Get file size and range length
+         *
+         *      Returns the number of bytes received, less than length when the range could not be sent or
+         *      was terminated.
+         */
+        private long getRange(String remote, FileChannel fileOut, long offset, long length, SegmentedGet segmentedGet)
+                throws IOException {
+            socket_out.writeUTF("get -o " + offset + " -l " + length + " " + remote);
+            int commandId = socket_in.readInt();
+            segmentedGet.start(commandId);
+            try {
+                if (socket_in.readInt() != 0) return 0;
+                socket_in.readLong();
+                long rangeLength = socket_in.readLong();
+                return receivePackets(fileOut, offset, rangeLength);
+            } finally {
+                segmentedGet.finish(commandId);
+            }
+        }
+
+        /* Socket Protocol:
+         *   Loop:  4. Get packet size / EOF
+         *          5. Get file packet data, written to the file from position on
+         *
+         *      Returns the number of bytes received, less than length when the server sent EOF.
+         */
+        private long receivePackets(FileChannel fileOut, long position, long length) throws IOException {
+
+            byte[] buffer = new byte[64 * 1024];
+            long received = 0;
+
+            while (received < length) {
+
+                int packetSize = socket_in.readInt();
+                if (packetSize == 0) break;
+
+                // Packets can be larger than the buffer, read exactly packetSize bytes
+                while (packetSize > 0) {
+                    int bufSize = socket_in.read(buffer, 0, Math.min(buffer.length, packetSize));
+                    if (bufSize < 0) throw new EOFException();
+
+                    ByteBuffer data = ByteBuffer.wrap(buffer, 0, bufSize);
+                    while (data.hasRemaining()) {
+                        position += fileOut.write(data, position);
+                    }
+                    received += bufSize;
+                    packetSize -= bufSize;
+                }
+            }
+            return received;
+        }
+
+
+        /* Socket Protocol (compressed get, see myftpcodec):
+         *   Loop:  4. Get block, or a 0 length when terminated
+         *
+         *      Returns the number of bytes received, less than length when the server sent the 0 length.
+         */
+        private long receiveBlocks(FileChannel fileOut, long position, long length, myftpcodec.Decoder decoder)
+                throws IOException {
+
+            byte[] raw = new byte[myftpcodec.BLOCK_SIZE];
+            long received = 0;
+
+            while (received < length) {
+                int size = decoder.read(socket_in, raw);
+                if (size == 0) break;
+
+                ByteBuffer data = ByteBuffer.wrap(raw, 0, size);
+                while (data.hasRemaining()) {
+                    position += fileOut.write(data, position);
+                }
+                received += size;
+            }
+            return received;
+        }
+
+        // The codec for -z, null when it is not given or the server has none
+        private String compression(myftpprotocol.Arguments arguments) {
+            if (!arguments.has("-z") || !features.contains(myftpcodec.DEFLATE)) return null;
+            return myftpcodec.DEFLATE;
+        }
+
+        private String compressed(long wireSize) {
+            return (wireSize < 0) ? "" : " (" + wireSize + " Bytes compressed)";
+        }
+
+
+        /* ========================= */
+        /* ===        put        === */
+        /* ========================= */
+
+        private void put(String line, String[] args) throws IOException {
+
+            // Servers speaking version 2 always get the windowed protocol
+            myftpprotocol.Arguments arguments = new myftpprotocol.Arguments(args);
+            String codec = compression(arguments);
+            String local = arguments.operand(0);
+            if (arguments.has("-r")) {
+                putDirectory(local);
+                return;
+            }
+            if (arguments.has("-h") && features.contains(myftpprotocol.FEATURE_DEDUP)) {
+                putDeduplicated(local);
+                return;
+            }
+            if (arguments.has("-d") && features.contains(myftpprotocol.FEATURE_DELTA)) {
+                putDelta(local);
+                return;
+            }
+            if (arguments.has("-w") && codec == null) {
+                putWindowed("put -w " + local, local, null);
+                return;
+            }
+            if (version >= myftpprotocol.VERSION_64BIT) {
+                putWindowed("put -w " + (codec != null ? "-c " + codec + " " : "") + local, local, codec);
+                return;
+            }
+
+            String filename = local;
+            Path filePath = Paths.get(filename).toAbsolutePath();
+
+            // Verify file exists
+            if (!Files.isRegularFile(filePath)) {
+                console.println("FTP Error: Local file \"" + filename + "\" does not exist.");
+                printPrompt();
+                return;
+            }
+
+            // Version 1 servers only take int sizes
+            long fileSize = Files.size(filePath);
+            if (fileSize > Integer.MAX_VALUE) {
+                console.println("FTP Error: The server does not support files larger than 2 GB");
+                printPrompt();
+                return;
+            }
+
+            // Send command
+            socket_out.writeUTF(line);
+
+            int commandId;
+            try {
+                commandId = socket_in.readInt();
+            } catch (IOException e) {
+                console.println("Error reading command Id");
+                return;
+            }
+            console.println("Command ID : " + commandId);
+            if (isThread) printPrompt();
+
+            // Write fileSize
+            socket_out.writeInt((int) fileSize);
+
+            // Stream the file in chunks, the server answers every chunk with a termination status
+            byte[] chunk = new byte[1000];
+            try (DataInputStream fileIn = new DataInputStream(Files.newInputStream(filePath))) {
+                long sent = 0;
+                while (sent < fileSize) {
+
+                    int length = (int) Math.min(chunk.length, fileSize - sent);
+                    fileIn.readFully(chunk, 0, length);
+
+                    // Writes data
+                    socket_out.write(chunk, 0, length);
+                    sent += length;
+
+                    boolean terminated = (socket_in.readInt() != 0);
+
+                    if (terminated) {
+                        console.println("\nPut command " + commandId + " terminated");
+                        printPrompt();
+                        return;
+                    }
+                }
+            }
+            socket_out.flush();
+
+            // Get response status
+            int code = socket_in.readInt();
+            if (code != 0) {
+                console.println("FTP Error: Upload failed");
+            } else {
+                console.println("Upload success! " + fileSize + " Bytes copied.");
+            }
+
+            printPrompt();
+        }
+
+
+        /* Socket Protocol: see myftpprotocol (windowed put)
+         *      Keeps up to PUT_WINDOW_SIZE bytes in flight and only waits for the server once the whole
+         *      window is unacknowledged, instead of one round trip per 1000 byte chunk. With a codec every
+         *      frame is a compressed block, see myftpcodec.
+         */
+        private void putWindowed(String line, String filename, String codec) throws IOException {
+
+            Path filePath = Paths.get(filename).toAbsolutePath();
+
+            // Verify file exists
+            if (!Files.isRegularFile(filePath)) {
+                console.println("FTP Error: Local file \"" + filename + "\" does not exist.");
+                printPrompt();
+                return;
+            }
+
+            // Send command
+            socket_out.writeUTF(line);
+
+            int commandId = socket_in.readInt();
+            console.println("Command ID : " + commandId);
+            if (isThread) printPrompt();
+
+            // 2. Send file size
+            long fileSize = Files.size(filePath);
+            socket_out.writeLong(fileSize);
+
+            // Frame header and data go out in one write
+            byte[] frame = new byte[Math.max(4 + myftpprotocol.PUT_FRAME_SIZE, myftpcodec.BLOCK_BUFFER_SIZE)];
+            byte[] raw = (codec != null) ? new byte[myftpcodec.BLOCK_SIZE] : null;
+            myftpcodec.Encoder encoder = (codec != null) ? new myftpcodec.Encoder(myftpcodec.forName(codec)) : null;
+            long sent = 0;
+            long received = 0;
+            int code = myftpprotocol.PUT_ACK;
+
+            try (InputStream fileIn = Files.newInputStream(filePath)) {
+                while (sent < fileSize) {
+
+                    // 4. Read the acknowledgements that already arrived, block only on a full window
+                    while (code == myftpprotocol.PUT_ACK && (sent - received >= myftpprotocol.PUT_WINDOW_SIZE
+                            || socket_in.available() >= myftpprotocol.PUT_MESSAGE_SIZE)) {
+                        code = socket_in.readInt();
+                        received = socket_in.readLong();
+                    }
+                    if (code != myftpprotocol.PUT_ACK) break;
+
+                    // 3. Send frame, or compressed block
+                    if (encoder != null) {
+                        int length = fileIn.readNBytes(raw, 0, (int) Math.min(raw.length, fileSize - sent));
+                        if (length <= 0) break;
+                        socket_out.write(frame, 0, encoder.encode(raw, length, frame));
+                        sent += length;
+                        continue;
+                    }
+                    int length = fileIn.read(frame, 4, (int) Math.min(myftpprotocol.PUT_FRAME_SIZE, fileSize - sent));
+                    if (length < 0) break;
+                    frame[0] = (byte) (length >>> 24);
+                    frame[1] = (byte) (length >>> 16);
+                    frame[2] = (byte) (length >>> 8);
+                    frame[3] = (byte) length;
+                    socket_out.write(frame, 0, 4 + length);
+                    sent += length;
+                }
+            } finally {
+                if (encoder != null) encoder.close();
+            }
+
+            // 5. End of file, or acknowledgement of the cancel
+            socket_out.writeInt(0);
+            socket_out.flush();
+
+            // 6. Get response status
+            while (code == myftpprotocol.PUT_ACK) {
+                code = socket_in.readInt();
+                received = socket_in.readLong();
+            }
+
+            if (code == myftpprotocol.PUT_CANCEL) {
+                console.println("\nPut command " + commandId + " terminated");
+            } else if (code != myftpprotocol.PUT_DONE) {
+                console.println("FTP Error: Upload failed");
+            } else {
+                console.println("Upload success! " + received + " Bytes copied"
+                        + compressed((encoder != null) ? encoder.wireBytes() : -1) + ".");
+            }
+
+            printPrompt();
+        }
+
+
+        /* Socket Protocol: see myftpprotocol (deduplicated put)
+         *      The file is read twice: once to cut and hash it, then for the chunks the server asks for.
+         */
+        private void putDeduplicated(String filename) throws IOException {
+
+            Path filePath = Paths.get(filename).toAbsolutePath();
+
+            // Verify file exists
+            if (!Files.isRegularFile(filePath)) {
+                console.println("FTP Error: Local file \"" + filename + "\" does not exist.");
+                printPrompt();
+                return;
+            }
+
+            // Cut and hash the file before the server is involved
+            ByteArrayOutputStream entries = new ByteArrayOutputStream();
+            DataOutputStream entry = new DataOutputStream(entries);
+            List<Long> offsets = new ArrayList<>();
+            byte[] chunk = new byte[myftpchunk.CHUNK_MAX];
+            long fileSize = 0;
+            try (InputStream fileIn = Files.newInputStream(filePath)) {
+                myftpchunk.Chunker chunker = new myftpchunk.Chunker(fileIn);
+                MessageDigest digest = myftpchunk.hashDigest();
+                int length;
+                while ((length = chunker.next(chunk)) > 0) {
+                    digest.update(chunk, 0, length);
+                    entry.writeInt(length);
+                    entry.write(digest.digest());
+                    offsets.add(fileSize);
+                    fileSize += length;
+                }
+            }
+            offsets.add(fileSize);
+            if (offsets.size() - 1 > myftpchunk.CHUNKS_MAX) {
+                console.println("FTP Error: File \"" + filename + "\" has too many chunks for a deduplicated put.");
+                printPrompt();
+                return;
+            }
+
+            // Send command
+            socket_out.writeUTF("put -h " + filename);
+
+            int commandId = socket_in.readInt();
+            console.println("Command ID : " + commandId);
+            if (isThread) printPrompt();
+
+            // 2. Send file size and chunk list
+            ByteBuffer list = ByteBuffer.allocate(12 + entries.size());
+            list.putLong(fileSize).putInt(offsets.size() - 1).put(entries.toByteArray());
+            socket_out.write(list.array());
+
+            // 3. Receive the chunks the server is missing
+            int missing = socket_in.readInt();
+            byte[] indexes = new byte[4 * missing];
+            socket_in.readFully(indexes);
+
+            // 4. Send the missing chunks, stop once a cancel arrived
+            long sent = 0;
+            byte[] frame = new byte[4 + myftpchunk.CHUNK_MAX];
+            try (FileChannel fileIn = FileChannel.open(filePath, StandardOpenOption.READ)) {
+                ByteBuffer index = ByteBuffer.wrap(indexes);
+                while (index.hasRemaining() && socket_in.available() < myftpprotocol.PUT_MESSAGE_SIZE) {
+                    int i = index.getInt();
+                    int length = (int) (offsets.get(i + 1) - offsets.get(i));
+                    ByteBuffer data = ByteBuffer.wrap(frame).putInt(length);
+                    data.limit(4 + length);
+                    while (data.hasRemaining()) {
+                        if (fileIn.read(data, offsets.get(i) + data.position() - 4) < 0)
+                            throw new EOFException("File truncated during upload");
+                    }
+                    socket_out.write(frame, 0, 4 + length);
+                    sent += length;
+                }
+            }
 
-        // Connects a worker to the remote server as a unique client
-        Worker() {
-            isThread = false;
-            connect(true);
-        }
+            // 5. End of chunks, or acknowledgement of the cancel
+            socket_out.writeInt(0);
+            socket_out.flush();
 
-        // Parses the preset command to run in a separate thread, and then connects to the
-        // remote server as non-unique client
-        Worker(String command) {
-            super();
-            if (command.indexOf('&') != -1) {
-                command = command.substring(0, command.indexOf('&') - 1);
+            // 6. Get response status
+            int code = socket_in.readInt();
+            long received = socket_in.readLong();
+
+            if (code == myftpprotocol.PUT_CANCEL) {
+                console.println("\nPut command " + commandId + " terminated");
+            } else if (code != myftpprotocol.PUT_DONE) {
+                console.println("FTP Error: Upload failed");
+            } else {
+                console.println("Upload success! " + received + " Bytes copied (" + sent + " Bytes sent, "
+                        + (offsets.size() - 1 - missing) + " of " + (offsets.size() - 1) + " chunks already stored).");
             }
-            isThread = true;
-            this.command = command;
-            connect(false);
-        }
 
-        // Executes the predefined command
-        public void run() {
+            printPrompt();
+        }
 
-            // Get the parent client's
-            getClientDir();
+        /* Socket Protocol: see myftpprotocol (delta put)
+         *      Reads the server's signature, then slides over the local file and only sends the data the
+         *      server does not already have, see myftpdelta.
+         */
+        private void putDelta(String filename) throws IOException {
 
-            // If command is not null
-            if (command != null) {
+            Path filePath = Paths.get(filename).toAbsolutePath();
 
-                // System.out.println("\t$ Executing background command > " + command);
+            // Verify file exists
+            if (!Files.isRegularFile(filePath)) {
+                console.println("FTP Error: Local file \"" + filename + "\" does not exist.");
+                printPrompt();
+                return;
+            }
 
-                // Extract arguments from the command
-                String[] args = command.split(" ");
+            // Send command
+            socket_out.writeUTF("put -d " + filename);
 
-                // Execute command
-                try {
-                    switch (args[0].toLowerCase()) {
-                        case "get":
-                            get(command, args);
-                            break;
-                        case "put":
-                            put(command, args);
-                            break;
-                        case "mkdir":
-                            mkdir(command);
-                            break;
-                        case "cd":
-                            cdClient(args);
-                            break;
-                        case "terminate":
-                            terminate(args);
-                            break;
-                        case "quit":
-                            quitClient();
-                            break;
-                        default:
-                            other(command);
-                            break;
-                    }
+            int commandId = socket_in.readInt();
+            console.println("Command ID : " + commandId);
+            if (isThread) printPrompt();
 
-                    // Destroy socket with ftpServer after command is finished
-                    quit();
+            // 2. Receive signature
+            myftpdelta.Signature signature = myftpdelta.Signature.read(socket_in);
 
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+            // 3. - 5. Send ops and the end op
+            myftpdelta.Matcher matcher = new myftpdelta.Matcher(signature, socket_out, socket_in);
+            try (InputStream fileIn = Files.newInputStream(filePath)) {
+                matcher.send(fileIn);
             }
-        }
 
-        /* ============================================= */
-        /* ===                                       === */
-        /* ===        Command Implementation         === */
-        /* ===                                       === */
-        /* ============================================= */
+            // 6. Get response status, or the cancel that stopped the ops
+            int code = socket_in.readInt();
+            long received = socket_in.readLong();
+
+            if (code == myftpprotocol.PUT_CANCEL) {
+                console.println("\nPut command " + commandId + " terminated");
+            } else if (code != myftpprotocol.PUT_DONE) {
+                console.println("FTP Error: Upload failed");
+            } else {
+                console.println("Upload success! " + received + " Bytes copied (" + matcher.wireBytes()
+                        + " Bytes sent).");
+            }
 
+            printPrompt();
+        }
 
         /* ========================= */
-        /* ===        get        === */
+        /* ===  get -r / put -r  === */
         /* ========================= */
 
-        private void get(String line, String[] args) throws IOException {
+        /* Socket Protocol: see myftpprotocol (directories)
+         *      The tree arrives as one stream and every file is written as its records arrive, into
+         *      <name>.part beside it, and renamed with its remote modification time once complete. The
+         *      tree goes into the directory of the same name here, files already there are replaced.
+         */
+        private void getDirectory(String remote) throws IOException {
+
+            if (!features.contains(myftpprotocol.FEATURE_ARCHIVE)) {
+                console.println("FTP Error: Server does not support directory transfers.");
+                printPrompt();
+                return;
+            }
+            Path name = Paths.get(remote).getFileName();
+            if (name == null || name.toString().equals(".") || name.toString().equals("..")) {
+                console.println("FTP Error: Name the remote directory by its own name, not \"" + remote + "\".");
+                printPrompt();
+                return;
+            }
+            Path root = name.toAbsolutePath();
+            if (Files.exists(root) && !Files.isDirectory(root)) {
+                console.println("FTP Error: Local file \"" + name + "\" is not a directory.");
+                printPrompt();
+                return;
+            }
 
-            int downloadSize = 0;
+            // Send command
+            socket_out.writeUTF("get -r " + remote);
 
-            // 0. Send Command
-            socket_out.writeUTF(line);
+            // 1. Get Command ID
+            int commandId = socket_in.readInt();
+            console.println("Command ID : " + commandId);
+            if (isThread) worker.printPrompt();
+
+            // 2. Get Status
+            if (socket_in.readInt() != 0) {
+                console.println("FTP Error: Remote directory \"" + remote + "\" does not exist.");
+                printPrompt();
+                return;
+            }
 
+            // 3. Receive the tree
+            long start = System.nanoTime();
+            myftparchive.Reader reader = new myftparchive.Reader(root, new LocalSink());
             try {
+                while (reader.next(socket_in));
+            } finally {
+                reader.close();
+            }
 
-                // 1. Get Command ID
-                int commandId = socket_in.readInt();
-                System.out.println("Command ID : " + commandId);
-                if (isThread) worker.printPrompt();
+            if (!reader.complete()) {
+                console.println("\nGet command " + commandId + " terminated");
+            } else {
+                printTree("Download", reader.files(), reader.bytes(), start);
+                if (reader.failed() > 0) console.println("FTP Error: " + reader.failed() + " files could not be copied.");
+            }
+            printPrompt();
+        }
 
-                // 2. Get Status
-                int code = socket_in.readInt();
-                if (code == 1) {
-                    System.out.println("FTP Error: Remote file \"" + args[1] + "\" does not exist.");
-                    printPrompt();
-                    return;
-                }
+        /* Socket Protocol: see myftpprotocol (directories)
+         *      The tree is walked and read on a second thread while this one sends it, see myftparchive.
+         */
+        private void putDirectory(String local) throws IOException {
 
-                // 3. Receive File
-                ByteArrayOutputStream fileOut = new ByteArrayOutputStream();
-                byte[] buffer = new byte[1000];
-                int bufSize;
+            if (!features.contains(myftpprotocol.FEATURE_ARCHIVE)) {
+                console.println("FTP Error: Server does not support directory transfers.");
+                printPrompt();
+                return;
+            }
+            Path root = (local == null) ? null : Paths.get(local).toAbsolutePath().normalize();
+            if (root == null || !Files.isDirectory(root) || root.getFileName() == null) {
+                console.println("FTP Error: Local directory \"" + local + "\" does not exist.");
+                printPrompt();
+                return;
+            }
 
-                waitForResponse();
+            // Send command
+            socket_out.writeUTF("put -r " + root.getFileName());
 
-                int fileSize = socket_in.readInt();
-                // System.out.println("fileSize: " + fileSize);
+            int commandId = socket_in.readInt();
+            console.println("Command ID : " + commandId);
+            if (isThread) printPrompt();
 
-                while (downloadSize < fileSize) {
+            // 2. Send the tree, stop once a cancel arrived
+            long start = System.nanoTime();
+            myftparchive.Writer writer = new myftparchive.Writer(root, path -> false, Files::newInputStream, Thread::new);
+            writer.send(socket_out, this::putCancelled);
 
-                    int packetSize = socket_in.readInt();
+            // 4. Get response status, or the cancel that stopped the tree
+            int code = socket_in.readInt();
+            long received = socket_in.readLong();
 
-                    // System.out.println("packetSize: " + packetSize);
+            if (code == myftpprotocol.PUT_CANCEL) {
+                console.println("\nPut command " + commandId + " terminated");
+            } else if (code != myftpprotocol.PUT_DONE) {
+                console.println("FTP Error: Upload failed, " + received + " Bytes sent but not every file was written.");
+            } else {
+                printTree("Upload", writer.files(), received, start);
+            }
+            if (writer.failed() > 0) console.println("FTP Error: " + writer.failed() + " local files could not be read.");
+            printPrompt();
+        }
 
-                    if (packetSize == 0) {
-                        System.out.println("\nGet command " + commandId + " terminated");
-                        printPrompt();
-                        return;
-                    }
+        // A windowed put message waiting means the server cancelled the upload
+        private boolean putCancelled() {
+            try {
+                return socket_in.available() >= myftpprotocol.PUT_MESSAGE_SIZE;
+            } catch (IOException e) {
+                return true;
+            }
+        }
 
-                    bufSize = socket_in.read(buffer, 0, buffer.length);
+        private void printTree(String transfer, int files, long bytes, long start) {
+            double seconds = Math.max(1, System.nanoTime() - start) / 1e9;
+            console.println(String.format("%s success! %d files, %d Bytes copied in %.3f s (%.2f MB/s).", transfer,
+                    files, bytes, seconds, bytes / seconds / 1e6));
+        }
 
-                    fileOut.write(buffer, 0, bufSize);
-                    downloadSize += bufSize;
-                }
+        /* ========================= */
+        /* ===    mget / mput    === */
+        /* ========================= */
+
+        /* Batch transfers over this connection. Up to -p (default PIPELINE_DEPTH) requests are sent
+         * ahead of their replies, so a batch of small files is not one round trip per file: the server
+         * runs the commands one after the other and the replies come back in request order. Patterns
+         * are expanded before the batch starts, remote ones by the server ($glob), local ones here.
+         */
+        private void mget(String[] args) throws IOException {
+
+            myftpprotocol.Arguments arguments = new myftpprotocol.Arguments(args, "-p");
+            int depth = pipelineDepth(arguments);
+            if (depth < 1 || arguments.operandCount() == 0) {
+                console.println("FTP Error: Usage: mget [-p <1-" + PIPELINE_DEPTH_MAX + ">] <files or patterns...>");
+                printPrompt();
+                return;
+            }
 
-                if ((args[1]).contains("/")) {
-                    String [] tempArr = args[1].split("/");
-                    args[1] = tempArr[tempArr.length-1];
+            List<BatchFile> files = new ArrayList<>();
+            for (int i = 0; i < arguments.operandCount(); i++) {
+                String operand = arguments.operand(i);
+                if (!isPattern(operand)) {
+                    files.add(new BatchFile(operand));
+                    continue;
                 }
+                List<String> names = remoteNames(operand);
+                if (names == null) files.add(BatchFile.failed(operand, "server can not expand patterns"));
+                else if (names.isEmpty()) files.add(BatchFile.failed(operand, "no files match"));
+                else for (String name : names) files.add(new BatchFile(name));
+            }
 
+            long start = System.nanoTime();
+            Deque<BatchFile> pending = new ArrayDeque<>();
+            for (BatchFile file : files) if (file.error == null) pending.add(file);
+            Deque<BatchFile> inFlight = new ArrayDeque<>();
+            try {
+                while (!pending.isEmpty() || !inFlight.isEmpty()) {
+                    while (!pending.isEmpty() && inFlight.size() < depth) {
+                        BatchFile file = pending.poll();
+                        requestGet(file);
+                        inFlight.add(file);
+                    }
 
-                synchronized (fileSystemMutex) {
-                    File file = new File(args[1]);
-                    FileOutputStream fos = new FileOutputStream(file);
-                    fileOut.writeTo(fos);
-                    fos.close();
+                    // A resumed file that shrank on the server is asked for again, from the start
+                    BatchFile file = inFlight.poll();
+                    if (!receiveGet(file)) pending.addFirst(file);
                 }
+            } catch (IOException e) {
+                failBatch(inFlight, pending);
+                printBatch("mget", files, start);
+                throw e;
+            }
+            printBatch("mget", files, start);
+        }
+
+        // 0. Send Command, resuming from an earlier partial download like get
+        private void requestGet(BatchFile file) throws IOException {
+            Path partial = Paths.get(localName(file.name) + ".part").toAbsolutePath();
+            boolean validated = features.contains(myftpprotocol.FEATURE_VALIDATE);
+            String origin = "";
+            file.offset = 0;
+            if (features.contains(myftpprotocol.FEATURE_RANGE) && Files.isRegularFile(partial)) {
+                origin = validated ? readOrigin(partial) : "";
+                if (origin != null) file.offset = Files.size(partial);
+            }
+            socket_out.writeUTF("get" + (file.offset > 0 ? " -o " + file.offset : "") + (validated ? " -m" : "")
+                    + (file.offset > 0 && validated ? " -i " + origin : "") + " " + file.name);
+        }
 
-                fileOut.close();
+        /* Socket Protocol: the reply to a get, see get()
+         *      Returns false when the file has to be requested again.
+         */
+        private boolean receiveGet(BatchFile file) throws IOException {
+            Path target = Paths.get(localName(file.name)).toAbsolutePath();
+            Path partial = Paths.get(localName(file.name) + ".part").toAbsolutePath();
+            boolean resume = file.offset > 0;
 
-            } catch (IOException e ) {
-                System.out.println("Error downloading file.");
+            // 1. - 2. Get Command ID and Status
+            socket_in.readInt();
+            int code = socket_in.readInt();
+            if (code == myftpprotocol.ERR_RANGE && resume) {
+                discardPartial(partial);
+                return false;
+            }
+            if (code != 0) {
+                file.error = "does not exist";
+                return true;
             }
 
-            System.out.println("Download success! " + downloadSize + " Bytes copied.");
-            printPrompt();
+            // 3. Receive File
+            long fileSize = readSize();
+            long length = resume ? socket_in.readLong() : fileSize;
+            if (features.contains(myftpprotocol.FEATURE_VALIDATE)) {
+                long modified = socket_in.readLong();
+                if (!resume) writeOrigin(partial, fileSize, modified);
+            }
+            try (FileChannel fileOut = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    resume ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING)) {
+                file.bytes = receivePackets(fileOut, file.offset, length);
+            }
+            if (file.bytes < length) {
+                file.error = "terminated";
+                return true;
+            }
+            synchronized (fileSystemMutex) {
+                Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING);
+                Files.deleteIfExists(origin(partial));
+            }
+            return true;
         }
 
+        // <name>.part.origin, the size and modification time of the remote file a .part file came from
+        private Path origin(Path partial) {
+            return partial.resolveSibling(partial.getFileName() + ".origin");
+        }
 
-        /* ========================= */
-        /* ===        put        === */
-        /* ========================= */
+        // The -i validator that resumes partial, null when its origin was not recorded
+        private String readOrigin(Path partial) {
+            try {
+                String origin = new String(Files.readAllBytes(origin(partial)), StandardCharsets.UTF_8).trim();
+                return origin.matches("[0-9]+:-?[0-9]+") ? origin : null;
+            } catch (IOException e) {
+                return null;
+            }
+        }
 
-        private void put(String line, String[] args) throws IOException {
+        private void writeOrigin(Path partial, long size, long modified) throws IOException {
+            Files.write(origin(partial), (size + ":" + modified).getBytes(StandardCharsets.UTF_8));
+        }
 
-            File file;
-            synchronized (fileSystemMutex) {
-                file = new File(args[1]);
-            }
+        private void discardPartial(Path partial) throws IOException {
+            Files.deleteIfExists(partial);
+            Files.deleteIfExists(origin(partial));
+        }
 
-            // Verify file exists
-            if (!file.exists()) {
-                System.out.println("FTP Error: Local file \"" + args[1] + "\" does not exist.");
+        private void mput(String[] args) throws IOException {
+
+            myftpprotocol.Arguments arguments = new myftpprotocol.Arguments(args, "-p");
+            int depth = pipelineDepth(arguments);
+            if (depth < 1 || arguments.operandCount() == 0) {
+                console.println("FTP Error: Usage: mput [-p <1-" + PIPELINE_DEPTH_MAX + ">] <files or patterns...>");
                 printPrompt();
                 return;
             }
 
-            // Send command
-            socket_out.writeUTF(line);
+            List<BatchFile> files = new ArrayList<>();
+            for (int i = 0; i < arguments.operandCount(); i++) {
+                String operand = arguments.operand(i);
+                if (!isPattern(operand)) {
+                    files.add(new BatchFile(operand));
+                    continue;
+                }
+                List<String> names = localNames(operand);
+                if (names.isEmpty()) files.add(BatchFile.failed(operand, "no files match"));
+                else for (String name : names) files.add(new BatchFile(name));
+            }
 
-            int commandId;
-            try {
-                commandId = socket_in.readInt();
-            } catch (IOException e) {
-                System.out.println("Error reading command Id");
+            // Version 1 puts wait for the server after every 1000 bytes, they go one at a time
+            if (version < myftpprotocol.VERSION_64BIT) {
+                for (BatchFile file : files) {
+                    if (file.error == null) put("put " + file.name, new String[] {"put", file.name});
+                }
                 return;
             }
-            System.out.println("Command ID : " + commandId);
-            if (isThread) printPrompt();
-
-            byte[] byteArr;
 
-            String filename = args[1];
-            synchronized (fileSystemMutex) {
-                Path filePath = Paths.get(filename);
-                if (filename.charAt(0) != '/') {
-                    filePath = Paths.get(filename).toAbsolutePath();
+            long start = System.nanoTime();
+            Deque<BatchFile> pending = new ArrayDeque<>();
+            for (BatchFile file : files) if (file.error == null) pending.add(file);
+            Deque<BatchFile> inFlight = new ArrayDeque<>();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket_out, 4 + myftpprotocol.PUT_FRAME_SIZE));
+            try {
+                while (!pending.isEmpty() || !inFlight.isEmpty()) {
+                    while (!pending.isEmpty() && inFlight.size() < depth) {
+                        BatchFile file = pending.peek();
+                        Path path = Paths.get(file.name).toAbsolutePath();
+                        if (!Files.isRegularFile(path)) {
+                            file.error = "no such local file";
+                            pending.poll();
+                            continue;
+                        }
+
+                        // A file larger than the window waits for acknowledgements, so it goes alone
+                        long size = Files.size(path);
+                        boolean alone = size > myftpprotocol.PUT_WINDOW_SIZE;
+                        if (alone && !inFlight.isEmpty()) break;
+                        pending.poll();
+                        sendPut(out, file, path, size, alone);
+                        inFlight.add(file);
+                        if (alone) break;
+                    }
+                    out.flush();
+                    if (!inFlight.isEmpty()) receivePut(inFlight.poll());
                 }
+            } catch (IOException e) {
+                failBatch(inFlight, pending);
+                printBatch("mput", files, start);
+                throw e;
+            }
+            printBatch("mput", files, start);
+        }
 
-                // Send file as byte array
-                byteArr = Files.readAllBytes(filePath);
+        /* Socket Protocol: see myftpprotocol (windowed put)
+         *      The command, the file and the end frame are written without waiting for the server. Only a
+         *      file larger than the window reads its Command ID and acknowledgements while it is sent.
+         */
+        private void sendPut(DataOutputStream out, BatchFile file, Path path, long size, boolean alone)
+                throws IOException {
+
+            out.writeUTF("put -w " + file.name);
+            if (alone) {
+                out.flush();
+                socket_in.readInt();
+                file.idRead = true;
             }
 
-            // socket_out.write(byteArr);
+            // 2. Send file size
+            out.writeLong(size);
+
+            // 3. Send frames, reading the acknowledgements when the file goes alone
+            byte[] frame = new byte[4 + myftpprotocol.PUT_FRAME_SIZE];
+            long sent = 0;
+            file.code = myftpprotocol.PUT_ACK;
+            try (InputStream fileIn = Files.newInputStream(path)) {
+                while (sent < size) {
+                    while (alone && file.code == myftpprotocol.PUT_ACK && (sent - file.bytes >= myftpprotocol.PUT_WINDOW_SIZE
+                            || socket_in.available() >= myftpprotocol.PUT_MESSAGE_SIZE)) {
+                        out.flush();
+                        file.code = socket_in.readInt();
+                        file.bytes = socket_in.readLong();
+                    }
+                    if (file.code != myftpprotocol.PUT_ACK) break;
 
-            int chunkSize = 1000;
-            int remainder = byteArr.length % chunkSize;
-            int numChunks = byteArr.length / chunkSize;
+                    int length = fileIn.read(frame, 4, (int) Math.min(myftpprotocol.PUT_FRAME_SIZE, size - sent));
+                    if (length < 0) break;
+                    ByteBuffer.wrap(frame).putInt(length);
+                    out.write(frame, 0, 4 + length);
+                    sent += length;
+                }
+            }
 
-            // Write fileSize
-            socket_out.writeInt(byteArr.length);
+            // 5. End of file, or acknowledgement of the cancel
+            out.writeInt(0);
+        }
 
-            if (remainder != 0) numChunks++;
-            for (int i = 0; i < numChunks; i++) {
+        // 1. and 4. - 6. of a sent put: Command ID, acknowledgements and the upload status
+        private void receivePut(BatchFile file) throws IOException {
+            if (!file.idRead) socket_in.readInt();
+            while (file.code == myftpprotocol.PUT_ACK) {
+                file.code = socket_in.readInt();
+                file.bytes = socket_in.readLong();
+            }
+            if (file.code == myftpprotocol.PUT_CANCEL) file.error = "terminated";
+            else if (file.code != myftpprotocol.PUT_DONE) file.error = "upload failed";
+        }
 
-                int offset = i * chunkSize;
-                int length = chunkSize;
+        // -p, or -1 when it is not a number in range
+        private int pipelineDepth(myftpprotocol.Arguments arguments) {
+            long depth;
+            try {
+                depth = arguments.longValue("-p", PIPELINE_DEPTH);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+            return (depth < 1 || depth > PIPELINE_DEPTH_MAX) ? -1 : (int) depth;
+        }
 
-                if (i == numChunks - 1 && remainder != 0) {
-                    length = remainder;
-                }
+        private boolean isPattern(String name) {
+            return name.indexOf('*') >= 0 || name.indexOf('?') >= 0 || name.indexOf('[') >= 0 || name.indexOf('{') >= 0;
+        }
 
-                // Writes data
-                socket_out.write(byteArr, offset, length);
+        /* Socket Protocol: see myftpprotocol ($glob)
+         *      Returns the names matching a remote pattern, null when the server can not expand patterns.
+         */
+        private List<String> remoteNames(String pattern) throws IOException {
+            if (!framed || !features.contains(myftpprotocol.FEATURE_GLOB)) return null;
+            socket_out.writeUTF(myftpprotocol.GLOB + " " + pattern);
+
+            int status = socket_in.readInt();
+            StringBuilder text = new StringBuilder();
+            int length;
+            while ((length = socket_in.readInt()) > 0) {
+                byte[] chunk = new byte[length];
+                socket_in.readFully(chunk);
+                text.append(new String(chunk, StandardCharsets.UTF_8));
+            }
 
-                // TODO: Check heartbeat
-                boolean terminated = (socket_in.readInt() != 0);
+            List<String> names = new ArrayList<>();
+            if (status != 0) return names;
+            for (String name : text.toString().split("\n")) {
+                if (!name.isEmpty()) names.add(name);
+            }
+            return names;
+        }
 
-                if (terminated) {
-                    System.out.println("\nPut command " + commandId + " terminated");
-                    printPrompt();
-                    return;
+        // Regular files matching a local pattern, whose last path element may hold glob characters
+        private List<String> localNames(String pattern) {
+            Path path = Paths.get(pattern);
+            Path parent = path.getParent();
+            List<String> names = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(
+                    (parent != null) ? parent : Paths.get("").toAbsolutePath(), path.getFileName().toString())) {
+                for (Path entry : entries) {
+                    String name = entry.getFileName().toString();
+                    if (!name.startsWith(".") && Files.isRegularFile(entry))
+                        names.add((parent != null) ? parent.resolve(name).toString() : name);
                 }
+            } catch (IOException | IllegalArgumentException e) {
+                // Unreadable directory or invalid pattern, nothing matches
             }
-            socket_out.flush();
+            Collections.sort(names);
+            return names;
+        }
 
-            // Get response status
-            int code = socket_in.readInt();
-            if (code != 0) {
-                System.out.println("FTP Error: Upload failed");
-            } else {
-                System.out.println("Upload success! " + byteArr.length + " Bytes copied.");
-            }
+        private String localName(String remote) {
+            String[] path = remote.split("/");
+            return path[path.length - 1];
+        }
 
-            printPrompt();
+        // The connection broke, whatever was not finished failed with it
+        private void failBatch(Deque<BatchFile> inFlight, Deque<BatchFile> pending) {
+            for (BatchFile file : inFlight) file.error = "connection lost";
+            for (BatchFile file : pending) file.error = "connection lost";
         }
 
+        // Per file status in request order, then the totals
+        private void printBatch(String command, List<BatchFile> files, long start) {
+            double seconds = Math.max(1, System.nanoTime() - start) / 1e9;
+            long bytes = 0;
+            int succeeded = 0;
+            if (isThread) console.println();
+            for (BatchFile file : files) {
+                if (file.error == null) {
+                    succeeded++;
+                    bytes += file.bytes;
+                    console.println(String.format("    ok      %12d  %s", file.bytes, file.name));
+                } else {
+                    console.println(String.format("    failed  %12s  %s: %s", "-", file.name, file.error));
+                }
+            }
+            console.println(String.format("%s: %d of %d files, %d Bytes in %.3f s (%.2f MB/s)", command,
+                    succeeded, files.size(), bytes, seconds, bytes / seconds / 1e6));
+            printPrompt();
+        }
 
         /* ========================= */
         /* ===         cd        === */
@@ -388,7 +1735,7 @@ public class myftp {
         private void cd(String line, String[] cmd_args) throws IOException {
 
             if (cmd_args.length != 2) {
-                System.out.println("FTP Error: Must enter directory");
+                console.println("FTP Error: Must enter directory");
                 printPrompt();
                 return;
             }
@@ -403,9 +1750,13 @@ public class myftp {
 
         private void mkdir(String line) throws IOException {
             socket_out.writeUTF(line);
+            if (framed) {
+                readResponse();
+                return;
+            }
             int code = socket_in.readInt();
             if (code != 0) {
-                System.out.println("FTP Error: Directory already exists");
+                console.println("FTP Error: Directory already exists");
                 printPrompt();
                 return;
             }
@@ -419,10 +1770,37 @@ public class myftp {
 
         private void terminate(String[] cmd_args) throws IOException {
             if (cmd_args.length < 2) {
-                System.out.println("Error: Terminate command requires command id");
+                console.println("Error: Terminate command requires command id");
+                return;
+            }
+
+            // A segmented get is terminated by the command id of its probe, which itself is already done
+            SegmentedGet segmentedGet;
+            synchronized (segmentedGets) {
+                segmentedGet = segmentedGets.get(parseCommandId(cmd_args[1]));
+            }
+            if (segmentedGet != null) {
+
+                // Through the terminate port, whose lack of a reply keeps ranges that are already sent quiet
+                for (int range : segmentedGet.terminate()) {
+                    sendTerminate(String.valueOf(range));
+                }
+                printPrompt();
+                return;
+            }
+
+            // In-band on this connection, which is idle while the command runs on another one
+            if (features.contains(myftpprotocol.FEATURE_CANCEL)) {
+                socket_out.writeUTF(myftpprotocol.TERMINATE + " " + cmd_args[1]);
+                printInput();
                 return;
             }
 
+            if (sendTerminate(cmd_args[1])) printPrompt();
+        }
+
+        // Sends a command id to the server's terminate port, false if it could not be reached
+        private boolean sendTerminate(String commandId) {
             Socket terminate_socket;
             DataOutputStream out;
 
@@ -443,8 +1821,8 @@ public class myftp {
                 // CHECK IF THREAD SHOULD GIVE UP
                 timeElapsed = System.currentTimeMillis() - startTime;
                 if (timeElapsed > timeOutTime) {
-                    System.out.println("Error: Could not connect to terminate server " + address + ":" + tport);
-                    return;
+                    console.println("Error: Could not connect to terminate server " + address + ":" + tport);
+                    return false;
                 }
 
                 try {
@@ -457,12 +1835,20 @@ public class myftp {
             try {
                 // Gets input / output streams for the socket
                 out = new DataOutputStream(terminate_socket.getOutputStream());
-                out.writeUTF(cmd_args[1]);
+                out.writeUTF(commandId);
             } catch (IOException e) {
                 e.printStackTrace();
             }
+            return true;
+        }
 
-            printPrompt();
+        // The command id terminate was given, null if it is not a number (the server answers for those)
+        private Integer parseCommandId(String id) {
+            try {
+                return Integer.valueOf(id);
+            } catch (NumberFormatException e) {
+                return null;
+            }
         }
 
 
@@ -476,6 +1862,27 @@ public class myftp {
         }
 
 
+        /* ========================= */
+        /* ===         ls        === */
+        /* ========================= */
+
+        // Batched listings are printed as they arrive, older servers answer ls like any other command
+        private void ls(String line, String[] args) throws IOException {
+            if (!features.contains(myftpprotocol.FEATURE_LIST)) {
+                other(line);
+                return;
+            }
+
+            // 0. Send Command
+            StringBuilder request = new StringBuilder("ls -b");
+            for (int i = 1; i < args.length; i++) request.append(' ').append(args[i]);
+            socket_out.writeUTF(request.toString());
+
+            // 1. - 3. Print the batches as they arrive
+            readResponse();
+        }
+
+
         /* ========================= */
         /* ===       other       === */
         /* ========================= */
@@ -488,20 +1895,18 @@ public class myftp {
         }
 
         private void getClientDir() {
-            if (!command.split(" ")[0].equalsIgnoreCase("quit")) {
-                try {
-                    String command = "$gwd " + clientId;
-                    socket_out.writeUTF(command);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+            try {
+                String command = "$gwd " + clientId;
+                socket_out.writeUTF(command);
+            } catch (IOException e) {
+                e.printStackTrace();
             }
         }
 
         private void cdClient(String[] cmd_args) throws IOException {
 
             if (cmd_args.length != 2) {
-                System.out.println("FTP Error: Must enter directory");
+                console.println("FTP Error: Must enter directory");
                 printPrompt();
                 return;
             }
@@ -522,6 +1927,10 @@ public class myftp {
 
         private void printInput() {
             try {
+                if (framed) {
+                    readResponse();
+                    return;
+                }
                 waitForResponse();
 //                if (isThread)
 
@@ -531,10 +1940,10 @@ public class myftp {
                     output += input;
                 }
 
-                if (isThread && output.length() > 0) System.out.println();
+                if (isThread && output.length() > 0) console.println();
 
                 if (!isThread || (isThread && output.length() > 0)) {
-                    System.out.print(output);
+                    console.print(output);
                     printPrompt();
                 }
 
@@ -543,6 +1952,27 @@ public class myftp {
             }
         }
 
+        /* Socket Protocol (framed response, see myftpprotocol):
+         *          1. Get status
+         *   Loop:  2. Get chunk length and chunk, printed right away
+         *          3. Get the 0 length that ends the response
+         */
+        private int readResponse() throws IOException {
+            int status = socket_in.readInt();
+            int length;
+            boolean printed = false;
+            while ((length = socket_in.readInt()) > 0) {
+                byte[] chunk = new byte[length];
+                socket_in.readFully(chunk);
+                if (!printed && isThread) console.println();
+                console.print(new String(chunk, StandardCharsets.UTF_8));
+                printed = true;
+            }
+            if (!isThread || printed) printPrompt();
+            return status;
+        }
+
+        // Legacy servers: wait for the first reply, then take whatever else has arrived
         private void waitForResponse() throws IOException{
             while (socket_in.available() <= 0) {
                 try {
@@ -554,7 +1984,7 @@ public class myftp {
         }
 
         private void printPrompt() {
-            System.out.print(prompt);
+            console.print(prompt);
         }
 
 
@@ -574,6 +2004,7 @@ public class myftp {
 
                     // Get socket connection
                     socket = new Socket(address, nport);
+                    socket.setTcpNoDelay(true);
 
                     // Gets input / output streams for the socket
                     socket_in = new DataInputStream(socket.getInputStream());
@@ -585,13 +2016,14 @@ public class myftp {
                         socket_in.readInt();
                     }
 
+                    negotiateVersion();
                     break;
 
                 } catch (IOException e) {
                     // Errors expected, simply tries again 1 second later
                 }
 
-                if (uniqueClient) System.out.println("Unable to connect... Trying again in 1 second");
+                if (uniqueClient) console.println("Unable to connect... Trying again in 1 second");
 
                 try {
                     Thread.sleep(1000);
@@ -601,14 +2033,85 @@ public class myftp {
             }
         }
 
+        // Servers that do not know $hello answer with an invalid command error and stay on version 1
+        private void negotiateVersion() throws IOException {
+            socket_out.writeUTF(myftpprotocol.HELLO + " " + offeredVersion + " " + myftpprotocol.FEATURE_FRAMED);
+            String[] reply = socket_in.readUTF().trim().split(" ");
+            version = myftpprotocol.VERSION_LEGACY;
+            features = new HashSet<>();
+            if (reply.length > 1 && reply[0].equals(myftpprotocol.HELLO)) {
+                try {
+                    version = Integer.parseInt(reply[1]);
+                } catch (NumberFormatException e) {
+                    // Keep version 1
+                }
+                features.addAll(Arrays.asList(reply).subList(2, reply.length));
+            }
+            framed = features.contains(myftpprotocol.FEATURE_FRAMED);
+        }
+
+        // File sizes are 64 bit from protocol version 2 on
+        private long readSize() throws IOException {
+            return (version < myftpprotocol.VERSION_64BIT) ? socket_in.readInt() : socket_in.readLong();
+        }
+
         private void close() throws IOException {
             socket_in.close();
             socket_out.close();
-            socket.close();
+            if (socket != null) socket.close();
+        }
+
+        // A stream that failed halfway is cancelled, the server drops whatever is left of its command
+        private void closeStream() {
+            if (failed) stream.cancel();
+            else closeQuietly();
+        }
+
+        /* Socket Protocol: see myftpprotocol (multiplexing)
+         *      After the reply this connection only carries frames, the worker itself is not used anymore.
+         */
+        private myftpmux startMux() throws IOException {
+            socket_out.writeUTF(myftpmux.MUX);
+            if (!socket_in.readUTF().equals(myftpmux.MUX)) throw new IOException("Unexpected $mux reply");
+            return new myftpmux(socket);
         }
 
         private boolean isClosed() {
             return socket.isClosed();
         }
+
+        // An idle connection has nothing to read, end of stream means the server closed it
+        private boolean isAlive() {
+            try {
+                if (socket.isClosed() || socket_in.available() > 0) return false;
+                socket.setSoTimeout(1);
+                try {
+                    socket_in.read();
+                    return false;
+                } catch (SocketTimeoutException e) {
+                    return true;
+                } finally {
+                    socket.setSoTimeout(0);
+                }
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        private void quitQuietly() {
+            try {
+                quit();
+            } catch (IOException e) {
+                closeQuietly();
+            }
+        }
+
+        private void closeQuietly() {
+            try {
+                close();
+            } catch (IOException e) {
+                // Already broken
+            }
+        }
     }
 }
@@ -0,0 +1,486 @@
+/* FTP ARCHIVE:
+ *      Directory trees as one stream for "get -r" and "put -r", shared by the client (myftp) and the server
+ *      (myftpserver). The whole tree goes over the connection as a sequence of records
+ *
+ *          [type (byte)][length (int)][payload]
+ *
+ *      with a payload of at most DATA_SIZE bytes. Paths are relative to the directory being sent, with '/'
+ *      between their elements, and never hold empty, "." or ".." elements:
+ *
+ *          RECORD_DIRECTORY    [path]                      a directory, sent before anything in it
+ *          RECORD_FILE         [modified (long)][path]     a regular file starts, modified in ms since the epoch
+ *          RECORD_DATA         [data]                      the next bytes of the file
+ *          RECORD_FILE_END                                 the file is complete
+ *          RECORD_FAILED       [path]                      the file could not be read, drop what arrived of it
+ *          RECORD_END          [files (int)][failed (int)][bytes (long)]   the whole tree was sent
+ *          RECORD_ABORT                                    the sender stopped, the tree is incomplete
+ *
+ *      Only directories and regular files are sent, links and special files are left out. The sender walks
+ *      the tree and reads the files on a thread of its own, QUEUE_RECORDS records ahead of the socket, so
+ *      opening and reading the next files overlaps with sending. The receiver writes every record to disk
+ *      as it arrives, so neither side ever holds more than a few records of the tree.
+ */
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
+
+final class myftparchive {
+
+    private myftparchive() {
+    }
+
+    static final byte RECORD_END = 0;
+    static final byte RECORD_DIRECTORY = 1;
+    static final byte RECORD_FILE = 2;
+    static final byte RECORD_DATA = 3;
+    static final byte RECORD_FILE_END = 4;
+    static final byte RECORD_FAILED = 5;
+    static final byte RECORD_ABORT = 6;
+
+    static final int RECORD_HEADER_SIZE = 5;
+    static final int DATA_SIZE = 64 * 1024;
+
+    // Records the walking thread may be ahead of the socket, and the data buffers they share
+    private static final int QUEUE_RECORDS = 64;
+    private static final int DATA_BUFFERS = 16;
+
+    // Data records are the only ones of this size, their buffers go back to the pool once sent
+    private static final int DATA_RECORD_SIZE = RECORD_HEADER_SIZE + DATA_SIZE;
+
+    /* How the sender opens a file it found */
+    interface Opener {
+        InputStream open(Path file) throws IOException;
+    }
+
+    /* Where the receiver puts what arrives */
+    interface Sink {
+
+        // Creates dir if it is missing
+        void directory(Path dir) throws IOException;
+
+        // Opens the stream the data of file is written to
+        OutputStream create(Path file) throws IOException;
+
+        // file arrived completely, out is still open
+        void commit(Path file, OutputStream out, FileTime modified) throws IOException;
+
+        // file will not be completed, out may be null
+        void discard(Path file, OutputStream out);
+    }
+
+    static byte[] record(byte type, int length) {
+        return ByteBuffer.allocate(RECORD_HEADER_SIZE + length).put(type).putInt(length).array();
+    }
+
+    /* ========================= */
+    /* ===      writer       === */
+    /* ========================= */
+
+    /* Sends one directory tree */
+    static final class Writer {
+
+        private final Path root;
+        private final Predicate<Path> skip;
+        private final Opener opener;
+        private final ThreadFactory threads;
+
+        private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(QUEUE_RECORDS);
+        private final BlockingQueue<byte[]> buffers = new ArrayBlockingQueue<>(DATA_BUFFERS);
+        private int allocated;
+        private volatile boolean stopped;
+
+        // Written by the walking thread, read once it finished
+        private int files;
+        private int failed;
+        private long bytes;
+
+        // Files and directories skip accepts are left out, subtrees included
+        Writer(Path root, Predicate<Path> skip, Opener opener, ThreadFactory threads) {
+            this.root = root;
+            this.skip = skip;
+            this.opener = opener;
+            this.threads = threads;
+        }
+
+        // Sends the tree to out, stops with an abort once cancelled is true, returns false if it did
+        boolean send(OutputStream socket, BooleanSupplier cancelled) throws IOException {
+            Thread walker = threads.newThread(this::walk);
+            walker.start();
+
+            OutputStream out = new BufferedOutputStream(socket, DATA_SIZE);
+            try {
+                while (true) {
+
+                    // Whatever is buffered goes out before waiting for the walking thread
+                    byte[] record = queue.poll();
+                    if (record == null) {
+                        out.flush();
+                        record = queue.take();
+                    }
+
+                    byte type = record[0];
+                    if (type != RECORD_END && type != RECORD_ABORT && cancelled.getAsBoolean()) {
+                        record = record(RECORD_ABORT, 0);
+                        type = RECORD_ABORT;
+                    }
+                    out.write(record, 0, RECORD_HEADER_SIZE + ByteBuffer.wrap(record, 1, 4).getInt());
+                    if (record.length == DATA_RECORD_SIZE) buffers.offer(record);
+
+                    if (type == RECORD_END || type == RECORD_ABORT) {
+                        out.flush();
+                        return type == RECORD_END;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Directory transfer interrupted");
+            } finally {
+                stopped = true;
+                walker.interrupt();
+                try {
+                    walker.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        int files() {
+            return files;
+        }
+
+        int failed() {
+            return failed;
+        }
+
+        long bytes() {
+            return bytes;
+        }
+
+        private void walk() {
+            boolean complete = false;
+            try {
+                Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+
+                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes)
+                            throws IOException {
+                        if (dir.equals(root)) return FileVisitResult.CONTINUE;
+                        if (skip.test(dir)) return FileVisitResult.SKIP_SUBTREE;
+                        put(named(RECORD_DIRECTORY, dir, 0));
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                        if (attributes.isRegularFile() && !skip.test(file)) sendFile(file, attributes);
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+                        fail(file);
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                        if (e != null) fail(dir);
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+                complete = true;
+            } catch (IOException e) {
+                // The walk failed or was stopped, the tree ends with an abort
+            } finally {
+                if (!stopped) {
+                    try {
+                        queue.put(complete ? end() : record(RECORD_ABORT, 0));
+                    } catch (InterruptedException e) {
+                        // Nobody is sending any more
+                    }
+                }
+            }
+        }
+
+        private void sendFile(Path file, BasicFileAttributes attributes) throws IOException {
+            InputStream in;
+            try {
+                in = opener.open(file);
+            } catch (IOException e) {
+                if (stopped) throw e;
+                fail(file);
+                return;
+            }
+
+            try (in) {
+                put(named(RECORD_FILE, file, attributes.lastModifiedTime().toMillis()));
+                long sent = 0;
+                while (true) {
+                    byte[] record = buffer();
+                    int length = in.readNBytes(record, RECORD_HEADER_SIZE, DATA_SIZE);
+                    if (length == 0) {
+                        buffers.offer(record);
+                        break;
+                    }
+                    record[0] = RECORD_DATA;
+                    ByteBuffer.wrap(record, 1, 4).putInt(length);
+                    put(record);
+                    sent += length;
+                    if (length < DATA_SIZE) break;
+                }
+                put(record(RECORD_FILE_END, 0));
+                files++;
+                bytes += sent;
+            } catch (IOException e) {
+                if (stopped) throw e;
+
+                // Unreadable part way through, the receiver drops what it got
+                fail(file);
+            }
+        }
+
+        private void fail(Path path) throws IOException {
+            failed++;
+            put(named(RECORD_FAILED, path, 0));
+        }
+
+        // Record holding the path relative to root, after the modified time for RECORD_FILE
+        private byte[] named(byte type, Path path, long modified) {
+            StringBuilder name = new StringBuilder();
+            for (Path element : root.relativize(path)) {
+                if (name.length() > 0) name.append('/');
+                name.append(element);
+            }
+            byte[] bytes = name.toString().getBytes(StandardCharsets.UTF_8);
+            int prefix = (type == RECORD_FILE) ? 8 : 0;
+
+            ByteBuffer record = ByteBuffer.wrap(record(type, prefix + bytes.length));
+            record.position(RECORD_HEADER_SIZE);
+            if (type == RECORD_FILE) record.putLong(modified);
+            return record.put(bytes).array();
+        }
+
+        private byte[] end() {
+            ByteBuffer record = ByteBuffer.wrap(record(RECORD_END, 16));
+            record.position(RECORD_HEADER_SIZE);
+            return record.putInt(files).putInt(failed).putLong(bytes).array();
+        }
+
+        private void put(byte[] record) throws IOException {
+            try {
+                if (stopped) throw new InterruptedIOException();
+                queue.put(record);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+
+        // A data record buffer, at most DATA_BUFFERS of them exist per tree
+        private byte[] buffer() throws IOException {
+            byte[] record = buffers.poll();
+            if (record != null) return record;
+            if (allocated < DATA_BUFFERS) {
+                allocated++;
+                return new byte[DATA_RECORD_SIZE];
+            }
+            try {
+                return buffers.take();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /* ========================= */
+    /* ===      reader       === */
+    /* ========================= */
+
+    /* Receives one directory tree into root */
+    static final class Reader {
+
+        private final Path root;
+        private final Sink sink;
+        private final byte[] buffer = new byte[DATA_SIZE];
+        private final byte[] header = new byte[RECORD_HEADER_SIZE];
+
+        // The file being received, out is null once writing it failed
+        private Path current;
+        private OutputStream out;
+        private long modified;
+        private long fileBytes;
+
+        private boolean started;
+        private boolean discarding;
+        private boolean complete;
+        private int files;
+        private int failed;
+        private long bytes;
+
+        Reader(Path root, Sink sink) {
+            this.root = root;
+            this.sink = sink;
+        }
+
+        // Handles the next record, returns false after the last one
+        boolean next(DataInputStream in) throws IOException {
+            if (!started) {
+                started = true;
+                if (!discarding) directory(root);
+            }
+
+            in.readFully(header);
+            byte type = header[0];
+            int length = ByteBuffer.wrap(header, 1, 4).getInt();
+            if (length < 0 || length > DATA_SIZE) throw new IOException("Invalid archive record length " + length);
+            in.readFully(buffer, 0, length);
+            ByteBuffer record = ByteBuffer.wrap(buffer, 0, length);
+
+            switch (type) {
+                case RECORD_DIRECTORY:
+                    Path dir = path(record);
+                    if (!discarding) directory(dir);
+                    return true;
+
+                case RECORD_FILE:
+                    if (current != null) throw new IOException("Archive file started inside a file");
+                    if (length < 8) throw new IOException("Invalid archive file record");
+                    modified = record.getLong();
+                    current = path(record);
+                    if (!discarding) {
+                        try {
+                            out = sink.create(current);
+                        } catch (IOException e) {
+                            out = null;
+                        }
+                    }
+                    return true;
+
+                case RECORD_DATA:
+                    if (current == null) throw new IOException("Archive data outside a file");
+                    fileBytes += length;
+                    if (out != null) {
+                        try {
+                            out.write(buffer, 0, length);
+                        } catch (IOException e) {
+                            sink.discard(current, out);
+                            out = null;
+                        }
+                    }
+                    return true;
+
+                case RECORD_FILE_END:
+                    if (current == null) throw new IOException("Archive file ended outside a file");
+                    files++;
+                    bytes += fileBytes;
+                    fileBytes = 0;
+                    if (out != null) {
+                        try {
+                            sink.commit(current, out, FileTime.fromMillis(modified));
+                        } catch (IOException e) {
+                            sink.discard(current, null);
+                            failed++;
+                        }
+                    } else if (!discarding) {
+                        sink.discard(current, null);
+                        failed++;
+                    }
+                    current = null;
+                    out = null;
+                    return true;
+
+                case RECORD_FAILED:
+                    drop();
+                    return true;
+
+                case RECORD_END:
+                    if (current != null || length != 16) throw new IOException("Invalid archive end");
+                    int sentFiles = record.getInt();
+                    failed += record.getInt();
+                    long sentBytes = record.getLong();
+                    if (sentFiles != files || sentBytes != bytes) throw new IOException("Archive incomplete");
+                    complete = !discarding;
+                    return false;
+
+                case RECORD_ABORT:
+                    drop();
+                    return false;
+
+                default:
+                    throw new IOException("Invalid archive record " + type);
+            }
+        }
+
+        // Writes nothing from now on, after the receiver cancelled the transfer
+        void discard() {
+            discarding = true;
+            drop();
+        }
+
+        // Drops the file being received, for transfers that end without RECORD_END
+        void close() {
+            drop();
+        }
+
+        // The tree ended with RECORD_END and nothing was discarded
+        boolean complete() {
+            return complete;
+        }
+
+        int files() {
+            return files;
+        }
+
+        // Files and directories the sender could not read or the receiver could not write
+        int failed() {
+            return failed;
+        }
+
+        long bytes() {
+            return bytes;
+        }
+
+        private void directory(Path dir) {
+            try {
+                sink.directory(dir);
+            } catch (IOException e) {
+                // The files in it fail on their own
+                failed++;
+            }
+        }
+
+        // The sender only counts the bytes of files it finished, so neither does the receiver
+        private void drop() {
+            if (current != null) sink.discard(current, out);
+            current = null;
+            out = null;
+            fileBytes = 0;
+        }
+
+        private Path path(ByteBuffer record) throws IOException {
+            String name = new String(buffer, record.position(), record.remaining(), StandardCharsets.UTF_8);
+            for (String element : name.split("/", -1)) {
+                if (element.isEmpty() || element.equals(".") || element.equals(".."))
+                    throw new IOException("Invalid archive path \"" + name + "\"");
+            }
+            try {
+                return root.resolve(name);
+            } catch (InvalidPathException e) {
+                throw new IOException("Invalid archive path \"" + name + "\"", e);
+            }
+        }
+    }
+}
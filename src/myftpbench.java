@@ -0,0 +1,741 @@
+/* FTP BENCHMARK:
+ *      Runs a server (myftpserver) and its clients (myftp) in one process over loopback and times the commands
+ *      the clients run, through the same code the two programs run. Every scenario first runs for the warmup
+ *      time, so the JIT has compiled the hot paths, then for the measuring time, and each client completes at
+ *      least one command in both. Reported per scenario:
+ *
+ *          ops, ops/s, MB/s        commands completed while measuring, and the file bytes they moved
+ *          p50, p99, max           command latency in ms, as the client sees it
+ *          alloc/op, alloc MB/s    bytes allocated by all threads, client and server side together
+ *          gc, gc ms               collections and their time while measuring
+ *          errors                  commands that printed an error or failed, and files of the wrong size
+ *
+ *      Transfers use random data, so -z measures the incompressible case. Files of up to 32 MB are served
+ *      from the server's content cache once the warmup has read them. Packet and frame sizes are constants
+ *      of the protocol, the transfer ops are what selects them: get uses GET_WINDOW_SIZE packets, put the
+ *      windowed PUT_FRAME_SIZE frames, and -z the codec's blocks. Ops starting with "v1 " run on clients
+ *      that negotiated protocol version 1, so "v1 put" is the stop-and-wait put with a status per chunk.
+ *
+ *      Loopback has next to no latency, which hides what a round trip per chunk costs. With a latency the
+ *      clients connect through a DelayProxy that holds every chunk for half the round trip each way.
+ *
+ *      The "fork ls" command is what the server used to do for every ls: fork /bin/ls on the directory and
+ *      concatenate its output lines into one String. It runs in the benchmark itself, so its forks per second
+ *      compare with the ls round trips per second, which also include the connection and the client.
+ *      entries=<n> adds n empty files to the listed directory.
+ *
+ *      The "registry" scenario has every client connect, get an empty range (which takes a command id) and
+ *      quit, over and over, so the server's client and command registries see that many threads adding and
+ *      removing entries at once. A command or client id handed out twice, and clients or commands still
+ *      registered once every client has quit, count as errors.
+ *
+ *      The client keeps its local files in the current directory, so run the benchmark in an empty one
+ *      ("make bench" does). The server's files go to a temporary directory, both are removed at the end.
+ */
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+import java.util.stream.Stream;
+
+public class myftpbench {
+
+    private static final String ADDRESS = "127.0.0.1";
+    private static final String FILE_PREFIX = "myftpbench-";
+    private static final double[] QUANTILES = {0.5, 0.99};
+    private static final String LEGACY = "v1 ";
+    private static final String FORK_LS = "fork ls";
+    private static final String REGISTRY = "registry";
+
+    // How long the server may take to deregister the clients of a registry scenario once they have quit
+    private static final long DRAIN_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    // Defaults, see main for the options that change them
+    private static final String MODE_THREAD = "thread";
+    private static final String SIZES = "1K,64K,1M,64M,1G";
+    private static final String CLIENTS = "1,4,16";
+    private static final String OPS = "get,put,get -z,put -z";
+    private static final String COMMANDS = "cd,pwd,ls";
+    private static final long WARMUP = 2;
+    private static final long TIME = 5;
+    private static final long LATENCY = 0;
+    private static final int ENTRIES = 0;
+    private static final String REGISTRY_CLIENTS = "";
+
+    private final String mode;
+    private final List<String> sizes;
+    private final int[] clients;
+    private final List<String> ops;
+    private final List<String> commands;
+    private final long warmupNanos;
+    private final long timeNanos;
+    private final long latency;
+    private final int entries;
+    private final int[] registry;
+
+    // Reports go to the real standard output, everything the server and the clients print to the counter
+    private final PrintStream report = System.out;
+    private final ErrorCounter output = new ErrorCounter();
+
+    private final Path local = Paths.get("").toAbsolutePath();
+    private Path remote;
+    private myftpserver server;
+    private final List<myftp> sessions = new ArrayList<>();
+    private final List<myftp> legacySessions = new ArrayList<>();
+
+    myftpbench(String mode, List<String> sizes, int[] clients, List<String> ops, List<String> commands,
+            long warmup, long time, long latency, int entries, int[] registry) {
+        this.mode = mode;
+        this.sizes = sizes;
+        this.clients = clients;
+        this.ops = ops;
+        this.commands = commands;
+        this.warmupNanos = warmup * 1_000_000_000L;
+        this.timeNanos = time * 1_000_000_000L;
+        this.latency = latency;
+        this.entries = entries;
+        this.registry = registry;
+    }
+
+    public static void main(String args[]) {
+        String mode = MODE_THREAD;
+        String sizes = SIZES;
+        String clients = CLIENTS;
+        String ops = OPS;
+        String commands = COMMANDS;
+        long warmup = WARMUP;
+        long time = TIME;
+        long latency = LATENCY;
+        int entries = ENTRIES;
+        String registry = REGISTRY_CLIENTS;
+
+        try {
+            for (String arg : args) {
+                int equals = arg.indexOf('=');
+                String option = (equals < 0) ? arg.toLowerCase() : arg.substring(0, equals).toLowerCase();
+                String value = (equals < 0) ? "" : arg.substring(equals + 1);
+                switch (option) {
+                    case "thread":
+                    case "virtual":
+                    case "nio":
+                        mode = option;
+                        break;
+                    case "sizes":
+                        sizes = value;
+                        break;
+                    case "clients":
+                        clients = value;
+                        break;
+                    case "ops":
+                        ops = value;
+                        break;
+                    case "commands":
+                        commands = value;
+                        break;
+                    case "warmup":
+                        warmup = Long.parseLong(value);
+                        break;
+                    case "time":
+                        time = Long.parseLong(value);
+                        break;
+                    case "latency":
+                        latency = Long.parseLong(value);
+                        if (latency < 0) throw new IllegalArgumentException(arg);
+                        break;
+                    case "entries":
+                        entries = Integer.parseInt(value);
+                        if (entries < 0) throw new IllegalArgumentException(arg);
+                        break;
+                    case "registry":
+                        registry = value;
+                        break;
+                    default:
+                        throw new IllegalArgumentException(arg);
+                }
+            }
+            for (String size : split(sizes)) myftptools.parseSize(size);
+            for (String level : split(clients)) {
+                if (Integer.parseInt(level) < 1) throw new IllegalArgumentException(level);
+            }
+            for (String level : split(registry)) {
+                if (Integer.parseInt(level) < 1) throw new IllegalArgumentException(level);
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println("FTP Bench Error: Unable to recognize \"" + e.getMessage() + "\". Options are a "
+                    + "server mode (thread | virtual | nio), sizes=<1K,1M,...>, clients=<1,4,...>, "
+                    + "ops=<get,put,get -z,v1 put,...>, commands=<cd,pwd,ls,fork ls>, warmup=<seconds>, "
+                    + "time=<seconds>, latency=<round trip ms>, entries=<files to list> and registry=<64,...>");
+            System.exit(0);
+        }
+
+        int[] levels = split(clients).stream().mapToInt(Integer::parseInt).toArray();
+        int[] registryLevels = split(registry).stream().mapToInt(Integer::parseInt).toArray();
+        try {
+            new myftpbench(mode, split(sizes), levels, split(ops), split(commands), warmup, time, latency,
+                    entries, registryLevels).run();
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+        }
+        System.exit(0);
+    }
+
+    private void run() throws IOException, InterruptedException {
+        remote = Files.createTempDirectory(FILE_PREFIX);
+        int nport = freePort();
+        int tport = freePort();
+
+        System.setOut(new PrintStream(output, true));
+        server = new myftpserver(nport, tport, mode);
+
+        // Clients reach the server through the proxy when there is a latency to add
+        int port = nport;
+        if (latency > 0) {
+            DelayProxy proxy = new DelayProxy(nport, latency);
+            daemon(proxy).start();
+            port = proxy.port();
+        }
+
+        int most = Arrays.stream(clients).max().orElse(1);
+        boolean legacyOps = ops.stream().anyMatch(op -> op.startsWith(LEGACY));
+        for (int i = 0; i < most; i++) {
+            sessions.add(connect(port, tport, myftpprotocol.VERSION));
+            if (legacyOps) legacySessions.add(connect(port, tport, myftpprotocol.VERSION_LEGACY));
+        }
+
+        report.println(String.format("myftpbench: %s server, %d CPUs, Java %s, warmup %d s, measuring %d s%s",
+                mode, Runtime.getRuntime().availableProcessors(), System.getProperty("java.version"),
+                warmupNanos / 1_000_000_000L, timeNanos / 1_000_000_000L,
+                latency > 0 ? ", " + latency + " ms round trip" : ""));
+        report.println(String.format("%-10s %6s %7s %8s %10s %9s %9s %9s %9s %11s %10s %5s %7s %6s",
+                "op", "size", "clients", "ops", "ops/s", "MB/s", "p50 ms", "p99 ms", "max ms",
+                "alloc/op", "alloc MB/s", "gc", "gc ms", "errors"));
+
+        try {
+            // Round trips, against a directory that holds every benchmark file
+            for (String size : sizes) createFiles(size, most);
+            for (int i = 0; i < entries; i++) Files.createFile(remote.resolve(FILE_PREFIX + "entry-" + i));
+            for (String command : commands) {
+                for (int level : clients) {
+                    String line = command.equals("cd") ? "cd " + remote : command;
+                    print(command, "", level, measure(level, 0,
+                            i -> command.equals(FORK_LS) ? () -> forkList(remote) : command(sessions.get(i), line)));
+                }
+            }
+            for (int level : registry) print(REGISTRY, "", level, registry(level, port, tport));
+
+            // Transfers
+            for (String op : ops) {
+                for (String size : sizes) {
+                    for (int level : clients) {
+                        boolean legacy = op.startsWith(LEGACY);
+                        String line = legacy ? op.substring(LEGACY.length()) : op;
+                        List<myftp> running = legacy ? legacySessions : sessions;
+                        Result result = measure(level, myftptools.parseSize(size),
+                                i -> command(running.get(i), line + " " + fileName(size, i)));
+                        result.errors += checkFiles(line.startsWith("get") ? local : remote, size, level);
+                        print(op, size, level, result);
+                    }
+                }
+            }
+        } finally {
+            for (myftp session : sessions) session.close();
+            for (myftp session : legacySessions) session.close();
+            clean();
+        }
+    }
+
+    private myftp connect(int port, int tport, int version) throws IOException {
+        myftp session = myftp.connect(ADDRESS, port, tport, System.out, version);
+        session.command("cd " + remote);
+        return session;
+    }
+
+    /* ========================= */
+    /* ===     measuring     === */
+    /* ========================= */
+
+    /* What one client does once per sample */
+    private interface Action {
+        void run() throws IOException;
+    }
+
+    private static Action command(myftp session, String line) {
+        return () -> session.command(line);
+    }
+
+    // Lists dir the way the server did before it listed in-process, collecting the output line by line
+    // into one String as it did (which takes quadratic time), only without sending it
+    private static void forkList(Path dir) throws IOException {
+        Process process = new ProcessBuilder("ls", dir.toString()).redirectErrorStream(true).start();
+        String output = "";
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = in.readLine()) != null) output += line + "\n";
+        }
+        try {
+            if (process.waitFor() != 0) throw new IOException("ls exited with " + process.exitValue());
+        } catch (InterruptedException e) {
+            process.destroy();
+            throw new IOException("Interrupted while waiting for ls", e);
+        }
+    }
+
+    private static final class Result {
+
+        long ops;
+        long bytes;
+        long nanos;
+        long[] latencies;
+        long allocated;
+        long collections;
+        long collectionMillis;
+        long errors;
+    }
+
+    // Runs the command of every client for the warmup and then the measuring time
+    private Result measure(int level, long fileSize, IntFunction<Action> action) throws InterruptedException {
+        runClients(level, action, warmupNanos);
+
+        long errors = output.errors();
+        long allocated = allocatedBytes();
+        long collections = collections();
+        long collectionMillis = collectionMillis();
+        long start = System.nanoTime();
+
+        Samples[] samples = runClients(level, action, timeNanos);
+
+        Result result = new Result();
+        result.nanos = System.nanoTime() - start;
+        result.allocated = allocatedBytes() - allocated;
+        result.collections = collections() - collections;
+        result.collectionMillis = collectionMillis() - collectionMillis;
+        result.errors = output.errors() - errors;
+
+        int total = 0;
+        for (Samples client : samples) total += client.count;
+        result.latencies = new long[total];
+        int offset = 0;
+        for (Samples client : samples) {
+            System.arraycopy(client.values, 0, result.latencies, offset, client.count);
+            offset += client.count;
+            result.errors += client.failures;
+        }
+        Arrays.sort(result.latencies);
+        result.ops = total;
+        result.bytes = total * fileSize;
+        return result;
+    }
+
+    // Every client runs its action over and over on its own thread, at least once, until the time is up
+    private Samples[] runClients(int level, IntFunction<Action> actions, long nanos) throws InterruptedException {
+        Samples[] samples = new Samples[level];
+        Thread[] threads = new Thread[level];
+        long deadline = System.nanoTime() + nanos;
+        for (int i = 0; i < level; i++) {
+            Action action = actions.apply(i);
+            Samples client = new Samples();
+            samples[i] = client;
+            threads[i] = new Thread(() -> {
+                do {
+                    long begin = System.nanoTime();
+                    try {
+                        action.run();
+                    } catch (IOException e) {
+                        client.failures++;
+                        return;
+                    }
+                    client.add(System.nanoTime() - begin);
+                } while (System.nanoTime() < deadline);
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) thread.join();
+        return samples;
+    }
+
+    /* ========================= */
+    /* ===      registry     === */
+    /* ========================= */
+
+    // Clients that connect, take a command id and quit, on level threads, see the header for the checks
+    private Result registry(int level, int port, int tport) throws IOException, InterruptedException {
+        for (int i = 0; i < level; i++) {
+            Path file = remote.resolve(registryFile(i));
+            if (!Files.exists(file)) Files.createFile(file);
+        }
+        int connected = server.clientCount();
+
+        // The clients print their command ids to a counter of their own, which checks them
+        ErrorCounter counter = new ErrorCounter(true);
+        PrintStream console = new PrintStream(counter, true);
+        Set<Integer> clientIds = ConcurrentHashMap.newKeySet();
+        AtomicLong reusedClientIds = new AtomicLong();
+        Result result = measure(level, 0, i -> () -> {
+            myftp session = myftp.connect(ADDRESS, port, tport, console, myftpprotocol.VERSION);
+            try {
+                if (!clientIds.add(session.clientId())) reusedClientIds.incrementAndGet();
+                session.command("cd " + remote);
+                session.command("get -o 0 -l 0 " + registryFile(i));
+            } finally {
+                session.close();
+            }
+        });
+
+        // Handlers deregister once they have read the quit, give them the time to
+        long deadline = System.nanoTime() + DRAIN_NANOS;
+        while ((server.clientCount() > connected || server.activeCommands() > 0) && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        long leaked = Math.max(0, server.clientCount() - connected) + server.activeCommands();
+        long reused = counter.reusedIds() + reusedClientIds.get();
+        if (counter.ids() < result.ops) {
+            report.println("FTP Bench Error: registry printed " + counter.ids() + " command ids for " + result.ops
+                    + " commands");
+        }
+        if (leaked > 0 || reused > 0) {
+            report.println("FTP Bench Error: registry handed out " + reused + " ids twice and left " + leaked
+                    + " clients and commands registered");
+        }
+        result.errors += counter.errors() + leaked + reused;
+        return result;
+    }
+
+    private static String registryFile(int client) {
+        return FILE_PREFIX + REGISTRY + "-" + client;
+    }
+
+    /* Latencies of one client, in a primitive array so recording them allocates next to nothing */
+    private static final class Samples {
+
+        private long[] values = new long[1024];
+        private int count;
+        private long failures;
+
+        void add(long nanos) {
+            if (count == values.length) values = Arrays.copyOf(values, count * 2);
+            values[count++] = nanos;
+        }
+    }
+
+    private void print(String op, String size, int level, Result result) {
+        double seconds = result.nanos / 1e9;
+        StringBuilder line = new StringBuilder(String.format("%-10s %6s %7d %8d %10.1f %9s",
+                op, size, level, result.ops, result.ops / seconds,
+                result.bytes > 0 ? String.format("%.1f", result.bytes / seconds / 1e6) : "-"));
+        for (double quantile : QUANTILES) {
+            line.append(String.format(" %9.3f", myftptools.millis(myftptools.percentile(result.latencies, quantile))));
+        }
+        long slowest = (result.latencies.length > 0) ? result.latencies[result.latencies.length - 1] : 0;
+        line.append(String.format(" %9.3f", myftptools.millis(slowest)));
+        line.append(String.format(" %11s %10.1f %5d %7d %6d",
+                result.allocated < 0 ? "-" : String.valueOf(result.ops > 0 ? result.allocated / result.ops : 0),
+                result.allocated < 0 ? 0.0 : result.allocated / seconds / 1e6,
+                result.collections, result.collectionMillis, result.errors));
+        report.println(line);
+    }
+
+    /* ========================= */
+    /* ===    allocations    === */
+    /* ========================= */
+
+    // Bytes allocated so far. Java 21 counts every platform thread that ever ran, older versions only sum
+    // the live threads, so threads that ended while measuring are missed. -1 where the JVM does not count.
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) return -1;
+        com.sun.management.ThreadMXBean counting = (com.sun.management.ThreadMXBean) threads;
+        if (!counting.isThreadAllocatedMemorySupported() || !counting.isThreadAllocatedMemoryEnabled()) return -1;
+        try {
+            return (long) com.sun.management.ThreadMXBean.class.getMethod("getTotalThreadAllocatedMemoryBytes")
+                    .invoke(counting);
+        } catch (ReflectiveOperationException e) {
+            long total = 0;
+            for (long bytes : counting.getThreadAllocatedBytes(counting.getAllThreadIds())) {
+                if (bytes > 0) total += bytes;
+            }
+            return total;
+        }
+    }
+
+    private static long collections() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long collectionMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+        return millis;
+    }
+
+    /* ========================= */
+    /* ===       files       === */
+    /* ========================= */
+
+    private static String fileName(String size, int client) {
+        return FILE_PREFIX + size + "-" + client + ".bin";
+    }
+
+    // One file of random data per size, linked (or copied) once per client on both sides so that no two
+    // clients ever write the same file
+    private void createFiles(String size, int count) throws IOException {
+        Path source = remote.resolve(FILE_PREFIX + size + ".src");
+        myftptools.createRandomFile(source, size);
+        for (int i = 0; i < count; i++) {
+            for (Path dir : new Path[] {local, remote}) {
+                Path file = dir.resolve(fileName(size, i));
+                Files.deleteIfExists(file);
+                try {
+                    Files.createLink(file, source);
+                } catch (IOException | UnsupportedOperationException e) {
+                    Files.copy(source, file);
+                }
+            }
+        }
+    }
+
+    // Files of the wrong size after a transfer scenario, each one counts as an error
+    private static long checkFiles(Path dir, String size, int count) throws IOException {
+        long wrong = 0;
+        for (int i = 0; i < count; i++) {
+            Path file = dir.resolve(fileName(size, i));
+            if (!Files.isRegularFile(file) || Files.size(file) != myftptools.parseSize(size)) wrong++;
+        }
+        return wrong;
+    }
+
+    private void clean() throws IOException {
+        for (Path dir : new Path[] {local, remote}) {
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    if (file.getFileName().toString().startsWith(FILE_PREFIX)) Files.deleteIfExists(file);
+                }
+            }
+        }
+        Files.deleteIfExists(remote);
+    }
+
+    /* ========================= */
+    /* ===      latency      === */
+    /* ========================= */
+
+    /* Forwards every connection to the server and holds what it carries for a round trip time.
+     *      Each direction of a connection has a reader that stamps the chunks it reads with the time they are
+     *      due, half the round trip later, and a writer that sends each one once it is due. At most
+     *      PROXY_CHUNKS chunks wait per direction: a sender that never waits for a reply is held back by TCP
+     *      as on a link with that much buffering, a sender that waits pays the whole round trip every time.
+     */
+    private static final class DelayProxy implements Runnable {
+
+        private static final int PROXY_CHUNKS = 256;
+        private static final int CHUNK_SIZE = 64 * 1024;
+
+        private final ServerSocket listener;
+        private final int target;
+        private final long delayNanos;
+
+        private static final class Chunk {
+
+            final long due;
+            final byte[] data;
+
+            // data is null once the sender has shut down its side
+            Chunk(long due, byte[] data) {
+                this.due = due;
+                this.data = data;
+            }
+        }
+
+        DelayProxy(int target, long roundTripMillis) throws IOException {
+            this.listener = new ServerSocket(0, 50, InetAddress.getByName(ADDRESS));
+            this.target = target;
+            this.delayNanos = TimeUnit.MILLISECONDS.toNanos(roundTripMillis) / 2;
+        }
+
+        int port() {
+            return listener.getLocalPort();
+        }
+
+        public void run() {
+            while (true) {
+                Socket client;
+                try {
+                    client = listener.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                try {
+                    Socket server = new Socket(ADDRESS, target);
+                    client.setTcpNoDelay(true);
+                    server.setTcpNoDelay(true);
+                    forward(client, server);
+                    forward(server, client);
+                } catch (IOException e) {
+                    close(client);
+                }
+            }
+        }
+
+        private void forward(Socket from, Socket to) throws IOException {
+            BlockingQueue<Chunk> line = new ArrayBlockingQueue<>(PROXY_CHUNKS);
+            InputStream in = from.getInputStream();
+            OutputStream out = to.getOutputStream();
+
+            daemon(() -> {
+                byte[] buffer = new byte[CHUNK_SIZE];
+                try {
+                    while (true) {
+                        int read;
+                        try {
+                            read = in.read(buffer);
+                        } catch (IOException e) {
+                            read = -1;
+                        }
+                        long due = System.nanoTime() + delayNanos;
+                        if (read < 0) {
+                            line.put(new Chunk(due, null));
+                            return;
+                        }
+                        line.put(new Chunk(due, Arrays.copyOf(buffer, read)));
+                    }
+                } catch (InterruptedException e) {
+                    // The benchmark is ending
+                }
+            }).start();
+
+            daemon(() -> {
+                try {
+                    while (true) {
+                        Chunk chunk = line.take();
+                        long wait = chunk.due - System.nanoTime();
+                        if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+                        if (chunk.data == null) {
+                            to.shutdownOutput();
+                            return;
+                        }
+                        out.write(chunk.data);
+                    }
+                } catch (IOException | InterruptedException e) {
+                    // The other side is gone, so is this connection
+                    close(from);
+                    close(to);
+                }
+            }).start();
+        }
+
+        private static void close(Socket socket) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    /* ========================= */
+    /* ===      helpers      === */
+    /* ========================= */
+
+    private static Thread daemon(Runnable task) {
+        Thread thread = new Thread(task);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private static List<String> split(String list) {
+        List<String> items = new ArrayList<>();
+        for (String item : list.split(",")) {
+            if (!item.trim().isEmpty()) items.add(item.trim());
+        }
+        return items;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /* Swallows what the server and the clients print and counts the lines that report a failure, and with
+     * ids the command ids the clients print and those that were printed before
+     */
+    private static final class ErrorCounter extends OutputStream {
+
+        // Prompts do not end their line, so only the end of a long line is kept
+        private static final int LINE_MAX = 1024;
+        private static final int LINE_KEPT = 64;
+        private static final String COMMAND_ID = "Command ID : ";
+
+        private final StringBuilder line = new StringBuilder();
+        private final AtomicLong errors = new AtomicLong();
+        private final Set<Integer> ids;
+        private long reusedIds;
+
+        ErrorCounter() {
+            this(false);
+        }
+
+        ErrorCounter(boolean ids) {
+            this.ids = ids ? new HashSet<>() : null;
+        }
+
+        public synchronized void write(int b) {
+            if (b != '\n') {
+                line.append((char) b);
+                if (line.length() > LINE_MAX) line.delete(0, line.length() - LINE_KEPT);
+                return;
+            }
+            String text = line.toString();
+            if (text.contains("Error") || text.contains("failed")) errors.incrementAndGet();
+            int id = text.indexOf(COMMAND_ID);
+            if (ids != null && id >= 0 && !ids.add(Integer.parseInt(text.substring(id + COMMAND_ID.length()).trim()))) {
+                reusedIds++;
+            }
+            line.setLength(0);
+        }
+
+        // Listings print thousands of lines at once, take the lock once for all of them
+        public synchronized void write(byte[] bytes, int offset, int length) {
+            for (int i = offset; i < offset + length; i++) write(bytes[i]);
+        }
+
+        long errors() {
+            return errors.get();
+        }
+
+        synchronized int ids() {
+            return ids.size();
+        }
+
+        synchronized long reusedIds() {
+            return reusedIds;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/* FTP CHUNKS:
+ *      Content defined chunking for the deduplicating store, shared by the client (myftp) and the server
+ *      (myftpserver). Both sides must cut a file at the same places, otherwise the chunks a client hashes
+ *      never match the chunks the server stored.
+ *
+ *      A gear hash runs over the data and a chunk ends where its top bits are all zero, so the cut points
+ *      follow the content: inserting a few bytes only changes the chunks around the insertion, and a file
+ *      that was uploaded elsewhere before cuts into exactly the chunks that are already stored. Chunks are
+ *      CHUNK_MIN to CHUNK_MAX bytes, about CHUNK_MIN + 64 KB on average, and named by their SHA-256.
+ */
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+
+final class myftpchunk {
+
+    private myftpchunk() {
+    }
+
+    static final int CHUNK_MIN = 16 * 1024;
+    static final int CHUNK_MAX = 256 * 1024;
+    static final int HASH_SIZE = 32;
+
+    // Most chunks a deduplicated put may list (36 MB of chunk list), enough for any file up to 16 GB
+    static final int CHUNKS_MAX = 1 << 20;
+
+    // 16 bits of the hash, the top ones because they depend on the last 64 bytes and not just the last 16
+    private static final long CUT_MASK = 0xffffL << 48;
+
+    // One random value per byte value, from a fixed seed so every build cuts alike
+    private static final long[] GEAR = new long[256];
+    static {
+        Random random = new Random(0x6d79667470L);
+        for (int i = 0; i < GEAR.length; i++) GEAR[i] = random.nextLong();
+    }
+
+    static MessageDigest hashDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has to provide SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String hex(byte[] hash) {
+        StringBuilder text = new StringBuilder(hash.length * 2);
+        for (byte b : hash) text.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return text.toString();
+    }
+
+    // Length of the chunk at the start of data[offset..offset+length)
+    static int cut(byte[] data, int offset, int length) {
+        if (length <= CHUNK_MIN) return length;
+        int limit = Math.min(length, CHUNK_MAX);
+        long hash = 0;
+        for (int i = CHUNK_MIN; i < limit; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+            if ((hash & CUT_MASK) == 0) return i + 1;
+        }
+        return limit;
+    }
+
+    /* Cuts a stream into chunks */
+    static final class Chunker {
+
+        private final InputStream in;
+        private final byte[] buffer = new byte[2 * CHUNK_MAX];
+        private int start;
+        private int end;
+        private boolean eof;
+
+        Chunker(InputStream in) {
+            this.in = in;
+        }
+
+        // Reads the next chunk into chunk (CHUNK_MAX bytes), returns its length, 0 at the end of the stream
+        int next(byte[] chunk) throws IOException {
+            if (end - start < CHUNK_MAX && !eof) {
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                start = 0;
+                int length = in.readNBytes(buffer, end, buffer.length - end);
+                end += length;
+                if (end < buffer.length) eof = true;
+            }
+            int length = cut(buffer, start, end - start);
+            System.arraycopy(buffer, start, chunk, 0, length);
+            start += length;
+            return length;
+        }
+    }
+}
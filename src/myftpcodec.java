@@ -0,0 +1,209 @@
+/* FTP COMPRESSION:
+ *      Block codecs for compressed get and put, shared by the client (myftp) and the server (myftpserver).
+ *      A server announces every codec it has as a feature named after the codec ("deflate").
+ *
+ *      Data is cut into blocks of at most BLOCK_SIZE bytes and each block is compressed on its own, so both
+ *      sides only ever hold one block. Every block goes on the wire as
+ *
+ *          [length (int)][encoding (byte)][raw length (int)][data]
+ *
+ *      where length counts the bytes after itself and the encoding is RAW or the codec's id. A 0 length
+ *      ends the transfer early. A block that does not shrink below RATIO_MAX of its size is sent raw, and
+ *      the next SKIP_BLOCKS blocks are sent raw without trying, so incompressible files (archives, media)
+ *      cost one compression attempt per SKIP_BLOCKS + 1 blocks instead of one per block.
+ */
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+final class myftpcodec {
+
+    private myftpcodec() {
+    }
+
+    static final String DEFLATE = "deflate";
+
+    static final byte ENCODING_RAW = 0;
+    static final byte ENCODING_DEFLATE = 1;
+
+    static final int BLOCK_SIZE = 64 * 1024;
+    static final int BLOCK_HEADER_SIZE = 9;
+
+    // Room for one encoded block, raw blocks are never larger than this either
+    static final int BLOCK_BUFFER_SIZE = BLOCK_HEADER_SIZE + BLOCK_SIZE;
+
+    static final double RATIO_MAX = 0.9;
+    static final int SKIP_BLOCKS = 16;
+
+    /* A block compression algorithm. Instances keep native state and belong to one transfer. */
+    interface Codec {
+
+        byte encoding();
+
+        // Compresses raw[0..length) into out, returns the compressed size or -1 if it needs more than out.length
+        int compress(byte[] raw, int length, byte[] out, int offset);
+
+        // Expands data[offset..offset+length) into raw, which receives exactly rawLength bytes
+        void decompress(byte[] data, int offset, int length, byte[] raw, int rawLength) throws IOException;
+
+        void close();
+    }
+
+    // Codecs by feature name, null for names this build does not know
+    static Codec forName(String name) {
+        if (DEFLATE.equals(name)) return new DeflateCodec();
+        return null;
+    }
+
+    /* ========================= */
+    /* ===      deflate      === */
+    /* ========================= */
+
+    static final class DeflateCodec implements Codec {
+
+        // The fastest level, most of the gain on text comes from the first levels already
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private final Inflater inflater = new Inflater();
+
+        public byte encoding() {
+            return ENCODING_DEFLATE;
+        }
+
+        public int compress(byte[] raw, int length, byte[] out, int offset) {
+            deflater.reset();
+            deflater.setInput(raw, 0, length);
+            deflater.finish();
+            int size = deflater.deflate(out, offset, out.length - offset);
+            return deflater.finished() ? size : -1;
+        }
+
+        public void decompress(byte[] data, int offset, int length, byte[] raw, int rawLength) throws IOException {
+            inflater.reset();
+            inflater.setInput(data, offset, length);
+            try {
+                int size = 0;
+                while (size < rawLength && !inflater.finished()) {
+                    int n = inflater.inflate(raw, size, rawLength - size);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                    size += n;
+                }
+                if (size != rawLength || !inflater.finished()) throw new IOException("Corrupt deflate block");
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt deflate block", e);
+            }
+        }
+
+        public void close() {
+            deflater.end();
+            inflater.end();
+        }
+    }
+
+    /* ========================= */
+    /* ===      encoder      === */
+    /* ========================= */
+
+    /* Encodes blocks for one transfer and counts the bytes saved */
+    static final class Encoder {
+
+        private final Codec codec;
+        private int skip;
+        private long wireBytes;
+
+        Encoder(Codec codec) {
+            this.codec = codec;
+        }
+
+        // Writes the whole block, header included, into block (BLOCK_BUFFER_SIZE bytes), returns its size
+        int encode(byte[] raw, int length, byte[] block) {
+            int size = -1;
+            if (skip > 0) {
+                skip--;
+            } else {
+                int limit = BLOCK_HEADER_SIZE + (int) (length * RATIO_MAX);
+                size = codec.compress(raw, length, block, BLOCK_HEADER_SIZE);
+                if (size < 0 || BLOCK_HEADER_SIZE + size > limit) {
+                    size = -1;
+                    skip = SKIP_BLOCKS;
+                }
+            }
+
+            byte encoding = codec.encoding();
+            if (size < 0) {
+                System.arraycopy(raw, 0, block, BLOCK_HEADER_SIZE, length);
+                size = length;
+                encoding = ENCODING_RAW;
+            }
+            writeInt(block, 0, 5 + size);
+            block[4] = encoding;
+            writeInt(block, 5, length);
+
+            wireBytes += BLOCK_HEADER_SIZE + size;
+            return BLOCK_HEADER_SIZE + size;
+        }
+
+        long wireBytes() {
+            return wireBytes;
+        }
+
+        void close() {
+            codec.close();
+        }
+    }
+
+    /* ========================= */
+    /* ===      decoder      === */
+    /* ========================= */
+
+    /* Reads the blocks of one transfer */
+    static final class Decoder {
+
+        private final Codec codec;
+        private final byte[] block = new byte[BLOCK_BUFFER_SIZE];
+        private long wireBytes;
+
+        Decoder(Codec codec) {
+            this.codec = codec;
+        }
+
+        // Reads one block into raw (BLOCK_SIZE bytes), returns its raw length, 0 for the end marker
+        int read(DataInputStream in, byte[] raw) throws IOException {
+            int length = in.readInt();
+            if (length == 0) return 0;
+            if (length < 5 || length > BLOCK_BUFFER_SIZE - 4) throw new IOException("Invalid block length " + length);
+            byte encoding = in.readByte();
+            int rawLength = in.readInt();
+            if (rawLength <= 0 || rawLength > BLOCK_SIZE) throw new IOException("Invalid block size " + rawLength);
+            int size = length - 5;
+
+            if (encoding == ENCODING_RAW) {
+                if (size != rawLength) throw new IOException("Invalid raw block");
+                in.readFully(raw, 0, rawLength);
+            } else if (encoding == codec.encoding()) {
+                in.readFully(block, 0, size);
+                codec.decompress(block, 0, size, raw, rawLength);
+            } else {
+                throw new IOException("Unexpected block encoding " + encoding);
+            }
+            wireBytes += 4 + length;
+            return rawLength;
+        }
+
+        long wireBytes() {
+            return wireBytes;
+        }
+
+        void close() {
+            codec.close();
+        }
+    }
+
+    private static void writeInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+}
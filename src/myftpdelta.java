@@ -0,0 +1,349 @@
+/* FTP DELTA:
+ *      rsync style delta encoding for "put -d", shared by the client (myftp) and the server (myftpserver).
+ *
+ *      The server cuts its copy of the file into blocks of blockSize(file size) bytes and sends a signature:
+ *
+ *          [block size (int)][file size (long)][block count (int)]  then per block  [weak (int)][strong (16 bytes)]
+ *
+ *      The weak checksum is the rsync rolling checksum, so the client can slide it over its own file one
+ *      byte at a time and only computes the strong hash (MD5) where the weak one matches. The client then
+ *      sends ops, each with a fixed OP_HEADER_SIZE header [op (byte)][int][int]:
+ *
+ *          OP_LITERAL  [length][0] followed by length bytes of new data, at most LITERAL_MAX
+ *          OP_COPY     [first block][block count] of the server's copy
+ *          OP_END      [0][0] followed by the MD5 of the whole new file
+ *
+ *      Only a full length block is matched while sliding, the server's shorter last block only matches the
+ *      end of the new file. Bytes on the wire grow with the size of the change plus 20 bytes per block of
+ *      signature, not with the size of the file.
+ */
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+final class myftpdelta {
+
+    private myftpdelta() {
+    }
+
+    static final int BLOCK_MIN = 1024;
+    static final int BLOCK_MAX = 64 * 1024;
+    static final int LITERAL_MAX = 64 * 1024;
+
+    static final int SIGNATURE_HEADER_SIZE = 16;
+    static final int STRONG_SIZE = 16;
+    static final int ENTRY_SIZE = 4 + STRONG_SIZE;
+
+    static final int OP_HEADER_SIZE = 9;
+    static final byte OP_END = 0;
+    static final byte OP_LITERAL = 1;
+    static final byte OP_COPY = 2;
+
+    // About the square root of the file size like rsync, so the signature and the block size grow alike
+    static int blockSize(long fileSize) {
+        long size = (long) Math.sqrt((double) fileSize) & ~(BLOCK_MIN - 1L);
+        return (int) Math.max(BLOCK_MIN, Math.min(BLOCK_MAX, size));
+    }
+
+    static int blockCount(long fileSize, int blockSize) {
+        return (int) ((fileSize + blockSize - 1) / blockSize);
+    }
+
+    // rsync checksum: a is the byte sum, b the sum of the running a values, 16 bits each
+    static int weak(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            a += data[offset + i] & 0xff;
+            b += a;
+        }
+        return (a & 0xffff) | (b << 16);
+    }
+
+    static MessageDigest strongDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has to provide MD5
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static byte[] opHeader(byte op, int first, int second) {
+        return ByteBuffer.allocate(OP_HEADER_SIZE).put(op).putInt(first).putInt(second).array();
+    }
+
+    /* ========================= */
+    /* ===     signature     === */
+    /* ========================= */
+
+    /* Writes the signature of the server's copy, block by block in file order */
+    static final class Signer {
+
+        private final OutputStream out;
+        private final MessageDigest digest = strongDigest();
+        private final ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+
+        Signer(OutputStream out, int blockSize, long fileSize) throws IOException {
+            this.out = new BufferedOutputStream(out, 64 * 1024);
+            this.out.write(ByteBuffer.allocate(SIGNATURE_HEADER_SIZE).putInt(blockSize).putLong(fileSize)
+                    .putInt(blockCount(fileSize, blockSize)).array());
+        }
+
+        void add(byte[] block, int length) throws IOException {
+            digest.update(block, 0, length);
+            entry.clear();
+            entry.putInt(weak(block, 0, length)).put(digest.digest());
+            out.write(entry.array());
+        }
+
+        void finish() throws IOException {
+            out.flush();
+        }
+    }
+
+    /* The server's blocks as the client sees them */
+    static final class Signature {
+
+        final int blockSize;
+        final long fileSize;
+        final int count;
+        private final int[] weak;
+        private final byte[] strong;
+
+        // Chains of full length blocks by weak checksum: head per bucket, next per block, -1 ends a chain
+        private final int[] heads;
+        private final int[] next;
+
+        private Signature(int blockSize, long fileSize, int count, int[] weak, byte[] strong) {
+            this.blockSize = blockSize;
+            this.fileSize = fileSize;
+            this.count = count;
+            this.weak = weak;
+            this.strong = strong;
+
+            heads = new int[Integer.highestOneBit(Math.max(count, 1)) * 2];
+            Arrays.fill(heads, -1);
+            next = new int[count];
+            for (int i = fullBlocks() - 1; i >= 0; i--) {
+                int bucket = bucket(weak[i]);
+                next[i] = heads[bucket];
+                heads[bucket] = i;
+            }
+        }
+
+        static Signature read(DataInputStream in) throws IOException {
+            int blockSize = in.readInt();
+            long fileSize = in.readLong();
+            int count = in.readInt();
+            if (blockSize < BLOCK_MIN || blockSize > BLOCK_MAX || fileSize < 0 || count != blockCount(fileSize, blockSize))
+                throw new IOException("Invalid delta signature");
+
+            int[] weak = new int[count];
+            byte[] strong = new byte[count * STRONG_SIZE];
+            byte[] entry = new byte[ENTRY_SIZE];
+            for (int i = 0; i < count; i++) {
+                in.readFully(entry);
+                weak[i] = ByteBuffer.wrap(entry).getInt();
+                System.arraycopy(entry, 4, strong, i * STRONG_SIZE, STRONG_SIZE);
+            }
+            return new Signature(blockSize, fileSize, count, weak, strong);
+        }
+
+        int length(int block) {
+            return (int) Math.min(blockSize, fileSize - (long) block * blockSize);
+        }
+
+        private int fullBlocks() {
+            return (int) (fileSize / blockSize);
+        }
+
+        private int bucket(int checksum) {
+            return (checksum ^ (checksum >>> 16)) & (heads.length - 1);
+        }
+
+        private boolean strongEquals(int block, byte[] digest) {
+            int offset = block * STRONG_SIZE;
+            return Arrays.equals(strong, offset, offset + STRONG_SIZE, digest, 0, STRONG_SIZE);
+        }
+    }
+
+    /* ========================= */
+    /* ===      matcher      === */
+    /* ========================= */
+
+    /* Slides over the client's file and sends it as ops against a signature */
+    static final class Matcher {
+
+        private final Signature signature;
+        private final DataOutputStream out;
+        private final DataInputStream in;
+        private final MessageDigest strong = strongDigest();
+        private final MessageDigest whole = strongDigest();
+
+        // Unsent literal data starts at literal, the window at position, valid data ends at end
+        private final byte[] buffer = new byte[2 * (LITERAL_MAX + BLOCK_MAX)];
+        private int literal;
+        private int position;
+        private int end;
+        private boolean eof;
+
+        // Copies of consecutive blocks are sent as one op
+        private int copyFirst;
+        private int copyCount;
+
+        private long wireBytes;
+        private boolean cancelled;
+
+        // Ops go to out, any server message arriving on in while they are sent means the upload was cancelled
+        Matcher(Signature signature, OutputStream out, DataInputStream in) {
+            this.signature = signature;
+            this.out = new DataOutputStream(new BufferedOutputStream(out, LITERAL_MAX + OP_HEADER_SIZE));
+            this.in = in;
+        }
+
+        // Sends the whole file and the end op, stops early once the server cancelled the upload
+        void send(InputStream file) throws IOException {
+            int blockSize = signature.blockSize;
+            int a = 0;
+            int b = 0;
+            boolean fresh = true;
+
+            while (!cancelled) {
+                if (end - position <= blockSize && !eof) fill(file);
+                if (end - position < blockSize) break;
+
+                if (fresh) {
+                    int sum = weak(buffer, position, blockSize);
+                    a = sum & 0xffff;
+                    b = sum >>> 16;
+                    fresh = false;
+                }
+
+                int block = find((a & 0xffff) | (b << 16));
+                if (block >= 0) {
+                    sendLiteral(position);
+                    sendCopy(block);
+                    position += blockSize;
+                    literal = position;
+                    fresh = true;
+                    continue;
+                }
+
+                // No match, move the window one byte
+                if (position - literal >= LITERAL_MAX) sendLiteral(position);
+                if (end - position == blockSize) break;
+                int dropped = buffer[position] & 0xff;
+                int added = buffer[position + blockSize] & 0xff;
+                a = a - dropped + added;
+                b = b - blockSize * dropped + a;
+                position++;
+            }
+
+            // The rest is shorter than a block, it can only be the server's last block
+            if (!cancelled) {
+                int last = signature.count - 1;
+                int rest = end - position;
+                if (rest > 0 && rest < blockSize && last >= 0 && signature.length(last) == rest
+                        && signature.strongEquals(last, digest(position, rest))) {
+                    sendLiteral(position);
+                    sendCopy(last);
+                    position = end;
+                    literal = end;
+                }
+                sendLiteral(end);
+            }
+            flushCopy();
+
+            // The digest only matters for complete files, after a cancel the server just skips it
+            out.write(opHeader(OP_END, 0, 0));
+            out.write(whole.digest());
+            wireBytes += OP_HEADER_SIZE + STRONG_SIZE;
+            out.flush();
+        }
+
+        long wireBytes() {
+            return wireBytes;
+        }
+
+        // Block whose data equals the window, preferring the one after the last copy, -1 if none
+        private int find(int checksum) {
+            if (signature.count == 0) return -1;
+            byte[] digest = null;
+
+            int expected = copyFirst + copyCount;
+            if (copyCount > 0 && expected < signature.fullBlocks() && signature.weak[expected] == checksum) {
+                digest = digest(position, signature.blockSize);
+                if (signature.strongEquals(expected, digest)) return expected;
+            }
+            for (int i = signature.heads[signature.bucket(checksum)]; i >= 0; i = signature.next[i]) {
+                if (signature.weak[i] != checksum) continue;
+                if (digest == null) digest = digest(position, signature.blockSize);
+                if (signature.strongEquals(i, digest)) return i;
+            }
+            return -1;
+        }
+
+        private byte[] digest(int offset, int length) {
+            strong.update(buffer, offset, length);
+            return strong.digest();
+        }
+
+        // Sends the unsent data before upTo as literal ops
+        private void sendLiteral(int upTo) throws IOException {
+            if (literal == upTo) return;
+            flushCopy();
+            while (literal < upTo) {
+                int length = Math.min(LITERAL_MAX, upTo - literal);
+                out.write(opHeader(OP_LITERAL, length, 0));
+                out.write(buffer, literal, length);
+                wireBytes += OP_HEADER_SIZE + length;
+                literal += length;
+            }
+            checkCancel();
+        }
+
+        private void sendCopy(int block) throws IOException {
+            if (copyCount > 0 && block == copyFirst + copyCount) {
+                copyCount++;
+                return;
+            }
+            flushCopy();
+            copyFirst = block;
+            copyCount = 1;
+        }
+
+        private void flushCopy() throws IOException {
+            if (copyCount == 0) return;
+            out.write(opHeader(OP_COPY, copyFirst, copyCount));
+            wireBytes += OP_HEADER_SIZE;
+            copyCount = 0;
+            checkCancel();
+        }
+
+        // Moves the unsent data to the front and reads the file up to the end of the buffer
+        private void fill(InputStream file) throws IOException {
+            System.arraycopy(buffer, literal, buffer, 0, end - literal);
+            position -= literal;
+            end -= literal;
+            literal = 0;
+
+            int length = file.readNBytes(buffer, end, buffer.length - end);
+            whole.update(buffer, end, length);
+            end += length;
+            if (end < buffer.length) eof = true;
+            checkCancel();
+        }
+
+        private void checkCancel() throws IOException {
+            if (in.available() >= myftpprotocol.PUT_MESSAGE_SIZE) cancelled = true;
+        }
+    }
+}
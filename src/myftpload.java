@@ -0,0 +1,568 @@
+/* FTP LOAD GENERATOR:
+ *      Puts a running server (myftpserver) under the load of many clients (myftp) at once. Every session is a
+ *      client of its own, driven through the client's command code, and runs commands picked from a weighted
+ *      mix with a think time between them:
+ *
+ *          get, put        a file of a size picked from the size distribution
+ *          get &, put &    the same as a background command, at most one per session at a time
+ *          ls, cd, pwd     round trips ("cd .")
+ *          terminate       terminates the session's background command, if it has one
+ *
+ *      Sessions start one by one over the ramp time and then all run for the duration. While running a
+ *      progress line is printed every report interval, with the sessions active at the time, so the point
+ *      where throughput stops growing with the sessions shows up as the ramp goes. At the end every command
+ *      gets a line for the duration after the ramp: throughput, errors, and latency percentiles.
+ *
+ *      A command failed when it printed an error or its connection broke. terminated counts background
+ *      commands stopped by a terminate, late counts terminates that arrived after the command had finished.
+ *
+ *      Each session uploads its files once before its first command: a file per size, and one more for
+ *      background commands, so that no two transfers ever write the same file. The files are kept in the
+ *      current directory and in "myftpload" under the server's directory, and deleted at the end.
+ */
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class myftpload {
+
+    private static final String FILE_PREFIX = "myftpload-";
+    private static final String REMOTE_DIR = "myftpload";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    private static final String BACKGROUND = " &";
+    private static final String TERMINATE = "terminate";
+
+    // The workload used for every key the workload file leaves out
+    private static final String DEFAULT_WORKLOAD = String.join("\n",
+            "clients = 8",
+            "ramp = 10",
+            "duration = 30",
+            "think = 50-250",
+            "sizes = 1K:60, 64K:25, 1M:10, 16M:5",
+            "mix = get:35, put:15, ls:20, cd:10, pwd:5, get &:5, put &:5, terminate:5",
+            "report = 5");
+
+    private final String address;
+    private final int nport;
+    private final int tport;
+
+    // Workload
+    private final int clients;
+    private final long rampMillis;
+    private final long durationMillis;
+    private final long thinkMin;
+    private final long thinkMax;
+    private final Weighted sizes;
+    private final Weighted mix;
+    private final long reportMillis;
+
+    // Statistics per command, and of all commands since the last progress line
+    private final Map<String, Stats> stats = new LinkedHashMap<>();
+    private Stats interval = new Stats();
+    private final Object statsMutex = new Object();
+    private volatile boolean measuring;
+    private volatile boolean stopped;
+    private final AtomicInteger active = new AtomicInteger();
+
+    private final PrintStream report = System.out;
+    private final Path local = Paths.get("").toAbsolutePath();
+
+    myftpload(String address, int nport, int tport, Properties workload) {
+        this.address = address;
+        this.nport = nport;
+        this.tport = tport;
+
+        clients = Integer.parseInt(workload.getProperty("clients").trim());
+        rampMillis = Long.parseLong(workload.getProperty("ramp").trim()) * 1000;
+        durationMillis = Long.parseLong(workload.getProperty("duration").trim()) * 1000;
+        reportMillis = Long.parseLong(workload.getProperty("report").trim()) * 1000;
+        String[] think = workload.getProperty("think").trim().split("-");
+        thinkMin = Long.parseLong(think[0].trim());
+        thinkMax = (think.length > 1) ? Long.parseLong(think[1].trim()) : thinkMin;
+        sizes = Weighted.parse(workload.getProperty("sizes"));
+        mix = Weighted.parse(workload.getProperty("mix"));
+
+        if (clients < 1 || rampMillis < 0 || durationMillis < 0 || reportMillis < 0 || thinkMin < 0 || thinkMax < thinkMin)
+            throw new IllegalArgumentException("clients, ramp, duration, think or report");
+        for (String size : sizes.items) myftptools.parseSize(size);
+        for (String command : mix.items) {
+            String name = command.endsWith(BACKGROUND) ? command.substring(0, command.length() - BACKGROUND.length()) : command;
+            if (!Arrays.asList("get", "put", "ls", "cd", "pwd", TERMINATE).contains(name)
+                    || (command.endsWith(BACKGROUND) && !name.equals("get") && !name.equals("put")))
+                throw new IllegalArgumentException(command);
+            stats.put(command, new Stats());
+        }
+    }
+
+    public static void main(String args[]) {
+        if (args.length < 3 || args.length > 4) {
+            System.out.println("FTP Load Error: Expecting an IP Address, a normal port number, a termination port "
+                    + "number and an optional workload file");
+            System.exit(0);
+        }
+
+        Properties workload = new Properties();
+        try {
+            workload.load(new StringReader(DEFAULT_WORKLOAD));
+            if (args.length == 4) {
+                try (InputStream in = Files.newInputStream(Paths.get(args[3]))) {
+                    workload.load(in);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("FTP Load Error: Unable to read the workload file \"" + args[3] + "\".");
+            System.exit(0);
+        }
+
+        myftpload load = null;
+        try {
+            load = new myftpload(args[0], Integer.parseInt(args[1]), Integer.parseInt(args[2]), workload);
+        } catch (IllegalArgumentException e) {
+            System.out.println("FTP Load Error: Unable to recognize \"" + e.getMessage() + "\".");
+            System.exit(0);
+        }
+        try {
+            load.run();
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+        }
+        System.exit(0);
+    }
+
+    private void run() throws IOException, InterruptedException {
+        for (String size : sizes.items) createSource(size);
+
+        // The directory every session works in, it may be there from an earlier run
+        myftp setup = myftp.connect(address, nport, tport, new PrintStream(new Console(), true));
+        setup.command("mkdir " + REMOTE_DIR);
+        setup.close();
+
+        Thread[] threads = new Thread[clients];
+        long start = System.currentTimeMillis();
+        Thread reporter = new Thread(() -> progress(start));
+        reporter.setDaemon(true);
+        reporter.start();
+
+        for (int i = 0; i < clients; i++) {
+            long due = start + (clients > 1 ? rampMillis * i / (clients - 1) : 0);
+            Thread.sleep(Math.max(0, due - System.currentTimeMillis()));
+            threads[i] = new Thread(new Session(i));
+            threads[i].start();
+        }
+        Thread.sleep(Math.max(0, start + rampMillis - System.currentTimeMillis()));
+
+        // Statistics only count from the end of the ramp
+        synchronized (statsMutex) {
+            for (String command : mix.items) stats.put(command, new Stats());
+            measuring = true;
+        }
+        long measured = System.currentTimeMillis();
+        Thread.sleep(durationMillis);
+        stopped = true;
+        double seconds = (System.currentTimeMillis() - measured) / 1000.0;
+        synchronized (statsMutex) {
+            measuring = false;
+        }
+
+        reporter.interrupt();
+        reporter.join();
+
+        for (Thread thread : threads) thread.join();
+        print(seconds);
+        deleteSources();
+    }
+
+    /* ========================= */
+    /* ===      session      === */
+    /* ========================= */
+
+    /* One client, on its own thread */
+    private class Session implements Runnable {
+
+        private final int number;
+        private final Console console = new Console();
+        private myftp client;
+        private volatile Job job;
+
+        // The connection broke, the session ends
+        private boolean broken;
+
+        Session(int number) {
+            this.number = number;
+        }
+
+        public void run() {
+            client = myftp.connect(address, nport, tport, new PrintStream(console, true));
+            active.incrementAndGet();
+            try {
+                run("cd " + REMOTE_DIR);
+                for (String size : sizes.items) {
+                    for (boolean background : new boolean[] {false, true}) {
+                        String name = fileName(size, number, background);
+                        Files.deleteIfExists(local.resolve(name));
+                        try {
+                            Files.createLink(local.resolve(name), source(size));
+                        } catch (IOException | UnsupportedOperationException e) {
+                            Files.copy(source(size), local.resolve(name));
+                        }
+                        run("put " + name);
+                    }
+                }
+
+                while (!stopped && !broken) {
+                    long think = thinkMin + ThreadLocalRandom.current().nextLong(thinkMax - thinkMin + 1);
+                    if (think > 0) Thread.sleep(think);
+                    if (stopped) break;
+                    execute(mix.pick());
+                }
+
+                // Background commands end on their own, their connections stay open until then
+                Job last = job;
+                if (last != null) last.thread.join();
+                if (broken) return;
+                for (String size : sizes.items) {
+                    for (boolean background : new boolean[] {false, true}) {
+                        String name = fileName(size, number, background);
+                        run("delete " + name);
+                        Files.deleteIfExists(local.resolve(name));
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                e.printStackTrace();
+            } finally {
+                active.decrementAndGet();
+                client.close();
+            }
+        }
+
+        private void execute(String command) {
+            boolean background = command.endsWith(BACKGROUND);
+            String name = background ? command.substring(0, command.length() - BACKGROUND.length()) : command;
+            String line;
+            switch (name) {
+                case "get":
+                case "put":
+                    line = name + " " + fileName(sizes.pick(), number, background);
+                    break;
+                case "cd":
+                    line = "cd .";
+                    break;
+                case TERMINATE:
+                    Job running = job;
+                    if (running == null || running.commandId < 0) return;
+                    line = TERMINATE + " " + running.commandId;
+                    break;
+                default:
+                    line = name;
+                    break;
+            }
+
+            if (!background) {
+                Outcome outcome = timed(line, null);
+                if (outcome.broken) broken = true;
+                record(command, outcome);
+                return;
+            }
+
+            // One background command at a time, so its files are never written twice at once
+            if (job != null) return;
+            Job started = new Job();
+            started.thread = new Thread(() -> {
+                record(command, timed(line, started));
+                job = null;
+            });
+            job = started;
+            started.thread.start();
+        }
+
+        // Runs one command on this thread and tells how it went from what it printed
+        private Outcome timed(String line, Job background) {
+            Capture capture = console.start(background);
+            long begin = System.nanoTime();
+            boolean broken = false;
+            try {
+                if (background != null) client.runInBackground(line);
+                else broken = !client.command(line);
+            } catch (IOException e) {
+                broken = true;
+            }
+            long nanos = System.nanoTime() - begin;
+            console.stop();
+
+            String text = capture.text.toString();
+            Result result = Result.OK;
+            if (text.contains("No active command")) result = Result.LATE;
+            else if (text.contains("terminated")) result = Result.TERMINATED;
+            else if (broken || text.contains("Error") || text.contains("failed")) result = Result.ERROR;
+            return new Outcome(result, nanos, broken);
+        }
+
+        // Setup and cleanup commands, not counted
+        private void run(String line) throws IOException {
+            console.start(null);
+            try {
+                client.command(line);
+            } finally {
+                console.stop();
+            }
+        }
+    }
+
+    /* The session's background command */
+    private static final class Job {
+
+        Thread thread;
+        volatile int commandId = -1;
+    }
+
+    /* ========================= */
+    /* ===      output       === */
+    /* ========================= */
+
+    /* What one command printed */
+    private static final class Capture {
+
+        // ls prints a line per file, only the end of long output is kept
+        private static final int TEXT_MAX = 4096;
+
+        final StringBuilder text = new StringBuilder();
+        private final Job job;
+        private int lineStart;
+
+        Capture(Job job) {
+            this.job = job;
+        }
+
+        void write(int b) {
+            text.append((char) b);
+            if (b == '\n') {
+                // The command id is printed when the server accepted the command
+                String line = text.substring(lineStart).trim();
+                if (job != null && line.startsWith("Command ID : ")) {
+                    try {
+                        job.commandId = Integer.parseInt(line.substring("Command ID : ".length()).trim());
+                    } catch (NumberFormatException e) {
+                        // Not an id after all
+                    }
+                }
+                if (text.length() > TEXT_MAX) text.delete(0, text.length() - TEXT_MAX / 2);
+                lineStart = text.length();
+            }
+        }
+    }
+
+    /* The session's client prints here, each thread into the capture of the command it runs */
+    private static final class Console extends OutputStream {
+
+        private final ThreadLocal<Capture> current = new ThreadLocal<>();
+
+        Capture start(Job job) {
+            Capture capture = new Capture(job);
+            current.set(capture);
+            return capture;
+        }
+
+        void stop() {
+            current.remove();
+        }
+
+        public void write(int b) {
+            Capture capture = current.get();
+            if (capture != null) capture.write(b);
+        }
+
+        public void write(byte[] data, int offset, int length) {
+            Capture capture = current.get();
+            if (capture == null) return;
+            for (int i = 0; i < length; i++) capture.write(data[offset + i]);
+        }
+    }
+
+    /* ========================= */
+    /* ===    statistics     === */
+    /* ========================= */
+
+    private enum Result { OK, ERROR, TERMINATED, LATE }
+
+    private static final class Outcome {
+
+        final Result result;
+        final long nanos;
+        final boolean broken;
+
+        Outcome(Result result, long nanos, boolean broken) {
+            this.result = result;
+            this.nanos = nanos;
+            this.broken = broken;
+        }
+    }
+
+    /* Latencies and outcomes of a command, latencies in a primitive array to keep recording cheap */
+    private static final class Stats {
+
+        private long[] latencies = new long[1024];
+        private int count;
+        private final long[] results = new long[Result.values().length];
+
+        void add(Outcome outcome) {
+            if (count == latencies.length) latencies = Arrays.copyOf(latencies, count * 2);
+            latencies[count++] = outcome.nanos;
+            results[outcome.result.ordinal()]++;
+        }
+
+        void addAll(Stats other) {
+            if (count + other.count > latencies.length) latencies = Arrays.copyOf(latencies, count + other.count);
+            System.arraycopy(other.latencies, 0, latencies, count, other.count);
+            count += other.count;
+            for (int i = 0; i < results.length; i++) results[i] += other.results[i];
+        }
+
+        long[] sorted() {
+            long[] copy = Arrays.copyOf(latencies, count);
+            Arrays.sort(copy);
+            return copy;
+        }
+    }
+
+    private void record(String command, Outcome outcome) {
+        synchronized (statsMutex) {
+            interval.add(outcome);
+            if (measuring) stats.get(command).add(outcome);
+        }
+    }
+
+    // Prints a line per report interval for all commands together
+    private void progress(long start) {
+        if (reportMillis == 0) return;
+        report.println(String.format("%8s %8s %10s %8s %9s %9s", "time s", "sessions", "ops/s", "errors", "p50 ms", "p99 ms"));
+        while (true) {
+            try {
+                Thread.sleep(reportMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            Stats last;
+            synchronized (statsMutex) {
+                last = interval;
+                interval = new Stats();
+            }
+            long[] sorted = last.sorted();
+            report.println(String.format("%8.1f %8d %10.1f %8d %9.3f %9.3f", (System.currentTimeMillis() - start) / 1000.0,
+                    active.get(), sorted.length / (reportMillis / 1000.0), last.results[Result.ERROR.ordinal()],
+                    myftptools.millis(myftptools.percentile(sorted, 0.5)),
+                    myftptools.millis(myftptools.percentile(sorted, 0.99))));
+        }
+    }
+
+    private void print(double seconds) {
+        report.println();
+        report.println(String.format("myftpload: %d sessions for %.1f s after a %d s ramp, think %d-%d ms",
+                clients, seconds, rampMillis / 1000, thinkMin, thinkMax));
+        StringBuilder header = new StringBuilder(String.format("%-10s %8s %10s %8s %8s %10s %6s",
+                "command", "ops", "ops/s", "errors", "error %", "terminated", "late"));
+        for (double quantile : QUANTILES) header.append(String.format(" %9s", "p" + Math.round(quantile * 100) + " ms"));
+        header.append(String.format(" %9s", "max ms"));
+        report.println(header);
+
+        Stats all = new Stats();
+        for (Map.Entry<String, Stats> entry : stats.entrySet()) {
+            all.addAll(entry.getValue());
+            printLine(entry.getKey(), entry.getValue(), seconds);
+        }
+        printLine("all", all, seconds);
+    }
+
+    private void printLine(String command, Stats stats, double seconds) {
+        long[] sorted = stats.sorted();
+        long errors = stats.results[Result.ERROR.ordinal()];
+        StringBuilder line = new StringBuilder(String.format("%-10s %8d %10.1f %8d %8.2f %10d %6d",
+                command, sorted.length, sorted.length / seconds, errors,
+                sorted.length > 0 ? 100.0 * errors / sorted.length : 0.0,
+                stats.results[Result.TERMINATED.ordinal()], stats.results[Result.LATE.ordinal()]));
+        for (double quantile : QUANTILES) {
+            line.append(String.format(" %9.3f", myftptools.millis(myftptools.percentile(sorted, quantile))));
+        }
+        line.append(String.format(" %9.3f", myftptools.millis(sorted.length > 0 ? sorted[sorted.length - 1] : 0)));
+        report.println(line);
+    }
+
+    /* ========================= */
+    /* ===      workload     === */
+    /* ========================= */
+
+    /* Items with weights, "<item>:<weight>, ..." */
+    private static final class Weighted {
+
+        final List<String> items = new ArrayList<>();
+        private final List<Long> cumulative = new ArrayList<>();
+        private long total;
+
+        static Weighted parse(String list) {
+            Weighted weighted = new Weighted();
+            for (String entry : list.split(",")) {
+                if (entry.trim().isEmpty()) continue;
+                int colon = entry.lastIndexOf(':');
+                if (colon < 0) throw new IllegalArgumentException(entry.trim());
+                long weight;
+                try {
+                    weight = Long.parseLong(entry.substring(colon + 1).trim());
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException(entry.trim());
+                }
+                if (weight < 0) throw new IllegalArgumentException(entry.trim());
+                weighted.add(entry.substring(0, colon).trim(), weight);
+            }
+            if (weighted.total == 0) throw new IllegalArgumentException(list.trim());
+            return weighted;
+        }
+
+        void add(String item, long weight) {
+            total += weight;
+            items.add(item);
+            cumulative.add(total);
+        }
+
+        String pick() {
+            long value = ThreadLocalRandom.current().nextLong(total);
+            for (int i = 0; i < items.size(); i++) {
+                if (value < cumulative.get(i)) return items.get(i);
+            }
+            return items.get(items.size() - 1);
+        }
+    }
+
+    /* ========================= */
+    /* ===       files       === */
+    /* ========================= */
+
+    private static String fileName(String size, int session, boolean background) {
+        return FILE_PREFIX + size + "-" + session + (background ? "b" : "") + ".bin";
+    }
+
+    private Path source(String size) {
+        return local.resolve(FILE_PREFIX + size + ".src");
+    }
+
+    // Random data, the sessions' files are links to it
+    private void createSource(String size) throws IOException {
+        myftptools.createRandomFile(source(size), size);
+    }
+
+    private void deleteSources() throws IOException {
+        for (String size : sizes.items) Files.deleteIfExists(source(size));
+    }
+}
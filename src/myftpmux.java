@@ -0,0 +1,547 @@
+/* FTP MULTIPLEXING:
+ *      Carries many commands over one connection, used by both the client (myftp) and the server (myftpserver)
+ *      once the client sent "$mux" and the server answered "$mux" (feature "mux").
+ *
+ *      Every frame is [stream id (int)][type (byte)][length (int)][payload]. A stream is one command connection
+ *      of the usual protocol: its DATA frames carry exactly the bytes a plain connection would carry, so both
+ *      sides run their normal command code over the stream's input and output.
+ *
+ *          OPEN    client opens stream <id>, ids are odd and never reused
+ *          DATA    <length> payload bytes for the stream, at most MAX_FRAME
+ *          WINDOW  the receiver consumed <length> more bytes, no payload
+ *          CLOSE   the sender will not write to the stream anymore, the other direction stays open
+ *          CANCEL  the sender abandoned the stream, both directions end
+ *
+ *      Flow control is per stream: a sender never has more than STREAM_WINDOW bytes unconsumed by the other
+ *      side, so a slow stream never blocks the reader, and the reader never blocks the other streams.
+ *      Frames are written under a fair lock and are small, so streams writing at the same time take turns.
+ */
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+final class myftpmux implements Closeable {
+
+    static final String MUX = "$mux";
+
+    static final byte OPEN = 0;
+    static final byte DATA = 1;
+    static final byte WINDOW = 2;
+    static final byte CLOSE = 3;
+    static final byte CANCEL = 4;
+
+    static final int HEADER_SIZE = 9;
+    static final int MAX_FRAME = 16 * 1024;
+    static final int STREAM_WINDOW = 256 * 1024;
+
+    // Called by the reader for every stream the other side opens
+    interface Acceptor {
+        void accept(Stream stream);
+    }
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final ReentrantLock writeMutex = new ReentrantLock(true);
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private volatile boolean closed;
+
+    myftpmux(Socket socket) throws IOException {
+        this.socket = socket;
+        this.in = new DataInputStream(socket.getInputStream());
+        this.out = socket.getOutputStream();
+    }
+
+    /* ========================= */
+    /* ===      streams      === */
+    /* ========================= */
+
+    Stream open() throws IOException {
+        if (closed) throw new IOException("Connection closed");
+        Stream stream = new Stream(nextId.getAndAdd(2));
+        streams.put(stream.id, stream);
+        writeFrame(stream.id, OPEN, 0, null, 0);
+        return stream;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    int streamCount() {
+        return streams.size();
+    }
+
+    public void close() {
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    /* ========================= */
+    /* ===      reader       === */
+    /* ========================= */
+
+    /* Reads frames until the connection ends, then fails every open stream.
+     *      Pass null as acceptor to refuse streams opened by the other side.
+     */
+    void run(Acceptor acceptor) {
+        IOException failure = new EOFException("Connection closed");
+        try {
+            while (true) {
+                int id = in.readInt();
+                byte type = in.readByte();
+                int length = in.readInt();
+                if (length < 0 || (type == DATA && length > MAX_FRAME))
+                    throw new IOException("Invalid frame length " + length);
+
+                Stream stream = streams.get(id);
+                switch (type) {
+                    case OPEN:
+                        if (acceptor == null || stream != null) {
+                            writeFrame(id, CANCEL, 0, null, 0);
+                        } else {
+                            stream = new Stream(id);
+                            streams.put(id, stream);
+                            acceptor.accept(stream);
+                        }
+                        break;
+                    case DATA:
+                        // Frames for streams closed on this side are dropped
+                        byte[] payload = new byte[length];
+                        in.readFully(payload);
+                        if (stream != null && length > 0) stream.received(payload);
+                        break;
+                    case WINDOW:
+                        if (stream != null) stream.credit(length);
+                        break;
+                    case CLOSE:
+                        if (stream != null) stream.remoteClosed();
+                        break;
+                    case CANCEL:
+                        if (stream != null) stream.cancelled();
+                        break;
+                    default:
+                        throw new IOException("Invalid frame type " + type);
+                }
+            }
+        } catch (IOException e) {
+            if (!(e instanceof EOFException)) failure = e;
+        }
+
+        close();
+        List<Stream> open = new ArrayList<>(streams.values());
+        streams.clear();
+        for (Stream stream : open) stream.failed(failure);
+    }
+
+    // One write per frame, the fair lock hands the connection to waiting streams in turn
+    private void writeFrame(int id, byte type, int length, byte[] payload, int count) throws IOException {
+        byte[] frame = new byte[HEADER_SIZE + count];
+        frame[0] = (byte) (id >>> 24);
+        frame[1] = (byte) (id >>> 16);
+        frame[2] = (byte) (id >>> 8);
+        frame[3] = (byte) id;
+        frame[4] = type;
+        frame[5] = (byte) (length >>> 24);
+        frame[6] = (byte) (length >>> 16);
+        frame[7] = (byte) (length >>> 8);
+        frame[8] = (byte) length;
+        if (count > 0) System.arraycopy(payload, 0, frame, HEADER_SIZE, count);
+
+        writeMutex.lock();
+        try {
+            if (closed) throw new IOException("Connection closed");
+            out.write(frame);
+            out.flush();
+        } finally {
+            writeMutex.unlock();
+        }
+    }
+
+    /* ============================================= */
+    /* ===                                       === */
+    /* ===                STREAM                 === */
+    /* ===                                       === */
+    /* ============================================= */
+
+    /* One command connection inside the multiplexed one.
+     *      Small writes are collected into one DATA frame, which is sent once it is full, on flush and close,
+     *      and before the stream's own input blocks: the protocol is request/response, so whatever was
+     *      written before waiting for the other side belongs to the request.
+     */
+    final class Stream {
+
+        final int id;
+
+        private final ReentrantLock streamMutex = new ReentrantLock();
+        private final Condition readable = streamMutex.newCondition();
+        private final Condition writable = streamMutex.newCondition();
+
+        // Inbound side
+        private final Deque<byte[]> chunks = new ArrayDeque<>();
+        private int chunkPosition;
+        private int buffered;
+        private int consumed;
+        private boolean remoteClosed;
+        private boolean inputClosed;
+
+        // Outbound side
+        private final byte[] pending = new byte[MAX_FRAME];
+        private int pendingCount;
+        private int credit = STREAM_WINDOW;
+        private volatile boolean outputClosed;
+
+        private boolean cancelled;
+        private IOException failure;
+        private Runnable cancelHandler;
+
+        private final InputStream input = new StreamInput();
+        private final OutputStream output = new StreamOutput();
+
+        private Stream(int id) {
+            this.id = id;
+        }
+
+        InputStream input() {
+            return input;
+        }
+
+        OutputStream output() {
+            return output;
+        }
+
+        // Runs when the other side cancels the stream
+        void onCancel(Runnable handler) {
+            streamMutex.lock();
+            try {
+                cancelHandler = handler;
+            } finally {
+                streamMutex.unlock();
+            }
+        }
+
+        // Abandons the stream, unsent output is dropped
+        void cancel() {
+            streamMutex.lock();
+            try {
+                if (cancelled || failure != null) return;
+                cancelled = true;
+                inputClosed = outputClosed = true;
+                chunks.clear();
+                buffered = 0;
+                readable.signalAll();
+                writable.signalAll();
+            } finally {
+                streamMutex.unlock();
+            }
+            streams.remove(id);
+            try {
+                writeFrame(id, CANCEL, 0, null, 0);
+            } catch (IOException e) {
+                // The connection is gone, so is the stream
+            }
+        }
+
+        /* ========================= */
+        /* ===   reader events   === */
+        /* ========================= */
+
+        private void received(byte[] payload) {
+            streamMutex.lock();
+            try {
+                if (inputClosed) return;
+                chunks.addLast(payload);
+                buffered += payload.length;
+                readable.signal();
+            } finally {
+                streamMutex.unlock();
+            }
+        }
+
+        private void credit(int bytes) {
+            streamMutex.lock();
+            try {
+                credit += bytes;
+                writable.signalAll();
+            } finally {
+                streamMutex.unlock();
+            }
+        }
+
+        private void remoteClosed() {
+            streamMutex.lock();
+            try {
+                remoteClosed = true;
+                readable.signalAll();
+            } finally {
+                streamMutex.unlock();
+            }
+            removeIfDone();
+        }
+
+        private void cancelled() {
+            Runnable handler;
+            streamMutex.lock();
+            try {
+                cancelled = true;
+                remoteClosed = true;
+                failure = new IOException("Stream cancelled");
+                readable.signalAll();
+                writable.signalAll();
+                handler = cancelHandler;
+            } finally {
+                streamMutex.unlock();
+            }
+            streams.remove(id);
+            if (handler != null) handler.run();
+        }
+
+        private void failed(IOException e) {
+            streamMutex.lock();
+            try {
+                if (failure == null) failure = e;
+                readable.signalAll();
+                writable.signalAll();
+            } finally {
+                streamMutex.unlock();
+            }
+        }
+
+        // Both directions finished, later frames for this id are dropped
+        private void removeIfDone() {
+            streamMutex.lock();
+            try {
+                if (!outputClosed || !(remoteClosed || inputClosed)) return;
+            } finally {
+                streamMutex.unlock();
+            }
+            streams.remove(id);
+        }
+
+        /* ========================= */
+        /* ===       input       === */
+        /* ========================= */
+
+        private int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) return 0;
+            output.flush();
+
+            int count = 0;
+            int update = 0;
+            streamMutex.lock();
+            try {
+                while (buffered == 0 && !remoteClosed && !inputClosed && failure == null) {
+                    try {
+                        readable.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+                if (buffered == 0) {
+                    if (failure != null && !cancelled) throw failure;
+                    return -1;
+                }
+
+                while (count < length && !chunks.isEmpty()) {
+                    byte[] chunk = chunks.peekFirst();
+                    int n = Math.min(length - count, chunk.length - chunkPosition);
+                    System.arraycopy(chunk, chunkPosition, buffer, offset + count, n);
+                    count += n;
+                    chunkPosition += n;
+                    if (chunkPosition == chunk.length) {
+                        chunks.pollFirst();
+                        chunkPosition = 0;
+                    }
+                }
+                buffered -= count;
+
+                // Return credit in large steps, one WINDOW frame per half window
+                consumed += count;
+                if (consumed >= STREAM_WINDOW / 2 && !remoteClosed) {
+                    update = consumed;
+                    consumed = 0;
+                }
+            } finally {
+                streamMutex.unlock();
+            }
+
+            if (update > 0) writeFrame(id, WINDOW, update, null, 0);
+            return count;
+        }
+
+        private int available() throws IOException {
+            int available;
+            streamMutex.lock();
+            try {
+                available = buffered;
+            } finally {
+                streamMutex.unlock();
+            }
+            if (available == 0) output.flush();
+            return available;
+        }
+
+        private void closeInput() {
+            streamMutex.lock();
+            try {
+                inputClosed = true;
+                chunks.clear();
+                buffered = 0;
+                readable.signalAll();
+            } finally {
+                streamMutex.unlock();
+            }
+            removeIfDone();
+        }
+
+        /* ========================= */
+        /* ===      output       === */
+        /* ========================= */
+
+        private void write(byte[] buffer, int offset, int length) throws IOException {
+            if (outputClosed && !isCancelled()) throw new IOException("Stream closed");
+            while (length > 0) {
+                int n = Math.min(length, pending.length - pendingCount);
+                System.arraycopy(buffer, offset, pending, pendingCount, n);
+                pendingCount += n;
+                offset += n;
+                length -= n;
+                if (pendingCount == pending.length) flushPending();
+            }
+        }
+
+        // Waits for the other side to have room for the pending bytes
+        private void flushPending() throws IOException {
+            if (pendingCount == 0) return;
+            streamMutex.lock();
+            try {
+                while (credit < pendingCount && failure == null && !cancelled) {
+                    try {
+                        writable.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+                // Nobody reads a cancelled stream anymore, its output is dropped
+                if (cancelled) {
+                    pendingCount = 0;
+                    return;
+                }
+                if (failure != null) throw failure;
+                credit -= pendingCount;
+            } finally {
+                streamMutex.unlock();
+            }
+            writeFrame(id, DATA, pendingCount, pending, pendingCount);
+            pendingCount = 0;
+        }
+
+        private void closeOutput() throws IOException {
+            if (outputClosed) return;
+            try {
+                flushPending();
+                if (!isCancelled()) writeFrame(id, CLOSE, 0, null, 0);
+            } finally {
+                outputClosed = true;
+                removeIfDone();
+            }
+        }
+
+        private boolean isCancelled() {
+            streamMutex.lock();
+            try {
+                return cancelled;
+            } finally {
+                streamMutex.unlock();
+            }
+        }
+
+        private final class StreamInput extends InputStream {
+
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                return (Stream.this.read(single, 0, 1) < 0) ? -1 : single[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                return Stream.this.read(buffer, offset, length);
+            }
+
+            @Override
+            public int available() throws IOException {
+                return Stream.this.available();
+            }
+
+            @Override
+            public void close() {
+                closeInput();
+            }
+        }
+
+        // Writes come from the thread running the stream's command, the lock only guards against misuse.
+        // It is a ReentrantLock rather than synchronized: writes block on credit and on the socket, which
+        // must not pin a virtual thread to its carrier.
+        private final class StreamOutput extends OutputStream {
+
+            private final ReentrantLock outputMutex = new ReentrantLock();
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                outputMutex.lock();
+                try {
+                    Stream.this.write(buffer, offset, length);
+                } finally {
+                    outputMutex.unlock();
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                outputMutex.lock();
+                try {
+                    flushPending();
+                } finally {
+                    outputMutex.unlock();
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                outputMutex.lock();
+                try {
+                    closeOutput();
+                } finally {
+                    outputMutex.unlock();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,288 @@
+/* FTP PROTOCOL:
+ *      Constants shared by the client (myftp) and the server (myftpserver).
+ *      Both programs compile against this file, so any change here changes the wire protocol of both.
+ */
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+final class myftpprotocol {
+
+    private myftpprotocol() {
+    }
+
+    /* ========================= */
+    /* ===      version      === */
+    /* ========================= */
+
+    /* Version 1: the original protocol, int file sizes and stop-and-wait put.
+     * Version 2: 64 bit file sizes, large get packets, and put always uses the windowed protocol.
+     *
+     *      The client sends "$hello <version>" right after reading its handlerId and the server answers
+     *      "$hello <agreed version> [features...]". Servers without version support answer with an
+     *      invalid command error, which the client takes as version 1. Optional commands and flags are
+     *      announced as features, so a client only uses what this particular server implements.
+     */
+    static final String HELLO = "$hello";
+    static final int VERSION_LEGACY = 1;
+    static final int VERSION_64BIT = 2;
+    static final int VERSION = 2;
+
+    static final String FEATURE_RANGE = "range";
+    static final String FEATURE_LIST = "list";
+    static final String FEATURE_FRAMED = "framed";
+    static final String FEATURE_MUX = "mux";
+    static final String FEATURE_CANCEL = "cancel";
+    static final String FEATURE_DELTA = "delta";
+    static final String FEATURE_DEDUP = "dedup";
+    static final String FEATURE_GLOB = "glob";
+    static final String FEATURE_ARCHIVE = "archive";
+    static final String FEATURE_VALIDATE = "validate";
+
+    /* ========================= */
+    /* ===    ranged get     === */
+    /* ========================= */
+
+    /* Socket Protocol ("get -o <offset> [-l <length>] <file>", feature "range"):
+     *          1. Server sends Command ID
+     *          2. Server sends file status, ERR_RANGE when the offset lies past the end of the file
+     *          3. Server sends file size (long) and range length (long)
+     *   Loop:  4. Server sends packet size / EOF
+     *          5. Server sends file packet data
+     *
+     * Validated get ("get -m [-i <size>:<modified>] ...", feature "validate"):
+     *          With -m the server sends the file's modification time (long, ms since the epoch) after the
+     *          size(s) in 3. A client resuming a partial download sends the size and modification time it
+     *          got when the download started as -i, and the server answers ERR_RANGE when the file no
+     *          longer matches them, so a rewritten file is downloaded again instead of spliced.
+     */
+    static final int ERR_RANGE = 2;
+
+    /* ========================= */
+    /* ===  framed responses === */
+    /* ========================= */
+
+    /* Socket Protocol (text replies after "$hello <version> framed", feature "framed"):
+     *          1. Server sends status (OK or ERR)
+     *   Loop:  2. Server sends chunk length (int) and chunk (UTF-8 text)
+     *          3. Server sends a 0 length at the end of the response
+     *
+     *      Every text command (cd, ls, mkdir, delete, pwd, stat, $, $cd and errors) answers with exactly
+     *      one response, so the client reads it with blocking reads instead of polling available().
+     *      mkdir sends no separate status int in this mode. Without framing each reply is one or more
+     *      writeUTF strings, as in version 1.
+     */
+
+    /* ========================= */
+    /* ===  batched listing  === */
+    /* ========================= */
+
+    /* Socket Protocol ("ls -b [-l] [-o <offset>] [-n <count>]", feature "list"):
+     *          1. Server sends status
+     *   Loop:  2. Server sends batch length (int) and batch (UTF-8 text, whole lines)
+     *          3. Server sends a 0 length after the last batch
+     *
+     *      Batches are sent as soon as they are ready, so the client prints large directories as they
+     *      arrive. On ERR the batches hold the error message. Without -b the batches are sent as
+     *      writeUTF strings instead, for clients that predate batching.
+     */
+
+    /* ========================= */
+    /* ===    compression    === */
+    /* ========================= */
+
+    /* Socket Protocol ("get -c <codec> [-o <offset>] [-l <length>] <file>", feature named after the codec):
+     *          1. - 3. as for get (ranged get when -o or -l is given)
+     *   Loop:  4. Server sends compressed blocks (see myftpcodec) until the range is complete, or a 0
+     *             length when terminated
+     *
+     * Socket Protocol ("put -w -c <codec> <file>"):
+     *          The windowed put protocol, every frame is one block (see myftpcodec) instead of raw data.
+     *          Acknowledgements count uncompressed bytes.
+     */
+
+    /* ========================= */
+    /* ===     delta put     === */
+    /* ========================= */
+
+    /* Socket Protocol ("put -d <file>", feature "delta"):
+     *          1. Server sends Command ID
+     *          2. Server sends the signature of its copy of the file, no blocks if it has none
+     *   Loop:  3. Client sends literal and copy ops, see myftpdelta
+     *          4. Server sends PUT_CANCEL when terminated
+     *          5. Client sends the end op and the MD5 of the file, also after reading PUT_CANCEL
+     *          6. Server sends PUT_DONE, or PUT_FAILED when the rebuilt file does not match the MD5
+     *             (not sent after PUT_CANCEL)
+     *
+     *      Server messages are the windowed put messages. The server rebuilds the file next to the old
+     *      copy and only replaces it once the whole file is there.
+     */
+
+    /* ========================= */
+    /* === deduplicated put  === */
+    /* ========================= */
+
+    /* Socket Protocol ("put -h <file>", feature "dedup", servers that store files as chunks):
+     *          1. Server sends Command ID
+     *          2. Client sends file size (long), chunk count (int) and per chunk its length (int) and
+     *             SHA-256, cut as described in myftpchunk
+     *          3. Server sends the number of chunks it is missing (int) and their indexes (int each)
+     *   Loop:  4. Client sends each missing chunk as a windowed put frame, the server sends PUT_CANCEL
+     *             when terminated
+     *          5. Client sends a 0 length frame after the last chunk, or after reading PUT_CANCEL
+     *          6. Server sends PUT_DONE or PUT_FAILED (not sent after PUT_CANCEL)
+     *
+     *      A file the server already holds anywhere costs the chunk list and nothing else.
+     */
+
+    /* ========================= */
+    /* ===  batch transfers  === */
+    /* ========================= */
+
+    /* Socket Protocol ("$glob <pattern>", feature "glob", framed connections):
+     *          1. Client sends "$glob <pattern>"
+     *          2. Server sends a text reply with the names of the regular files in its current directory
+     *             that match the glob pattern, one per line, ERR when none do
+     *
+     *      mget and mput pipeline their commands: a server reads the next command only after the
+     *      previous one finished, so a client may send gets, and puts whose whole file is already sent,
+     *      ahead of the replies and read those in order.
+     */
+    static final String GLOB = "$glob";
+
+    /* ========================= */
+    /* ===    directories    === */
+    /* ========================= */
+
+    /* Socket Protocol ("get -r <directory>", feature "archive"):
+     *          1. Server sends Command ID
+     *          2. Server sends directory status
+     *          3. Server sends the tree as records (see myftparchive) up to RECORD_END, or RECORD_ABORT when
+     *             terminated
+     *
+     * Socket Protocol ("put -r <directory>", feature "archive"):
+     *          1. Server sends Command ID
+     *          2. Client sends the tree as records up to RECORD_END, or RECORD_ABORT after reading PUT_CANCEL
+     *          3. Server sends PUT_CANCEL when terminated, at any time during 2.
+     *          4. Server sends PUT_DONE, or PUT_FAILED when a file could not be written (not sent after
+     *             PUT_CANCEL)
+     *
+     *      The server creates the tree in its current directory under the last name of the client's
+     *      directory. A whole tree is one command, so it costs one round trip however many files it has.
+     */
+
+    /* ========================= */
+    /* ===      metrics      === */
+    /* ========================= */
+
+    /* Socket Protocol ("$stats"):
+     *          1. Client sends "$stats"
+     *          2. Server sends a text reply with its counters and latencies, one "name{labels} value" line
+     *             each (the Prometheus text format)
+     *
+     *      Servers that predate it answer with an invalid command error.
+     */
+    static final String STATS = "$stats";
+
+    /* ========================= */
+    /* ===  in-band cancel   === */
+    /* ========================= */
+
+    /* Socket Protocol ("$terminate <command id>", feature "cancel"):
+     *          1. Client sends "$terminate <command id>" on a connection that is not busy
+     *          2. Server sends a text reply, ERR when no command with this id is running
+     *
+     *      Same effect as sending the id to the terminate port, without opening a connection for it.
+     *      Commands on multiplexed streams are also cancelled by a CANCEL frame, see myftpmux.
+     */
+    static final String TERMINATE = "$terminate";
+
+    /* ========================= */
+    /* ===    multiplexing   === */
+    /* ========================= */
+
+    /* Socket Protocol ("$mux", feature "mux"):
+     *          1. Client sends "$mux"
+     *          2. Server sends "$mux"
+     *          3. Both sides switch to the frames described in myftpmux, for the rest of the connection
+     *
+     *      Every stream the client opens is a new command connection on the server, without the handlerId
+     *      and the $hello exchange: it speaks the version and framing the multiplexed connection agreed on.
+     */
+
+    /* ========================= */
+    /* ===   windowed put    === */
+    /* ========================= */
+
+    /* Socket Protocol ("put -w <file>"):
+     *          1. Server sends Command ID
+     *          2. Client sends file size (long)
+     *   Loop:  3. Client sends frame length (int) and frame data, at most PUT_WINDOW_SIZE bytes unacknowledged
+     *          4. Server sends PUT_ACK every PUT_ACK_INTERVAL bytes, or PUT_CANCEL when terminated
+     *          5. Client sends a 0 length frame at the end of the file, or after reading PUT_CANCEL
+     *          6. Server sends PUT_DONE or PUT_FAILED (not sent after PUT_CANCEL)
+     *
+     *      Every server message is a code (int) followed by the number of bytes received so far (long).
+     */
+    static final int PUT_FRAME_SIZE = 64 * 1024;
+    static final int PUT_WINDOW_SIZE = 1024 * 1024;
+    static final int PUT_ACK_INTERVAL = PUT_WINDOW_SIZE / 4;
+    static final int PUT_MESSAGE_SIZE = 12;
+
+    static final int PUT_ACK = 0;
+    static final int PUT_CANCEL = 1;
+    static final int PUT_DONE = 2;
+    static final int PUT_FAILED = 3;
+
+    /* ========================= */
+    /* ===     arguments     === */
+    /* ========================= */
+
+    /* Command syntax shared by both sides: "<command> [flags...] <operands...>".
+     *      Flags start with '-', the flags listed in valueFlags take the following word as their value.
+     */
+    static final class Arguments {
+
+        private final Map<String, String> flags = new HashMap<>();
+        private final List<String> operands = new ArrayList<>();
+
+        Arguments(String[] args, String... valueFlags) {
+            List<String> takesValue = Arrays.asList(valueFlags);
+            for (int i = 1; i < args.length; i++) {
+                if (operands.isEmpty() && args[i].startsWith("-") && args[i].length() > 1) {
+                    String flag = args[i];
+                    String value = "";
+                    if (takesValue.contains(flag) && i + 1 < args.length) value = args[++i];
+                    flags.put(flag, value);
+                } else if (!args[i].isEmpty()) {
+                    operands.add(args[i]);
+                }
+            }
+        }
+
+        boolean has(String flag) {
+            return flags.containsKey(flag);
+        }
+
+        // The flag's value, null if the flag is missing
+        String value(String flag) {
+            return flags.get(flag);
+        }
+
+        long longValue(String flag, long defaultValue) {
+            String value = flags.get(flag);
+            if (value == null || value.isEmpty()) return defaultValue;
+            return Long.parseLong(value);
+        }
+
+        String operand(int index) {
+            return (index < operands.size()) ? operands.get(index) : null;
+        }
+
+        int operandCount() {
+            return operands.size();
+        }
+    }
+}
@@ -1,11 +1,65 @@
 import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.HashMap;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class myftpserver {
 
@@ -13,58 +67,183 @@ public class myftpserver {
     private int nport;
     private int tport;
 
+    // Server modes
+    private static final String MODE_THREAD = "thread";
+    private static final String MODE_NIO = "nio";
+    private static final String MODE_VIRTUAL = "virtual";
+    private String mode;
+
     // FTP Socket Protocol flags
     private static final int EOF = 0;
     private static final int OK = 0;
     private static final int ERR = 1;
 
+    // Transfer sizes
+    private static final int PACKET_SIZE = 1000;
+    private static final int GET_WINDOW_SIZE = 256 * 1024;
+    private static final int NIO_BUFFER_SIZE = 128 * 1024;
+    private static final int UPLOAD_BUFFER_SIZE = 64 * 1024;
+
+    // Metadata cache limits, the cache is emptied when full and inotify watches are a system wide resource
+    private static final int METADATA_CACHE_MAX = 100000;
+    private static final int METADATA_WATCH_MAX = 4096;
+
+    // Characters per ls batch, keeps every batch well below the 64 KB writeUTF limit
+    private static final int LIST_BATCH_CHARS = 16 * 1024;
+
     // Multi-Threaded Locks
-    private final Object commandIdMutex = new Object();
-    private final Object commandMapMutex = new Object();
-    private final Object clientMapMutex = new Object();
-    private final Object clientRunningMutex = new Object();
-    private final Object clientDirectoryMutex = new Object();
-    private final Object clientTerminateMutex = new Object();
-    private final Object fileSystemMutex = new Object();
+    //      Explicit locks rather than monitors, so a virtual thread that blocks while holding one
+    //      unmounts from its carrier thread instead of pinning it
+    private final Lock clientRunningMutex = new ReentrantLock();
+    private final Lock clientDirectoryMutex = new ReentrantLock();
+
+    // File system locks, one read/write lock per path in use
+    private final PathLocks pathLocks = new PathLocks();
+
+    // Off-heap content cache for get, never larger than half the default direct memory limit
+    private static final long CACHE_CAPACITY = 256L * 1024 * 1024;
+    private static final long CACHE_ENTRY_MAX = 32L * 1024 * 1024;
+    private static final int CACHE_CANDIDATES = 4096;
+    private static final int CACHE_LOADS_MAX = 64;
+    private final FileCache fileCache = new FileCache(Math.min(CACHE_CAPACITY, Runtime.getRuntime().maxMemory() / 2));
+    private CacheLoader cacheLoader;
+
+    // Path metadata for cd, mkdir and stat, kept current by a watch thread
+    private final MetadataCache metadata = new MetadataCache();
+
+    // Content addressed storage of uploads, null unless the server runs with "dedup"
+    private static final String STORAGE_DEDUP = "dedup";
+    private final boolean dedup;
+    private ChunkStore store;
+
+    // Counters and latency histograms for $stats, also served on a local port with "metrics=<port>"
+    private static final String OPTION_METRICS = "metrics=";
+    private static final long SAMPLE_INTERVAL = 1000;
+    private static final int METRICS_READ_TIMEOUT = 1000;
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+    private final Metrics metrics = new Metrics();
+    private final int metricsPort;
+
+    // Connections the kernel queues until accept() takes them. With the default of 50, a crowd of clients
+    // connecting at once leaves those that overflow the queue waiting for their client id for good
+    private static final int ACCEPT_BACKLOG = 1024;
 
     // Threads
+    private ThreadFactory threads;
     private Terminator terminator;
     private Listener listener;
-    private Map<Integer, Client> clients;
-    private int commandId;
+    private Reactor reactor;
+
+    // Connected clients by handlerId and the command id sequence, shared by every connection thread
+    // without a lock: a client removes only its own entry, status output reads sizes as they are
+    private final Map<Integer, Handler> clients = new ConcurrentHashMap<>();
+    private final AtomicInteger commandIds = new AtomicInteger();
 
     // Constructor with port
     public myftpserver(int nport, int tport) {
+        this(nport, tport, MODE_THREAD);
+    }
+
+    // Constructor with port and server mode
+    public myftpserver(int nport, int tport, String mode) {
+        this(nport, tport, mode, false);
+    }
+
+    // Constructor with port, server mode and storage mode
+    public myftpserver(int nport, int tport, String mode, boolean dedup) {
+        this(nport, tport, mode, dedup, -1);
+    }
+
+    // Constructor with port, server mode, storage mode and metrics port (-1 for none)
+    public myftpserver(int nport, int tport, String mode, boolean dedup, int metricsPort) {
         this.nport = nport;
         this.tport = tport;
+        this.mode = mode;
+        this.dedup = dedup;
+        this.metricsPort = metricsPort;
         init();
     }
 
     private void init() {
 
-        commandId = 0;
-        clients = new HashMap<>();
+        if (dedup) {
+            try {
+                Path root = Paths.get("").toAbsolutePath();
+                store = new ChunkStore(root);
+                int removed = store.sweep();
+                if (removed > 0) System.out.println("FTP Server: Removed " + removed + " unused chunks.");
+            } catch (IOException e) {
+                System.out.println("FTPServer Error: Unable to open the chunk store, storing files as they are.");
+                store = null;
+            }
+        }
+
+        threads = Thread::new;
+        if (mode.equals(MODE_VIRTUAL)) {
+            threads = virtualThreadFactory();
+        }
 
         terminator = new Terminator(tport);
-        terminator.start();
+        threads.newThread(terminator).start();
+        threads.newThread(metadata).start();
+        threads.newThread(metrics).start();
+        if (metricsPort >= 0) threads.newThread(new MetricsPort(metricsPort)).start();
+
+        if (mode.equals(MODE_NIO)) {
+            cacheLoader = new CacheLoader();
+            threads.newThread(cacheLoader).start();
+            reactor = new Reactor(nport, Runtime.getRuntime().availableProcessors());
+            reactor.start();
+        } else {
+            listener = new Listener(nport);
+            threads.newThread(listener).start();
+        }
+    }
 
-        listener = new Listener(nport);
-        listener.start();
+    // Virtual threads are looked up reflectively so the server still builds and runs on Java 17,
+    // falling back to platform threads when the running JVM has none (Java 21+ is required)
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("FTP Server Warning: Virtual threads need Java 21 or newer, using platform threads.");
+            return Thread::new;
+        }
     }
 
     private int iterateCommandID() {
-        synchronized (commandIdMutex) {
-            commandId++;
-            return commandId;
+        return commandIds.incrementAndGet();
+    }
+
+    // Cross-client commands name their client by handlerId, null if it is not connected (anymore)
+    private Handler client(String id) {
+        try {
+            return clients.get(Integer.parseInt(id));
+        } catch (NumberFormatException e) {
+            return null;
         }
     }
 
+    // Connected clients and commands in progress, which myftpbench checks drain back to none
+    int clientCount() {
+        return clients.size();
+    }
+
+    int activeCommands() {
+        return terminator.commands.size();
+    }
+
     public static void main (String args[]) {
         int nport = 5000;
         int tport = 5001;
-        if (args.length != 2) {
-            System.out.println("FTP Server Error: Expecting 2 arguments for the normal port number and"
-                    + "the termination port number");
+        String mode = MODE_THREAD;
+        boolean dedup = false;
+        int metricsPort = -1;
+        if (args.length < 2 || args.length > 5) {
+            System.out.println("FTP Server Error: Expecting 2 arguments for the normal port number and "
+                    + "the termination port number, an optional server mode (thread | virtual | nio), "
+                    + "an optional storage mode (dedup) and an optional metrics port (metrics=<port>)");
             System.exit(0);
         } else {
             try {
@@ -79,240 +258,2621 @@ public class myftpserver {
                 System.out.println("FTPServer Error: Unable to recognize termination port number.");
                 System.exit(0);
             }
+            for (int i = 2; i < args.length; i++) {
+                String option = args[i].toLowerCase();
+                if (option.equals(STORAGE_DEDUP)) {
+                    dedup = true;
+                } else if (option.startsWith(OPTION_METRICS)) {
+                    try {
+                        metricsPort = Integer.parseInt(option.substring(OPTION_METRICS.length()));
+                    } catch (NumberFormatException e) {
+                        System.out.println("FTPServer Error: Unable to recognize metrics port number.");
+                        System.exit(0);
+                    }
+                } else if (option.equals(MODE_THREAD) || option.equals(MODE_VIRTUAL) || option.equals(MODE_NIO)) {
+                    mode = option;
+                } else {
+                    System.out.println("FTPServer Error: Unknown server mode \"" + args[i] + "\".");
+                    System.exit(0);
+                }
+            }
         }
-        new myftpserver(nport, tport);
+        new myftpserver(nport, tport, mode, dedup, metricsPort);
     }
 
     /* ============================================= */
     /* ===                                       === */
-    /* ===           LISTENER THREAD             === */
+    /* ===            CLIENT HANDLERS            === */
     /* ===                                       === */
     /* ============================================= */
 
+    /* A connected client, served either by a Client thread or by a Session on a Reactor event loop.
+     * Cross-client commands ($gwd, $cd, $quit) only ever talk to this interface. terminate() cancels
+     * whatever command the client is running, terminating a command by id goes through its CancelToken.
+     */
+    private interface Handler {
+        Path getCurDir();
+        void setCurDir(Path dir);
+        void setRunning(boolean running);
+        void terminate();
+        Traffic traffic();
+    }
 
-    private class Listener extends Thread implements Runnable {
+    /* ============================================= */
+    /* ===                                       === */
+    /* ===              PATH LOCKS               === */
+    /* ===                                       === */
+    /* ============================================= */
 
-        private int port;
-        private Socket socket;
-        private ServerSocket server;
+    /* A held path lock, released by unlock() in a finally block */
+    private interface PathLock {
+        void unlock();
+    }
 
-        Listener(int port) {
-            super();
-            this.port = port;
+    /* Read/write locks keyed by normalised absolute path.
+     *      Readers of a path run in parallel and a writer only excludes readers and writers of the same
+     *      path. Entries are reference counted and leave the table as soon as nobody holds or waits for
+     *      them, so the table only ever contains the paths that are in use.
+     */
+    private static class PathLocks {
+
+        private final ConcurrentHashMap<Path, Entry> table = new ConcurrentHashMap<>();
+
+        // How long every acquisition waited for its lock
+        private final Histogram readWaits = new Histogram();
+        private final Histogram writeWaits = new Histogram();
+
+        private static class Entry {
+            private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+            private int users;
         }
 
-        public void run() {
-            listen();
+        PathLock read(Path path) {
+            return acquire(path, false);
         }
 
-        private void listen() {
+        PathLock write(Path path) {
+            return acquire(path, true);
+        }
 
-            int handlerId = 0;
+        private PathLock acquire(Path path, boolean exclusive) {
+            Path key = path.toAbsolutePath().normalize();
+
+            // Reference counts only change inside compute(), which is atomic per key
+            Entry entry = table.compute(key, (k, e) -> {
+                if (e == null) e = new Entry();
+                e.users++;
+                return e;
+            });
+
+            Lock lock = exclusive ? entry.lock.writeLock() : entry.lock.readLock();
+            long start = System.nanoTime();
+            lock.lock();
+            (exclusive ? writeWaits : readWaits).record(System.nanoTime() - start);
+            return () -> {
+                lock.unlock();
+                table.computeIfPresent(key, (k, e) -> (--e.users == 0) ? null : e);
+            };
+        }
+    }
 
-            // CREATE SERVER
+    /* ============================================= */
+    /* ===                                       === */
+    /* ===              FILE CACHE               === */
+    /* ===                                       === */
+    /* ============================================= */
+
+    /* Content cache for files that are downloaded over and over.
+     *      Files up to CACHE_ENTRY_MAX bytes are copied once into direct buffers, outside the Java heap,
+     *      and later gets write them to the socket straight from memory. A file is only admitted on its
+     *      second miss: the first one just remembers it among the last CACHE_CANDIDATES paths, so files
+     *      that are downloaded once never evict the ones downloaded over and over. The least recently
+     *      used entries are evicted once the cache holds more than its capacity. An entry is only served
+     *      while the file's size and modification time still match, which catches changes made outside
+     *      the server, and the server's own put and delete drop the entry right away.
+     */
+    private static class FileCache {
+
+        private final Lock cacheMutex = new ReentrantLock();
+        private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private final LinkedHashMap<Path, FileTime> candidates = new LinkedHashMap<>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Path, FileTime> eldest) {
+                return size() > CACHE_CANDIDATES;
+            }
+        };
+        private final long capacity;
+        private long used;
+        private long hits;
+        private long misses;
+        private long evictions;
+
+        private static class Entry {
+            private final ByteBuffer content;
+            private final FileTime modified;
+
+            Entry(ByteBuffer content, FileTime modified) {
+                this.content = content;
+                this.modified = modified;
+            }
+        }
+
+        FileCache(long capacity) {
+            this.capacity = capacity;
+        }
+
+        // Cached content of the file with these attributes, or null
+        ByteBuffer lookup(Path path, BasicFileAttributes attributes) {
+            Path key = path.toAbsolutePath().normalize();
+            cacheMutex.lock();
             try {
-                server = new ServerSocket(port);
-            } catch (IOException e) {
-                System.out.println("FTP Server Error: Error creating socket.");
-                System.exit(0);
-            } catch (SecurityException e) {
-                System.out.println("FTP Server Error: (Security Exception) checkListen() failed.");
-                System.exit(0);
-            } catch (IllegalArgumentException e) {
-                System.out.println("FTP Server Error: Normal_Port " + port + " is outside valid range.");
-                System.exit(0);
+                Entry entry = entries.get(key);
+                if (entry != null && entry.content.capacity() == attributes.size()
+                        && entry.modified.equals(attributes.lastModifiedTime())) {
+                    hits++;
+                    return entry.content.duplicate();
+                }
+                if (entry != null) remove(key);
+                misses++;
+                return null;
+            } finally {
+                cacheMutex.unlock();
             }
+        }
 
-            System.out.println("Waiting for clients ...");
+        // Whether a missed file should be loaded now, true only if the same version missed before
+        boolean admit(Path path, BasicFileAttributes attributes) {
+            if (attributes.size() > CACHE_ENTRY_MAX || attributes.size() > capacity) return false;
+            Path key = path.toAbsolutePath().normalize();
+            FileTime modified = attributes.lastModifiedTime();
+            cacheMutex.lock();
+            try {
+                if (modified.equals(candidates.remove(key))) return true;
+                candidates.put(key, modified);
+                return false;
+            } finally {
+                cacheMutex.unlock();
+            }
+        }
 
-            while (true) {
+        // Copies an open file into the cache, returns its content or null when it is not cacheable
+        ByteBuffer load(Path path, BasicFileAttributes attributes, FileChannel file) throws IOException {
+            long size = attributes.size();
+            if (size > CACHE_ENTRY_MAX || size > capacity) return null;
 
-                // ACCEPT CONNECTION
-                try {
-                    socket = server.accept();
-                    new DataOutputStream(socket.getOutputStream()).writeInt(handlerId);
-                } catch (IOException e) {
-                    System.out.println("FTP Server Error: Error connecting to client... Restarting.");
-                    continue;
-                } catch (SecurityException e) {
-                    System.out.println("FTP Server Error: (Security Exception) Cannot accept incoming connection.");
-                    System.exit(0);
+            ByteBuffer content;
+            try {
+                content = ByteBuffer.allocateDirect((int) size);
+            } catch (OutOfMemoryError e) {
+                // Direct memory is limited separately from the heap, serve this one from disk
+                return null;
+            }
+            while (content.hasRemaining()) {
+                if (file.read(content, content.position()) < 0) return null;
+            }
+            content.flip();
+            content = content.asReadOnlyBuffer();
+
+            Path key = path.toAbsolutePath().normalize();
+            cacheMutex.lock();
+            try {
+                remove(key);
+                entries.put(key, new Entry(content, attributes.lastModifiedTime()));
+                used += size;
+                Iterator<Map.Entry<Path, Entry>> eldest = entries.entrySet().iterator();
+                while (used > capacity && eldest.hasNext()) {
+                    used -= eldest.next().getValue().content.capacity();
+                    eldest.remove();
+                    evictions++;
                 }
+            } finally {
+                cacheMutex.unlock();
+            }
+            return content.duplicate();
+        }
 
-                // Create client handler
-                Client handler = new Client(socket, handlerId);
-                handler.start();
+        void invalidate(Path path) {
+            cacheMutex.lock();
+            try {
+                Path key = path.toAbsolutePath().normalize();
+                remove(key);
+                candidates.remove(key);
+            } finally {
+                cacheMutex.unlock();
+            }
+        }
+
+        private void remove(Path key) {
+            Entry entry = entries.remove(key);
+            if (entry != null) used -= entry.content.capacity();
+        }
+
+        private void printStatus() {
+            cacheMutex.lock();
+            try {
+                System.out.println("\t> Cache hits\t\t" + hits);
+                System.out.println("\t> Cache misses\t\t" + misses);
+                System.out.println("\t> Cache evictions\t" + evictions);
+                System.out.println("\t> Cache size\t\t" + used + " / " + capacity + " bytes, " + entries.size() + " files");
+                System.out.println("\t> Cache candidates\t" + candidates.size() + " files");
+            } finally {
+                cacheMutex.unlock();
+            }
+        }
+    }
+
+    /* The data behind a get: cached content when the file is in the cache, else the open file */
+    private static class FileSource implements Closeable {
+
+        private final FileChannel file;
+        private final ByteBuffer content;
+        private final long size;
+        private final long modified;
+
+        FileSource(FileChannel file, ByteBuffer content, long size, FileTime modified) {
+            this.file = file;
+            this.content = content;
+            this.size = size;
+            this.modified = modified.toMillis();
+        }
+
+        long size() {
+            return size;
+        }
+
+        // Modification time in ms since the epoch, for validated gets
+        long modified() {
+            return modified;
+        }
+
+        // What a resumed get sends as -i, see myftpprotocol (validated get)
+        String validator() {
+            return size + ":" + modified;
+        }
+
+        // One write of a file range to the socket, returns the number of bytes sent
+        long transferTo(long position, long length, WritableByteChannel target) throws IOException {
+            if (content == null) return file.transferTo(position, length, target);
+            ByteBuffer range = content.duplicate();
+            range.limit((int) (position + length)).position((int) position);
+            return target.write(range);
+        }
+
+        // Reads exactly length bytes from position into buffer, for transfers that encode the data
+        void read(long position, byte[] buffer, int length) throws IOException {
+            read(position, buffer, 0, length);
+        }
+
+        void read(long position, byte[] buffer, int offset, int length) throws IOException {
+            if (content != null) {
+                ByteBuffer range = content.duplicate();
+                range.position((int) position);
+                range.get(buffer, offset, length);
+                return;
+            }
+            ByteBuffer data = ByteBuffer.wrap(buffer, offset, length);
+            while (data.hasRemaining()) {
+                if (file.read(data, position + data.position() - offset) < 0)
+                    throw new EOFException("File truncated during transfer");
+            }
+        }
+
+        public void close() throws IOException {
+            if (file != null) file.close();
+        }
+    }
+
+    /* A FileSource read from start to end, for the files of get -r */
+    private static class SourceStream extends InputStream {
+
+        private final FileSource source;
+        private long position;
+
+        SourceStream(FileSource source) {
+            this.source = source;
+        }
+
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return (read(one, 0, 1) < 0) ? -1 : one[0] & 0xff;
+        }
+
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int count = (int) Math.min(length, source.size() - position);
+            if (count <= 0) return (length == 0) ? 0 : -1;
+            source.read(position, buffer, offset, count);
+            position += count;
+            return count;
+        }
+
+        public void close() throws IOException {
+            source.close();
+        }
+    }
+
+    // Opens a regular file for a get, the open file stays readable even if it is replaced later
+    private FileSource openSource(Path path) throws IOException {
+        return openSource(path, false);
+    }
+
+    // With deferLoad, a file admitted to the cache is loaded by the cache loader instead of the caller
+    private FileSource openSource(Path path, boolean deferLoad) throws IOException {
+        BasicFileAttributes attributes;
+        FileChannel file;
+        boolean admitted;
+        PathLock lock = pathLocks.read(path);
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (!attributes.isRegularFile()) throw new FileNotFoundException(path.toString());
+
+            // Manifests are read from their chunks, which the page cache keeps anyway
+            Manifest manifest = (store != null) ? store.readManifest(path, attributes) : null;
+            if (manifest != null) return new ChunkedSource(store, manifest, attributes.lastModifiedTime());
+
+            ByteBuffer cached = fileCache.lookup(path, attributes);
+            if (cached != null) return new FileSource(null, cached, attributes.size(), attributes.lastModifiedTime());
+            admitted = fileCache.admit(path, attributes);
+            file = FileChannel.open(path, StandardOpenOption.READ);
+        } finally {
+            lock.unlock();
+        }
+
+        // The attributes were read under the same lock as the open, so they describe this file
+        try {
+            ByteBuffer loaded = null;
+            if (admitted && deferLoad) cacheLoader.submit(path);
+            else if (admitted) loaded = fileCache.load(path, attributes, file);
+            if (loaded != null) {
+                file.close();
+                return new FileSource(null, loaded, attributes.size(), attributes.lastModifiedTime());
+            }
+            return new FileSource(file, null, file.size(), attributes.lastModifiedTime());
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /* Loads files admitted by nio gets into the cache, away from the event loops.
+     *      A loop only queues the path and serves the get from disk, the next get is served from memory.
+     *      When CACHE_LOADS_MAX loads are already waiting, the path is dropped and has to be admitted again.
+     */
+    private class CacheLoader implements Runnable {
+
+        private final BlockingQueue<Path> loads = new LinkedBlockingQueue<>(CACHE_LOADS_MAX);
+
+        void submit(Path path) {
+            loads.offer(path);
+        }
 
-                synchronized (clientMapMutex) {
-                    clients.put(handlerId, handler);
+        public void run() {
+            while (true) {
+                Path path;
+                try {
+                    path = loads.take();
+                } catch (InterruptedException e) {
+                    return;
                 }
-                handlerId ++;
+                try {
+                    load(path);
+                } catch (IOException e) {
+                    // Deleted or replaced in the meantime, the next get admits it again
+                }
+            }
+        }
+
+        private void load(Path path) throws IOException {
+            BasicFileAttributes attributes;
+            FileChannel file;
+            PathLock lock = pathLocks.read(path);
+            try {
+                attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                if (!attributes.isRegularFile()) return;
+                file = FileChannel.open(path, StandardOpenOption.READ);
+            } finally {
+                lock.unlock();
+            }
+            try (FileChannel open = file) {
+                fileCache.load(path, attributes, open);
             }
         }
     }
 
     /* ============================================= */
     /* ===                                       === */
-    /* ===          TERMINATOR THREAD            === */
+    /* ===              CHUNK STORE              === */
     /* ===                                       === */
     /* ============================================= */
 
-    private class Terminator extends Thread {
+    /* Content addressed storage for uploads (server option "dedup").
+     *      Every upload is cut into chunks (see myftpchunk) that are stored once under .chunks/ in the
+     *      server's root, named by their SHA-256, and the uploaded file becomes a manifest of its chunks.
+     *      Only thread and virtual mode handlers ingest uploads, nio sessions store them whole.
+     *      get, ls -l and stat read a manifest as the file it describes, files that are not manifests are
+     *      served as they are. Chunks are never changed or removed while the server runs, so an open
+     *      manifest stays readable; the chunks no manifest uses any more are removed at startup.
+     *      A file is only read as a manifest while .chunks/manifests/ has a record for its path that lists
+     *      the file's current size and modification time, so uploads stored whole and files changed from
+     *      outside the server are served as they are whatever they contain.
+     *
+     *      Manifest: [MAGIC (8 bytes)][file size (long)][chunk count (int)]  then per chunk  [length (int)][SHA-256]
+     *      Record:   .chunks/manifests/<SHA-256 of the path>, the path relative to the root on the first line,
+     *                then "<size> <modified (ms)>" per manifest the path may hold
+     */
+    private static class ChunkStore {
+
+        private static final byte[] MAGIC = "myftpMF1".getBytes(StandardCharsets.US_ASCII);
+        private static final int MANIFEST_HEADER_SIZE = MAGIC.length + 12;
+        private static final int MANIFEST_ENTRY_SIZE = 4 + myftpchunk.HASH_SIZE;
+
+        private final Path root;
+        private final Path dir;
+        private final Path index;
+        private final AtomicLong stored = new AtomicLong();
+        private final AtomicLong reused = new AtomicLong();
+
+        ChunkStore(Path root) throws IOException {
+            this.root = root;
+            this.dir = root.resolve(".chunks");
+            this.index = dir.resolve("manifests");
+            Files.createDirectories(index);
+        }
 
-        private Socket socket;
-        private ServerSocket server;
-        private DataInputStream socket_in;
-        boolean running;
+        boolean contains(byte[] hash) {
+            return Files.isRegularFile(chunkPath(hash));
+        }
 
-        private Map<Integer, Client> map;
-        private int port;
+        // Stores length bytes of data under their hash, unless a chunk with this hash is there already
+        void store(byte[] hash, byte[] data, int length) throws IOException {
+            Path chunk = chunkPath(hash);
+            if (Files.isRegularFile(chunk)) {
+                reused.incrementAndGet();
+                return;
+            }
 
-        Terminator(int port) {
-            super();
-            this.port = port;
+            // Written beside its final name and renamed, so a chunk is either complete or missing
+            Files.createDirectories(chunk.getParent());
+            Path temp = Files.createTempFile(chunk.getParent(), ".chunk", ".part");
+            try {
+                try (OutputStream out = Files.newOutputStream(temp)) {
+                    out.write(data, 0, length);
+                }
+                Files.move(temp, chunk, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+            stored.incrementAndGet();
         }
 
-        public void run() {
-            init();
-            listen();
+        FileChannel openChunk(byte[] hash) throws IOException {
+            return FileChannel.open(chunkPath(hash), StandardOpenOption.READ);
         }
 
-        private void init() {
+        // The manifest in a regular file with these attributes, null if the file is not a manifest
+        Manifest readManifest(Path path, BasicFileAttributes attributes) throws IOException {
+            if (!attributes.isRegularFile() || !indexed(readRecord(path), attributes)) return null;
 
-            map = new HashMap<>();
-            running = true;
+            long size = attributes.size();
+            if (size < MANIFEST_HEADER_SIZE || size > Integer.MAX_VALUE
+                    || (size - MANIFEST_HEADER_SIZE) % MANIFEST_ENTRY_SIZE != 0) throw new IOException("Invalid manifest size");
 
-            // CREATE SERVER
+            byte[] content;
+            try (InputStream in = Files.newInputStream(path)) {
+                if (!Arrays.equals(in.readNBytes(MAGIC.length), MAGIC)) throw new IOException("Invalid manifest");
+                content = in.readNBytes((int) size - MAGIC.length);
+            }
+            if (content.length != size - MAGIC.length) throw new EOFException("Manifest truncated");
+
+            ByteBuffer data = ByteBuffer.wrap(content);
+            long fileSize = data.getLong();
+            int count = data.getInt();
+            if (count != (size - MANIFEST_HEADER_SIZE) / MANIFEST_ENTRY_SIZE) throw new IOException("Invalid manifest");
+            return Manifest.read(fileSize, count, data);
+        }
+
+        /* Records that target holds a manifest once the one in partial is moved there. The record keeps
+         * listing the file target holds now until then, so a move that fails leaves it readable; older
+         * entries are dropped. Called with target's write lock held.
+         */
+        void index(Path partial, Path target) throws IOException {
+            List<String> record = new ArrayList<>();
+            record.add(relative(target));
+            List<String> previous = readRecord(target);
+            BasicFileAttributes current = readAttributes(target);
+            if (current != null && indexed(previous, current)) record.add(identity(current));
+            record.add(identity(Files.readAttributes(partial, BasicFileAttributes.class)));
+            writeRecord(target, record);
+        }
+
+        // Forgets that path held a manifest, after it was deleted or replaced by a file stored whole
+        void unindex(Path path) {
             try {
-                server = new ServerSocket(port);
+                Files.deleteIfExists(recordPath(path));
             } catch (IOException e) {
-                System.out.println("FTP Server Error: Error creating terminator socket.");
-                System.exit(0);
-            } catch (SecurityException e) {
-                System.out.println("FTP Server Error: (Security Exception) checkListen() failed in terminator socket.");
-                System.exit(0);
-            } catch (IllegalArgumentException e) {
-                System.out.println("FTP Server Error: Terminator Port " + port + " is outside valid range.");
-                System.exit(0);
+                // It no longer lists the file there, sweep drops it at the next start
+            }
+        }
+
+        // Attributes as ls -l and stat show them, with the size of the file a manifest describes
+        BasicFileAttributes logical(Path path, BasicFileAttributes attributes) {
+            try {
+                Manifest manifest = readManifest(path, attributes);
+                return (manifest != null) ? new ManifestAttributes(attributes, manifest.size) : attributes;
+            } catch (IOException e) {
+                return attributes;
+            }
+        }
+
+        // Cuts a complete upload into chunks and replaces its content with its manifest
+        void ingest(Path file) throws IOException {
+            MessageDigest digest = myftpchunk.hashDigest();
+            byte[] chunk = new byte[myftpchunk.CHUNK_MAX];
+            ByteArrayOutputStream entries = new ByteArrayOutputStream();
+            DataOutputStream entry = new DataOutputStream(entries);
+            long size = 0;
+            int count = 0;
+
+            try (InputStream in = Files.newInputStream(file)) {
+                myftpchunk.Chunker chunker = new myftpchunk.Chunker(in);
+                int length;
+                while ((length = chunker.next(chunk)) > 0) {
+                    digest.update(chunk, 0, length);
+                    byte[] hash = digest.digest();
+                    store(hash, chunk, length);
+                    entry.writeInt(length);
+                    entry.write(hash);
+                    size += length;
+                    count++;
+                }
+            }
+            writeManifest(file, size, count, entries.toByteArray());
+        }
+
+        // Entries are [length (int)][SHA-256] per chunk, as put -h receives them from the client
+        void writeManifest(Path file, long size, int count, byte[] entries) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(MANIFEST_HEADER_SIZE).put(MAGIC).putLong(size).putInt(count);
+            try (OutputStream out = Files.newOutputStream(file, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                out.write(header.array());
+                out.write(entries);
+            }
+        }
+
+        // Removes the chunks no indexed manifest refers to, and the records of files that are gone or
+        // changed, before any client is connected
+        int sweep() throws IOException {
+            Set<String> used = new HashSet<>();
+            try (DirectoryStream<Path> records = Files.newDirectoryStream(index)) {
+                for (Path record : records) {
+                    List<String> lines = readLines(record);
+                    Path path = (lines == null || lines.isEmpty()) ? null : root.resolve(lines.get(0));
+                    BasicFileAttributes attributes = (path == null) ? null : readAttributes(path);
+                    Manifest manifest = null;
+                    try {
+                        if (attributes != null) manifest = readManifest(path, attributes);
+                    } catch (IOException e) {
+                        // Unreadable, its chunks are kept only if another manifest uses them
+                    }
+                    if (manifest == null) {
+                        Files.delete(record);
+                        continue;
+                    }
+                    for (byte[] hash : manifest.hashes) used.add(myftpchunk.hex(hash));
+                    if (lines.size() > 2) writeRecord(path, List.of(lines.get(0), identity(attributes)));
+                }
+            }
+
+            // Leftover temporary chunks are not in use either
+            int[] removed = new int[1];
+            Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+                public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attributes) {
+                    return path.equals(index) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+                }
+
+                public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) throws IOException {
+                    if (!used.contains(path.getFileName().toString())) {
+                        Files.delete(path);
+                        removed[0]++;
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            return removed[0];
+        }
+
+        private Path chunkPath(byte[] hash) {
+            String name = myftpchunk.hex(hash);
+            return dir.resolve(name.substring(0, 2)).resolve(name);
+        }
+
+        private Path recordPath(Path path) {
+            MessageDigest digest = myftpchunk.hashDigest();
+            return index.resolve(myftpchunk.hex(digest.digest(relative(path).getBytes(StandardCharsets.UTF_8))));
+        }
+
+        private String relative(Path path) {
+            return root.relativize(path.toAbsolutePath().normalize()).toString();
+        }
+
+        // The record of path, null if there is none or it belongs to another path
+        private List<String> readRecord(Path path) throws IOException {
+            List<String> lines = readLines(recordPath(path));
+            return (lines != null && !lines.isEmpty() && lines.get(0).equals(relative(path))) ? lines : null;
+        }
+
+        // Written beside its final name and renamed like a chunk
+        private void writeRecord(Path path, List<String> lines) throws IOException {
+            Path temp = Files.createTempFile(index, ".record", ".part");
+            try {
+                Files.write(temp, lines, StandardCharsets.UTF_8);
+                Files.move(temp, recordPath(path), StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+
+        private static boolean indexed(List<String> record, BasicFileAttributes attributes) {
+            return record != null && record.subList(1, record.size()).contains(identity(attributes));
+        }
+
+        private static String identity(BasicFileAttributes attributes) {
+            return attributes.size() + " " + attributes.lastModifiedTime().toMillis();
+        }
+
+        private static List<String> readLines(Path path) throws IOException {
+            try {
+                return Files.readAllLines(path, StandardCharsets.UTF_8);
+            } catch (NoSuchFileException e) {
+                return null;
+            }
+        }
+
+        private static BasicFileAttributes readAttributes(Path path) {
+            try {
+                return Files.readAttributes(path, BasicFileAttributes.class);
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        private void printStatus() {
+            System.out.println("\t> Chunks stored\t\t" + stored.get());
+            System.out.println("\t> Chunks reused\t\t" + reused.get());
+        }
+    }
+
+    /* The chunks of one file, offsets[i] is where chunk i starts and offsets[count] is the file size */
+    private static class Manifest {
+
+        private final long size;
+        private final long[] offsets;
+        private final byte[][] hashes;
+
+        private Manifest(long size, int count) {
+            this.size = size;
+            this.offsets = new long[count + 1];
+            this.hashes = new byte[count][];
+        }
+
+        // count entries of [length (int)][SHA-256], which have to add up to size
+        static Manifest read(long size, int count, ByteBuffer entries) throws IOException {
+            Manifest manifest = new Manifest(size, count);
+            for (int i = 0; i < count; i++) {
+                int length = entries.getInt();
+                if (length <= 0 || length > myftpchunk.CHUNK_MAX) throw new IOException("Invalid chunk length " + length);
+                manifest.hashes[i] = new byte[myftpchunk.HASH_SIZE];
+                entries.get(manifest.hashes[i]);
+                manifest.offsets[i + 1] = manifest.offsets[i] + length;
+            }
+            if (manifest.offsets[count] != size) throw new IOException("Manifest does not add up to its size");
+            return manifest;
+        }
+
+        int length(int chunk) {
+            return (int) (offsets[chunk + 1] - offsets[chunk]);
+        }
+
+        // The chunk that holds position, which has to lie inside the file
+        int chunkAt(long position) {
+            int index = Arrays.binarySearch(offsets, position);
+            return (index >= 0) ? index : -index - 2;
+        }
+    }
+
+    /* A manifest's file for get, read from the chunk store one chunk at a time */
+    private static class ChunkedSource extends FileSource {
+
+        private final ChunkStore store;
+        private final Manifest manifest;
+        private FileChannel chunk;
+        private int current = -1;
+
+        ChunkedSource(ChunkStore store, Manifest manifest, FileTime modified) {
+            super(null, null, manifest.size, modified);
+            this.store = store;
+            this.manifest = manifest;
+        }
+
+        // Sends at most the rest of the chunk that holds position
+        long transferTo(long position, long length, WritableByteChannel target) throws IOException {
+            FileChannel file = chunk(position);
+            long within = position - manifest.offsets[current];
+            return file.transferTo(within, Math.min(length, manifest.length(current) - within), target);
+        }
+
+        void read(long position, byte[] buffer, int offset, int length) throws IOException {
+            ByteBuffer data = ByteBuffer.wrap(buffer, offset, length);
+            while (data.hasRemaining()) {
+                long at = position + data.position() - offset;
+                FileChannel file = chunk(at);
+                long within = at - manifest.offsets[current];
+                data.limit((int) Math.min(offset + length, data.position() + manifest.length(current) - within));
+                if (file.read(data, within) < 0) throw new EOFException("Chunk truncated");
+                data.limit(offset + length);
+            }
+        }
+
+        public void close() throws IOException {
+            if (chunk != null) chunk.close();
+        }
+
+        private FileChannel chunk(long position) throws IOException {
+            int index = manifest.chunkAt(position);
+            if (index != current) {
+                if (chunk != null) chunk.close();
+                chunk = null;
+                chunk = store.openChunk(manifest.hashes[index]);
+                current = index;
+            }
+            return chunk;
+        }
+    }
+
+    /* A manifest's attributes with the size of the file it describes */
+    private static class ManifestAttributes implements BasicFileAttributes {
+
+        private final BasicFileAttributes manifest;
+        private final long size;
+
+        ManifestAttributes(BasicFileAttributes manifest, long size) {
+            this.manifest = manifest;
+            this.size = size;
+        }
+
+        public FileTime lastModifiedTime() {
+            return manifest.lastModifiedTime();
+        }
+
+        public FileTime lastAccessTime() {
+            return manifest.lastAccessTime();
+        }
+
+        public FileTime creationTime() {
+            return manifest.creationTime();
+        }
+
+        public boolean isRegularFile() {
+            return true;
+        }
+
+        public boolean isDirectory() {
+            return false;
+        }
+
+        public boolean isSymbolicLink() {
+            return false;
+        }
+
+        public boolean isOther() {
+            return false;
+        }
+
+        public long size() {
+            return size;
+        }
+
+        public Object fileKey() {
+            return manifest.fileKey();
+        }
+    }
+
+    // What ls -l and stat show for a path, manifests show the size of their file
+    private BasicFileAttributes logicalAttributes(Path path, BasicFileAttributes attributes) {
+        return (store == null || attributes == null) ? attributes : store.logical(path, attributes);
+    }
+
+    /* ============================================= */
+    /* ===                                       === */
+    /* ===            METADATA CACHE             === */
+    /* ===                                       === */
+    /* ============================================= */
+
+    /* Existence, type, size and modification time of the paths that sessions resolve.
+     *      cd, $cd, mkdir and stat answer from here instead of asking the disk on every call. A path is
+     *      only cached while its parent directory is registered with the WatchService, which drops the
+     *      entries that other programs change; the server's own put, delete and mkdir invalidate
+     *      directly. Watch events arrive asynchronously, so an outside change can take a moment to show,
+     *      and an overflowing event queue clears the whole cache.
+     */
+    private static class MetadataCache implements Runnable {
+
+        // Marks a path that does not exist
+        private static final Optional<BasicFileAttributes> MISSING = Optional.empty();
+
+        private final ConcurrentHashMap<Path, Optional<BasicFileAttributes>> entries = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<Path, WatchKey> watched = new ConcurrentHashMap<>();
+        private final AtomicLong invalidations = new AtomicLong();
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private WatchService watcher;
+
+        MetadataCache() {
+            try {
+                watcher = FileSystems.getDefault().newWatchService();
+            } catch (IOException e) {
+                // Nothing can be kept consistent without it, every lookup goes to disk
+                System.out.println("FTP Server Warning: File watching is unavailable, metadata is not cached.");
+                watcher = null;
+            }
+        }
+
+        // Attributes of a path, null if it does not exist
+        BasicFileAttributes lookup(Path path) {
+            Path key = path.toAbsolutePath().normalize();
+            Optional<BasicFileAttributes> cached = entries.get(key);
+            if (cached != null) {
+                hits.incrementAndGet();
+                return cached.orElse(null);
+            }
+            misses.incrementAndGet();
+
+            long stamp = invalidations.get();
+            Optional<BasicFileAttributes> attributes;
+            try {
+                attributes = Optional.of(Files.readAttributes(key, BasicFileAttributes.class));
+            } catch (IOException e) {
+                attributes = MISSING;
+            }
+
+            if (watch(key.getParent())) {
+                if (entries.size() >= METADATA_CACHE_MAX) entries.clear();
+                entries.put(key, attributes);
+
+                // Anything invalidated since the disk was read may be stale, invalidations bump the
+                // counter before they remove, so one of the two sides always drops the entry
+                if (invalidations.get() != stamp) entries.remove(key, attributes);
+            }
+            return attributes.orElse(null);
+        }
+
+        boolean exists(Path path) {
+            return lookup(path) != null;
+        }
+
+        // Drops a changed path and its parent, whose modification time changed with it
+        void invalidate(Path path) {
+            Path key = path.toAbsolutePath().normalize();
+            invalidations.incrementAndGet();
+            entries.remove(key);
+            if (key.getParent() != null) entries.remove(key.getParent());
+
+            // Drop the watches at and below the path, however deep: a moved directory keeps its watch,
+            // which would otherwise report under the old path. Entries are only cached in watched
+            // directories, so the entries below the path only need to go when a watch went.
+            boolean watchedBelow = false;
+            Iterator<Map.Entry<Path, WatchKey>> watches = watched.entrySet().iterator();
+            while (watches.hasNext()) {
+                Map.Entry<Path, WatchKey> watch = watches.next();
+                if (!watch.getKey().startsWith(key)) continue;
+                watch.getValue().cancel();
+                watches.remove();
+                watchedBelow = true;
+            }
+            if (watchedBelow) entries.keySet().removeIf(cached -> cached.startsWith(key));
+        }
+
+        private boolean watch(Path dir) {
+            if (watcher == null || dir == null) return false;
+            if (watched.containsKey(dir)) return true;
+            if (watched.size() >= METADATA_WATCH_MAX) return false;
+
+            WatchKey key = watched.computeIfAbsent(dir, d -> {
+                try {
+                    return d.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                } catch (IOException e) {
+                    return null;
+                }
+            });
+            return key != null;
+        }
+
+        // Watch thread: invalidates whatever the events name
+        public void run() {
+            if (watcher == null) return;
+            while (true) {
+                WatchKey key;
+                try {
+                    key = watcher.take();
+                } catch (InterruptedException | ClosedWatchServiceException e) {
+                    return;
+                }
+
+                Path dir = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        invalidations.incrementAndGet();
+                        entries.clear();
+                    } else {
+                        invalidate(dir.resolve((Path) event.context()));
+                    }
+                }
+
+                // The directory itself is gone
+                if (!key.reset()) invalidate(dir);
+            }
+        }
+
+        private void printStatus() {
+            System.out.println("\t> Metadata hits\t\t" + hits.get());
+            System.out.println("\t> Metadata misses\t" + misses.get());
+            System.out.println("\t> Metadata entries\t" + entries.size() + ", " + watched.size() + " directories watched");
+        }
+    }
+
+    /* ============================================= */
+    /* ===                                       === */
+    /* ===          DIRECTORY LISTING            === */
+    /* ===                                       === */
+    /* ============================================= */
+
+    /* A sorted directory listing for ls, read in-process instead of forking /bin/ls.
+     *      Only the names are read up front. Attributes (ls -l) are read batch by batch while the
+     *      listing is sent, so the first lines of a large directory go out right away.
+     */
+    private static class Listing {
+
+        private static final DateTimeFormatter TIME_FORMAT =
+                DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneId.systemDefault());
+
+        private final Path dir;
+        private final boolean attributes;
+        private final ChunkStore store;
+        private final List<String> names;
+        private final int end;
+        private int next;
+
+        private Listing(Path dir, boolean attributes, ChunkStore store, long offset, long count) throws IOException {
+            this.dir = dir;
+            this.attributes = attributes;
+            this.store = store;
+            this.names = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    String name = entry.getFileName().toString();
+                    if (!name.startsWith(".")) names.add(name);
+                }
+            }
+            Collections.sort(names);
+            this.next = (int) Math.min(offset, names.size());
+            this.end = next + (int) Math.min(count, names.size() - next);
+        }
+
+        // ls [-l] [-o <offset>] [-n <count>], IllegalArgumentException carries the error for the client
+        static Listing of(Path dir, myftpprotocol.Arguments arguments, ChunkStore store) throws IOException {
+            if (arguments.operandCount() > 0)
+                throw new IllegalArgumentException("\"ls\" command doesn't take any arguments");
+            long offset, count;
+            try {
+                offset = arguments.longValue("-o", 0);
+                count = arguments.longValue("-n", Long.MAX_VALUE);
+            } catch (NumberFormatException e) {
+                offset = count = -1;
+            }
+            if (offset < 0 || count < 0)
+                throw new IllegalArgumentException("\"ls\" offset and count must be non-negative numbers");
+            return new Listing(dir, arguments.has("-l"), store, offset, count);
+        }
+
+        // The next lines of the listing, or null once everything was returned
+        String nextBatch() {
+            if (next >= end) return null;
+            StringBuilder batch = new StringBuilder();
+            while (next < end && batch.length() < LIST_BATCH_CHARS) {
+                String name = names.get(next++);
+                if (attributes) appendAttributes(batch, dir.resolve(name));
+                batch.append(name).append('\n');
+            }
+            return batch.toString();
+        }
+
+        private void appendAttributes(StringBuilder line, Path path) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                appendAttributes(line, (store != null) ? store.logical(path, attributes) : attributes);
+            } catch (IOException e) {
+                // Removed while listing, or a dangling link
+                appendAttributes(line, (BasicFileAttributes) null);
+            }
+        }
+
+        // Type, size and modification time columns of ls -l and stat
+        static void appendAttributes(StringBuilder line, BasicFileAttributes attributes) {
+            if (attributes == null) {
+                line.append(String.format("? %12s %16s ", "?", "?"));
+                return;
+            }
+            char type = attributes.isDirectory() ? 'd' : attributes.isRegularFile() ? '-' : '?';
+            line.append(String.format("%c %12d %s ", type, attributes.size(),
+                    TIME_FORMAT.format(attributes.lastModifiedTime().toInstant())));
+        }
+    }
+
+    // Batch frame of a batched listing: length (int) and UTF-8 text
+    private static byte[] listBatch(String batch) {
+        byte[] text = batch.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(4 + text.length).putInt(text.length).put(text).array();
+    }
+
+    /* ============================================= */
+    /* ===                                       === */
+    /* ===               METRICS                 === */
+    /* ===                                       === */
+    /* ============================================= */
+
+    /* Server wide counters and latency histograms, for $stats and the optional metrics port.
+     *      Everything on a command's path is a LongAdder or an atomic bucket increment, so recording
+     *      costs a few nanoseconds and never takes a lock. The text is rendered only when it is asked
+     *      for, in the Prometheus text format so the metrics port can be scraped as it is:
+     *
+     *          name{label="value",...} number
+     *
+     *      Latencies are summaries with the 0.5, 0.99 and 0.999 quantiles, in seconds.
+     */
+    private class Metrics implements Runnable {
+
+        private final long started = System.nanoTime();
+        private final Traffic total = new Traffic(null);
+        private final LongAdder accepted = new LongAdder();
+        private final Map<String, Histogram> commands = new ConcurrentHashMap<>();
+
+        // Every command name the server knows, anything else is counted as "invalid"
+        private final Set<String> names = new HashSet<>(Arrays.asList("get", "put", "delete", "ls", "cd", "mkdir",
+                "pwd", "stat", "quit", "$gwd", "$cd", "$quit", "$", "$hello", myftpmux.MUX, myftpprotocol.TERMINATE,
+                myftpprotocol.GLOB, myftpprotocol.STATS));
+
+        void command(String name, long nanos) {
+            if (name.isEmpty()) return;
+            String key = names.contains(name) ? name : "invalid";
+            commands.computeIfAbsent(key, k -> new Histogram()).record(nanos);
+        }
+
+        // Takes the transfer rates of the server and of every client once per SAMPLE_INTERVAL
+        public void run() {
+            while (true) {
+                try {
+                    Thread.sleep(SAMPLE_INTERVAL);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long now = System.nanoTime();
+                total.sample(now);
+                for (Handler client : clients.values()) client.traffic().sample(now);
+            }
+        }
+
+        String render() {
+            StringBuilder text = new StringBuilder();
+            line(text, "myftp_uptime_seconds", "", seconds(System.nanoTime() - started));
+            line(text, "myftp_clients", "", clients.size());
+            line(text, "myftp_connections_accepted_total", "", accepted.sum());
+            long[] queue = acceptQueue(nport);
+            if (queue != null) {
+                line(text, "myftp_accept_queue_length", "", queue[0]);
+                // Some kernels leave the limit out
+                if (queue[1] > 0) line(text, "myftp_accept_queue_limit", "", queue[1]);
+            }
+
+            // Commands
+            List<String> sorted = new ArrayList<>(commands.keySet());
+            Collections.sort(sorted);
+            for (String name : sorted) {
+                Histogram latency = commands.get(name);
+                String label = "command=\"" + name + "\"";
+                line(text, "myftp_commands_total", label, latency.count());
+                summary(text, "myftp_command_latency_seconds", label, latency);
+            }
+
+            // Traffic, rates are bytes per second over the last sample
+            line(text, "myftp_received_bytes_total", "", total.in.sum());
+            line(text, "myftp_sent_bytes_total", "", total.out.sum());
+            line(text, "myftp_receive_bytes_per_second", "", total.inRate);
+            line(text, "myftp_send_bytes_per_second", "", total.outRate);
+            List<Integer> ids = new ArrayList<>(clients.keySet());
+            Collections.sort(ids);
+            for (int id : ids) {
+                Handler client = clients.get(id);
+                if (client == null) continue;
+                Traffic traffic = client.traffic();
+                String label = "client=\"" + id + "\"";
+                line(text, "myftp_client_received_bytes_total", label, traffic.in.sum());
+                line(text, "myftp_client_sent_bytes_total", label, traffic.out.sum());
+                line(text, "myftp_client_receive_bytes_per_second", label, traffic.inRate);
+                line(text, "myftp_client_send_bytes_per_second", label, traffic.outRate);
+            }
+
+            // File system locks, the count is the number of acquisitions
+            summary(text, "myftp_lock_wait_seconds", "mode=\"read\"", pathLocks.readWaits);
+            summary(text, "myftp_lock_wait_seconds", "mode=\"write\"", pathLocks.writeWaits);
+            return text.toString();
+        }
+
+        private void summary(StringBuilder text, String name, String label, Histogram histogram) {
+            long[] counts = histogram.snapshot();
+            long max = histogram.max();
+            for (double quantile : QUANTILES) {
+                // A bucket's highest value can lie above anything recorded in it
+                long value = Math.min(Histogram.quantile(counts, quantile), max);
+                line(text, name, label + ",quantile=\"" + quantile + "\"", seconds(value));
+            }
+            line(text, name + "_max", label, seconds(max));
+            line(text, name + "_sum", label, seconds(histogram.sum()));
+            line(text, name + "_count", label, histogram.count());
+        }
+
+        private void line(StringBuilder text, String name, String label, Object value) {
+            text.append(name);
+            if (!label.isEmpty()) text.append('{').append(label).append('}');
+            text.append(' ').append(value).append('\n');
+        }
+
+        private double seconds(long nanos) {
+            return nanos / 1e9;
+        }
+    }
+
+    /* HDR style histogram of nanosecond values.
+     *      Every power of two is split into SUB_BUCKETS linear buckets, so a recorded value is off by at
+     *      most 1 / SUB_BUCKETS (about 3%) whatever its size, from nanoseconds to minutes, in a fixed
+     *      array of a little over a thousand counters. Values above 2^MAX_EXPONENT ns (18 minutes) are
+     *      counted in the last bucket.
+     */
+    private static class Histogram {
+
+        private static final int SUB_BUCKET_BITS = 5;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int MAX_EXPONENT = 40;
+        private static final long MAX_VALUE = (1L << MAX_EXPONENT) - 1;
+
+        private final AtomicLongArray counts = new AtomicLongArray((MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        void record(long nanos) {
+            long value = Math.max(0, Math.min(nanos, MAX_VALUE));
+            counts.incrementAndGet(index(value));
+            count.increment();
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        long sum() {
+            return sum.sum();
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        // The buckets as they are now, other threads may keep recording
+        long[] snapshot() {
+            long[] copy = new long[counts.length()];
+            for (int i = 0; i < copy.length; i++) copy[i] = counts.get(i);
+            return copy;
+        }
+
+        // Highest value of the bucket that holds the quantile, 0 for an empty histogram
+        static long quantile(long[] counts, double quantile) {
+            long total = 0;
+            for (long count : counts) total += count;
+            if (total == 0) return 0;
+
+            long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return highest(i);
+            }
+            return highest(counts.length - 1);
+        }
+
+        // Values below SUB_BUCKETS have a bucket each, above that 2^shift values share one
+        private static int index(long value) {
+            if (value < SUB_BUCKETS) return (int) value;
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+        }
+
+        private static long highest(int index) {
+            if (index < SUB_BUCKETS) return index;
+            int shift = index / SUB_BUCKETS - 1;
+            long sub = SUB_BUCKETS + index % SUB_BUCKETS;
+            return ((sub + 1) << shift) - 1;
+        }
+    }
+
+    /* Bytes received from and sent to one client, or to all of them */
+    private static class Traffic {
+
+        private final Traffic total;
+        private final LongAdder in = new LongAdder();
+        private final LongAdder out = new LongAdder();
+
+        // Bytes per second during the last sample, written by the sampling thread only
+        private volatile double inRate;
+        private volatile double outRate;
+        private long sampled = System.nanoTime();
+        private long sampledIn;
+        private long sampledOut;
+
+        Traffic(Traffic total) {
+            this.total = total;
+        }
+
+        void received(long bytes) {
+            in.add(bytes);
+            if (total != null) total.in.add(bytes);
+        }
+
+        void sent(long bytes) {
+            out.add(bytes);
+            if (total != null) total.out.add(bytes);
+        }
+
+        void sample(long now) {
+            double seconds = Math.max(1, now - sampled) / 1e9;
+            long inBytes = in.sum();
+            long outBytes = out.sum();
+            inRate = (inBytes - sampledIn) / seconds;
+            outRate = (outBytes - sampledOut) / seconds;
+            sampled = now;
+            sampledIn = inBytes;
+            sampledOut = outBytes;
+        }
+    }
+
+    /* Socket input that counts what is read from it */
+    private static class CountingInputStream extends FilterInputStream {
+
+        private final Traffic traffic;
+
+        CountingInputStream(InputStream in, Traffic traffic) {
+            super(in);
+            this.traffic = traffic;
+        }
+
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) traffic.received(1);
+            return b;
+        }
+
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int count = in.read(buffer, offset, length);
+            if (count > 0) traffic.received(count);
+            return count;
+        }
+    }
+
+    /* Socket output that counts what is written to it */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private final Traffic traffic;
+
+        CountingOutputStream(OutputStream out, Traffic traffic) {
+            super(out);
+            this.traffic = traffic;
+        }
+
+        public void write(int b) throws IOException {
+            out.write(b);
+            traffic.sent(1);
+        }
+
+        // Passed on whole, FilterOutputStream would write it byte by byte
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+            traffic.sent(length);
+        }
+    }
+
+    /* Serves the metrics text on a local port, to every connection that is made to it.
+     *      A connection that starts with an HTTP GET gets an HTTP response, so scrapers can read it, any
+     *      other connection (nc, telnet) gets the plain text once it sent a line or stayed quiet for
+     *      METRICS_READ_TIMEOUT.
+     */
+    private class MetricsPort implements Runnable {
+
+        private final int port;
+
+        MetricsPort(int port) {
+            this.port = port;
+        }
+
+        public void run() {
+            ServerSocket server;
+            try {
+                server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+            } catch (IOException | IllegalArgumentException e) {
+                System.out.println("FTP Server Error: Unable to open metrics port " + port + ".");
+                return;
+            }
+
+            while (true) {
+                Socket socket;
+                try {
+                    socket = server.accept();
+                } catch (IOException e) {
+                    System.out.println("FTP Server Error: Error connecting to metrics client... Restarting.");
+                    continue;
+                }
+                threads.newThread(() -> serve(socket)).start();
+            }
+        }
+
+        private void serve(Socket socket) {
+            try (Socket connection = socket) {
+                connection.setSoTimeout(METRICS_READ_TIMEOUT);
+                BufferedReader request = new BufferedReader(new InputStreamReader(connection.getInputStream(),
+                        StandardCharsets.US_ASCII));
+                String line;
+                try {
+                    line = request.readLine();
+                } catch (SocketTimeoutException e) {
+                    line = null;
+                }
+
+                byte[] body = metrics.render().getBytes(StandardCharsets.UTF_8);
+                OutputStream out = new BufferedOutputStream(connection.getOutputStream());
+                if (line != null && line.startsWith("GET ")) {
+
+                    // The headers are not needed, but a client may wait until they were read
+                    try {
+                        while ((line = request.readLine()) != null && !line.isEmpty());
+                    } catch (SocketTimeoutException e) {
+                        // Send the response anyway
+                    }
+                    String header = "HTTP/1.0 200 OK\r\nContent-Type: text/plain; version=0.0.4\r\n"
+                            + "Content-Length: " + body.length + "\r\nConnection: close\r\n\r\n";
+                    out.write(header.getBytes(StandardCharsets.US_ASCII));
+                }
+                out.write(body);
+                out.flush();
+            } catch (IOException e) {
+                // The scraper went away
+            }
+        }
+    }
+
+    // Connections waiting to be accepted on port and the most the kernel queues, null where Linux
+    // /proc/net/tcp is missing. For a listening socket its rx_queue is the accept queue length and its
+    // tx_queue the backlog limit.
+    private static long[] acceptQueue(int port) {
+        for (String table : new String[] {"/proc/net/tcp", "/proc/net/tcp6"}) {
+            List<String> lines;
+            try {
+                lines = Files.readAllLines(Paths.get(table), StandardCharsets.US_ASCII);
+            } catch (IOException e) {
+                continue;
+            }
+            for (String line : lines) {
+                String[] fields = line.trim().split("\\s+");
+                if (fields.length < 5 || !fields[3].equals("0A")) continue;
+                String local = fields[1];
+                String[] queues = fields[4].split(":");
+                try {
+                    if (Integer.parseInt(local.substring(local.lastIndexOf(':') + 1), 16) != port) continue;
+                    return new long[] {Long.parseLong(queues[1], 16), Long.parseLong(queues[0], 16)};
+                } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                    // Not a socket line
+                }
+            }
+        }
+        return null;
+    }
+
+    // Text split at line ends into pieces writeUTF can take, for replies to clients without framing
+    private static List<String> utfPieces(String text) {
+        List<String> pieces = new ArrayList<>();
+        int start = 0;
+        while (start < text.length()) {
+            int end = Math.min(text.length(), start + LIST_BATCH_CHARS);
+            int newline = text.lastIndexOf('\n', end - 1);
+            if (end < text.length() && newline >= start) end = newline + 1;
+            pieces.add(text.substring(start, end));
+            start = end;
+        }
+        return pieces;
+    }
+
+    /* ============================================= */
+    /* ===                                       === */
+    /* ===           LISTENER THREAD             === */
+    /* ===                                       === */
+    /* ============================================= */
+
+
+    private class Listener implements Runnable {
+
+        private int port;
+        private SocketChannel socket;
+        private ServerSocketChannel server;
+
+        Listener(int port) {
+            this.port = port;
+        }
+
+        public void run() {
+            listen();
+        }
+
+        private void listen() {
+
+            int handlerId = 0;
+
+            // CREATE SERVER
+            //      Channel based, so Client.get() can hand file data to the socket with transferTo()
+            try {
+                server = ServerSocketChannel.open();
+                server.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+            } catch (IOException e) {
+                System.out.println("FTP Server Error: Error creating socket.");
+                System.exit(0);
+            } catch (SecurityException e) {
+                System.out.println("FTP Server Error: (Security Exception) checkListen() failed.");
+                System.exit(0);
+            } catch (IllegalArgumentException e) {
+                System.out.println("FTP Server Error: Normal_Port " + port + " is outside valid range.");
+                System.exit(0);
+            }
+
+            System.out.println("Waiting for clients ...");
+
+            while (true) {
+
+                // ACCEPT CONNECTION
+                try {
+                    socket = server.accept();
+
+                    // Replies are small writes the client waits on, Nagle would hold them back
+                    socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    new DataOutputStream(socket.socket().getOutputStream()).writeInt(handlerId);
+                } catch (IOException e) {
+                    System.out.println("FTP Server Error: Error connecting to client... Restarting.");
+                    continue;
+                } catch (SecurityException e) {
+                    System.out.println("FTP Server Error: (Security Exception) Cannot accept incoming connection.");
+                    System.exit(0);
+                }
+
+                // Create client handler, registered before it runs so its first $gwd finds it
+                metrics.accepted.increment();
+                Client handler = new Client(socket, handlerId);
+                clients.put(handlerId, handler);
+                threads.newThread(handler).start();
+                handlerId ++;
+            }
+        }
+    }
+
+    /* ============================================= */
+    /* ===                                       === */
+    /* ===          TERMINATOR THREAD            === */
+    /* ===                                       === */
+    /* ============================================= */
+
+    private class Terminator implements Runnable {
+
+        private ServerSocket server;
+        boolean running;
+
+        // Active commands, a command is cancelled through its own token and removes only that token
+        private final Map<Integer, CancelToken> commands = new ConcurrentHashMap<>();
+        private int port;
+
+        Terminator(int port) {
+            this.port = port;
+        }
+
+        public void run() {
+            init();
+            listen();
+        }
+
+        private void init() {
+
+            running = true;
+
+            // CREATE SERVER
+            try {
+                server = new ServerSocket(port);
+            } catch (IOException e) {
+                System.out.println("FTP Server Error: Error creating terminator socket.");
+                System.exit(0);
+            } catch (SecurityException e) {
+                System.out.println("FTP Server Error: (Security Exception) checkListen() failed in terminator socket.");
+                System.exit(0);
+            } catch (IllegalArgumentException e) {
+                System.out.println("FTP Server Error: Terminator Port " + port + " is outside valid range.");
+                System.exit(0);
+            }
+        }
+
+        // Every terminate connection is read on its own thread, a slow client does not hold up the others
+        private void listen() {
+
+            while (running) {
+
+                // ACCEPT CONNECTION
+                Socket socket;
+                try {
+                    socket = server.accept();
+                } catch (IOException e) {
+                    System.out.println("Error connecting to client... Restarting.");
+                    continue;
+                } catch (SecurityException e) {
+                    System.out.println("Security Exception: Cannot accept incoming connection.");
+                    System.exit(0);
+                    return;
+                }
+
+                threads.newThread(() -> terminateCommand(socket)).start();
+            }
+        }
+
+        private void terminateCommand(Socket socket) {
+            String input;
+            int commandId = -1;
+
+            try (Socket closing = socket) {
+                input = new DataInputStream(closing.getInputStream()).readUTF();
+                commandId = Integer.parseInt(input);
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid command id");
+                return;
+            }
+
+            if (commandId < 0) {
+                System.out.println("Invalid command id");
+                return;
+            }
+
+            if (!cancel(commandId)) {
+                System.out.println("No active command associated with id " + commandId);
+            }
+        }
+
+        private CancelToken addCommand(int commandId) {
+            CancelToken command = new CancelToken(commandId);
+            commands.put(commandId, command);
+            return command;
+        }
+
+        private void removeCommand(CancelToken command) {
+            commands.remove(command.commandId, command);
+        }
+
+        // Returns false if no command with this id is active
+        private boolean cancel(int commandId) {
+            CancelToken command = commands.get(commandId);
+            if (command == null) return false;
+            command.cancel();
+            return true;
+        }
+
+        private void printStatus() {
+            System.out.println("\t> # Active Commands\t" + commands.size());
+        }
+    }
+
+    /* One running command, checked by its transfer loop before every packet.
+     *      Tokens are never reused, so a terminate that arrives after its command ended can not reach the
+     *      next command of the same client. The flag is volatile, checking it takes no lock.
+     */
+    private static final class CancelToken {
+
+        final int commandId;
+        private volatile boolean cancelled;
+
+        CancelToken(int commandId) {
+            this.commandId = commandId;
+        }
+
+        void cancel() {
+            cancelled = true;
+        }
+
+        boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+
+    /* ============================================= */
+    /* ===                                       === */
+    /* ===             NIO REACTOR               === */
+    /* ===                                       === */
+    /* ============================================= */
+
+    /* Non-blocking server core used by the "nio" server mode.
+     *      The reactor accepts connections and deals them out round-robin to a fixed group of event
+     *      loops. Every connection is a Session, a state machine driven by selector events rather than
+     *      a thread blocked in readUTF(), so the thread count stays flat however many clients (and
+     *      background "&" connections) are open.
+     */
+    private class Reactor extends Thread {
+
+        private int port;
+        private ServerSocketChannel server;
+        private EventLoop[] loops;
+
+        Reactor(int port, int numLoops) {
+            super();
+            this.port = port;
+            this.loops = new EventLoop[Math.max(1, numLoops)];
+        }
+
+        public void run() {
+            init();
+            listen();
+        }
+
+        private void init() {
+
+            // START EVENT LOOPS
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop();
+                loops[i].start();
+            }
+
+            // CREATE SERVER
+            try {
+                server = ServerSocketChannel.open();
+                server.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+            } catch (IOException e) {
+                System.out.println("FTP Server Error: Error creating socket.");
+                System.exit(0);
+            } catch (SecurityException e) {
+                System.out.println("FTP Server Error: (Security Exception) checkListen() failed.");
+                System.exit(0);
+            } catch (IllegalArgumentException e) {
+                System.out.println("FTP Server Error: Normal_Port " + port + " is outside valid range.");
+                System.exit(0);
+            }
+        }
+
+        private void listen() {
+
+            int handlerId = 0;
+
+            System.out.println("Waiting for clients ...");
+
+            while (true) {
+
+                // ACCEPT CONNECTION
+                SocketChannel channel;
+                try {
+                    channel = server.accept();
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+                    // The handshake is sent while the channel is still blocking
+                    ByteBuffer handshake = ByteBuffer.allocate(4);
+                    handshake.putInt(handlerId).flip();
+                    while (handshake.hasRemaining()) channel.write(handshake);
+
+                    channel.configureBlocking(false);
+                } catch (IOException e) {
+                    System.out.println("FTP Server Error: Error connecting to client... Restarting.");
+                    continue;
+                } catch (SecurityException e) {
+                    System.out.println("FTP Server Error: (Security Exception) Cannot accept incoming connection.");
+                    System.exit(0);
+                    return;
+                }
+
+                // Hand the session to an event loop
+                metrics.accepted.increment();
+                Session session = new Session(channel, handlerId);
+                clients.put(handlerId, session);
+                loops[handlerId % loops.length].register(session);
+                handlerId ++;
+            }
+        }
+    }
+
+    private class EventLoop extends Thread {
+
+        private Selector selector;
+        private Queue<Session> pending;
+
+        EventLoop() {
+            super();
+            pending = new ConcurrentLinkedQueue<>();
+            try {
+                selector = Selector.open();
+            } catch (IOException e) {
+                System.out.println("FTP Server Error: Error creating event loop selector.");
+                System.exit(0);
+            }
+        }
+
+        public void run() {
+
+            while (true) {
+
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    System.out.println("FTP Server Error: Event loop selector failed.");
+                    return;
+                }
+
+                // Register sessions handed over by the reactor
+                Session session;
+                while ((session = pending.poll()) != null) {
+                    session.register(selector);
+                }
+
+                // Drive every session that is ready
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    ((Session) key.attachment()).handle();
+                }
+            }
+        }
+
+        private void register(Session session) {
+            pending.add(session);
+            selector.wakeup();
+        }
+    }
+
+    private enum SessionState { COMMAND, PUT_SIZE, PUT_FRAME, PUT_DATA, GET_DATA, LIST_DATA }
+
+    /* ============================================= */
+    /* ===                                       === */
+    /* ===            NIO SESSION                === */
+    /* ===                                       === */
+    /* ============================================= */
+
+    /* Per-connection state machine for the "nio" server mode.
+     *      Speaks exactly the same protocol as Client. Incoming bytes are parsed out of the read buffer
+     *      as far as they go, replies are queued and written as the socket becomes writable, and a get
+     *      sends its next packet (an ls its next batch) each time the previous one has left the buffer.
+     */
+    private class Session implements Handler {
+
+        private SocketChannel channel;
+        private SelectionKey key;
+        private ByteBuffer in;
+        private Deque<ByteBuffer> out;
+        private SessionState state;
+        private volatile Path curDir;
+        private volatile CancelToken activeCommand;
+        private volatile boolean running;
+        private int id;
+        private int version;
+        private boolean framed;
+        private final Traffic traffic = new Traffic(metrics.total);
+
+        // Command being run, for its latency
+        private String commandName;
+        private long commandStart;
+
+        // Active transfer
+        private int commandId;
+        private FileChannel file;
+        private FileSource source;
+        private Path filePath;
+        private Path tempPath;
+        private long filePosition;
+        private long fileRemaining;
+        private long packetRemaining;
+        private boolean transferFailed;
+
+        // Active listing
+        private Listing listing;
+        private boolean listBatched;
+        private boolean listSent;
+
+        // Active windowed put
+        private boolean windowed;
+        private boolean draining;
+        private long received;
+        private long acknowledged;
+
+        Session(SocketChannel channel, int id) {
+            this.channel = channel;
+            this.id = id;
+            this.in = ByteBuffer.allocate(NIO_BUFFER_SIZE);
+            this.out = new ArrayDeque<>();
+            this.state = SessionState.COMMAND;
+            this.running = true;
+            this.version = myftpprotocol.VERSION_LEGACY;
+
+            // Clients must begin in the server's current directory
+            this.curDir = Paths.get("").toAbsolutePath();
+        }
+
+        private void register(Selector selector) {
+            try {
+                key = channel.register(selector, SelectionKey.OP_READ, this);
+            } catch (IOException e) {
+                cleanExit();
+            }
+        }
+
+        /* ========================= */
+        /* ===      handle       === */
+        /* ========================= */
+
+        private void handle() {
+            try {
+                if (key.isValid() && key.isReadable()) {
+                    int read = channel.read(in);
+                    if (read < 0) {
+                        cleanExit();
+                        return;
+                    }
+                    traffic.received(read);
+                    process();
+                }
+                flush();
+
+                // Commands pipelined behind a download were read with it, no read event brings them again
+                int buffered;
+                while (state == SessionState.COMMAND && running && (buffered = in.position()) > 0) {
+                    process();
+                    flush();
+                    if (in.position() == buffered) break;
+                }
+
+                if (!running && state == SessionState.COMMAND && out.isEmpty()) {
+                    cleanExit();
+                    return;
+                }
+                updateInterest();
+
+            } catch (IOException e) {
+                System.out.println("\n*** Connection broken with client ***");
+                cleanExit();
+            } catch (RuntimeException e) {
+                // A malformed command only costs this session, never the whole event loop
+                e.printStackTrace();
+                cleanExit();
+            }
+        }
+
+        // Consumes as much of the read buffer as the current state allows
+        private void process() throws IOException {
+            in.flip();
+            boolean progress = true;
+            while (progress && running) {
+                switch (state) {
+                    case COMMAND:
+                        progress = readCommand();
+                        break;
+                    case PUT_SIZE:
+                        progress = readPutSize();
+                        break;
+                    case PUT_FRAME:
+                        progress = readPutFrame();
+                        break;
+                    case PUT_DATA:
+                        progress = readPutData();
+                        break;
+                    default:
+                        // Clients stay quiet while a download is in progress
+                        progress = false;
+                        break;
+                }
+            }
+            in.compact();
+        }
+
+        // Writes queued replies and, during a get or ls, the packets or batches behind them
+        private void flush() throws IOException {
+            while (true) {
+                while (!out.isEmpty()) {
+                    ByteBuffer head = out.peek();
+                    traffic.sent(channel.write(head));
+                    if (head.hasRemaining()) return;
+                    out.poll();
+                }
+
+                if (state == SessionState.LIST_DATA) {
+                    nextListBatch();
+                    continue;
+                }
+                if (state != SessionState.GET_DATA) return;
+
+                if (packetRemaining == 0) {
+                    nextPacket();
+                    continue;
+                }
+
+                // 5. Send file packet data
+                long sent = source.transferTo(filePosition, packetRemaining, channel);
+                if (sent <= 0) return;
+                traffic.sent(sent);
+                filePosition += sent;
+                packetRemaining -= sent;
+            }
+        }
+
+        private void updateInterest() {
+            if (!key.isValid()) return;
+            boolean sending = state == SessionState.GET_DATA || state == SessionState.LIST_DATA;
+            int ops = sending ? 0 : SelectionKey.OP_READ;
+            if (!out.isEmpty() || sending) ops |= SelectionKey.OP_WRITE;
+            key.interestOps(ops);
+        }
+
+        /* ========================= */
+        /* ===      command      === */
+        /* ========================= */
+
+        private boolean readCommand() throws IOException {
+
+            // Wait for the whole writeUTF frame (2 byte length + data)
+            if (in.remaining() < 2) return false;
+            int length = in.getShort(in.position()) & 0xFFFF;
+            if (in.remaining() < 2 + length) return false;
+
+            byte[] frame = new byte[2 + length];
+            in.get(frame);
+            execute(new DataInputStream(new ByteArrayInputStream(frame)).readUTF());
+            return true;
+        }
+
+        private void execute(String command) throws IOException {
+
+            int commandId = iterateCommandID();
+            String[] args = command.split(" ");
+            commandName = args[0].toLowerCase();
+            commandStart = System.nanoTime();
+
+            // Add to active commands map
+            activeCommand = terminator.addCommand(commandId);
+
+            switch (args[0].toLowerCase()) {
+
+                // Normal Commands
+                case "get":
+                    get(commandId, new myftpprotocol.Arguments(args, "-o", "-l", "-i"));
+                    break;
+                case "put":
+                    if (args.length > 2 && args[1].equals("-w"))
+                        put(commandId, args[2], true);
+                    else
+                        put(commandId, argument(args, 1), false);
+                    break;
+                case "delete":
+                    delete(args[1]);
+                    break;
+                case "ls":
+                    ls(args);
+                    break;
+                case "cd":
+                    cd(args[1]);
+                    break;
+                case "mkdir":
+                    mkdir(args[1]);
+                    break;
+                case "pwd":
+                    reply(OK, curDir.toString() + "\n");
+                    break;
+                case "stat":
+                    stat(argument(args, 1));
+                    break;
+                case "quit":
+                    setRunning(false);
+                    break;
+                case "":
+                    break;
+
+                // Commands for cross-client comm.
+                case "$gwd":
+                    Handler parent = client(argument(args, 1));
+                    if (parent != null) setCurDir(parent.getCurDir());
+                    break;
+                case "$cd":
+                    cdClient(args[1], args[2]);
+                    break;
+                case "$quit":
+                    Handler quitting = client(argument(args, 1));
+                    if (quitting != null) quitting.setRunning(false);
+                    break;
+                case "$":
+                    printStatus(id, commandId);
+                    reply(OK, "");
+                    break;
+                case myftpprotocol.STATS:
+                    String stats = metrics.render();
+                    if (framed) reply(OK, stats);
+                    else for (String piece : utfPieces(stats)) sendUTF(piece);
+                    break;
+                case "$hello":
+                    version = negotiateVersion(args[1]);
+                    framed = clientWantsFraming(version, args);
+                    sendUTF(helloReply(version, false));
+                    break;
+                case myftpprotocol.TERMINATE:
+                    if (cancelCommand(argument(args, 1))) reply(OK, "");
+                    else reply(ERR, "FTP Error: No active command associated with id " + argument(args, 1) + "\n");
+                    break;
+                case myftpprotocol.GLOB:
+                    String names = globNames(curDir, argument(args, 1));
+                    if (names.isEmpty()) reply(ERR, "FTP Error: No files match \"" + argument(args, 1) + "\"\n");
+                    else reply(OK, names);
+                    break;
+
+                // Default
+                default:
+                    reply(ERR, "FTP Error: Invalid command \"" + command + "\"\n");
+                    break;
+            }
+
+            // Transfers stay in the active commands map until their last packet
+            if (state == SessionState.COMMAND) {
+                terminator.removeCommand(activeCommand);
+                metrics.command(commandName, System.nanoTime() - commandStart);
+            }
+        }
+
+        /* ========================= */
+        /* ===        get        === */
+        /* ========================= */
+
+        /* Same socket protocol as Client.get(), packets are sent from flush() */
+        private void get(int commandId, myftpprotocol.Arguments arguments) throws IOException {
+
+            // 1. Send Command ID
+            sendInt(commandId);
+
+            // 2. Check and send file status
+            String filename = arguments.operand(0);
+            boolean ranged = arguments.has("-o") || arguments.has("-l");
+            long offset, length;
+            try {
+                offset = arguments.longValue("-o", 0);
+                length = arguments.longValue("-l", Long.MAX_VALUE);
+            } catch (NumberFormatException e) {
+                filename = null;
+                offset = length = 0;
+            }
+            if (filename == null || offset < 0 || length < 0
+                    || (ranged && version < myftpprotocol.VERSION_64BIT)) {
+                sendInt(ERR);
+                return;
+            }
+            Path path = resolve(filename);
+            try {
+                source = openSource(path, true);
+                if (version < myftpprotocol.VERSION_64BIT && source.size() > Integer.MAX_VALUE) {
+                    closeSource();
+                    throw new IOException("File too large for protocol version " + version);
+                }
+            } catch (IOException e) {
+                sendInt(ERR);
+                return;
+            }
+            long fileSize = source.size();
+            String validator = arguments.value("-i");
+            if (offset > fileSize || (validator != null && !validator.equals(source.validator()))) {
+                closeSource();
+                sendInt(myftpprotocol.ERR_RANGE);
+                return;
+            }
+            sendInt(OK);
+
+            // 3. Send file size
+            fileRemaining = Math.min(length, fileSize - offset);
+            filePosition = offset;
+            packetRemaining = 0;
+            if (version < myftpprotocol.VERSION_64BIT) {
+                sendInt((int) fileSize);
+            } else {
+                boolean modified = arguments.has("-m");
+                ByteBuffer size = ByteBuffer.allocate(8 + (ranged ? 8 : 0) + (modified ? 8 : 0));
+                size.putLong(fileSize);
+                if (ranged) size.putLong(fileRemaining);
+                if (modified) size.putLong(source.modified());
+                size.flip();
+                out.add(size);
+            }
+
+            this.commandId = commandId;
+            state = SessionState.GET_DATA;
+        }
+
+        private void nextPacket() throws IOException {
+
+            // Download complete
+            if (fileRemaining == 0) {
+                finishTransfer();
+                return;
+            }
+
+            // 4. Send packet EOF
+            if (activeCommand.isCancelled()) {
+                sendInt(EOF);
+                finishTransfer();
+                return;
+            }
+
+            // 4. Send packet size
+            int windowSize = (version < myftpprotocol.VERSION_64BIT) ? PACKET_SIZE : GET_WINDOW_SIZE;
+            packetRemaining = Math.min(windowSize, fileRemaining);
+            fileRemaining -= packetRemaining;
+            sendInt((int) packetRemaining);
+        }
+
+        /* ========================= */
+        /* ===        put        === */
+        /* ========================= */
+
+        /* Same socket protocols as Client.put() and Client.putWindowed(). The stop-and-wait protocol
+         * sends one termination status per 1000 byte chunk, the windowed one reads length prefixed
+         * frames and acknowledges every PUT_ACK_INTERVAL bytes.
+         */
+        private void put(int commandId, String fileName, boolean windowed) throws IOException {
+
+            // 1. Send Command ID
+            sendInt(commandId);
+
+            String[] filePath = (fileName == null ? "" : fileName).split("/");
+            this.filePath = resolve(filePath[filePath.length-1]);
+            this.commandId = commandId;
+            this.windowed = windowed;
+            draining = false;
+            received = 0;
+            acknowledged = 0;
+            transferFailed = (fileName == null);
+            state = SessionState.PUT_SIZE;
+        }
+
+        private boolean readPutSize() throws IOException {
+
+            // 2. Receive file size
+            boolean longSize = windowed || version >= myftpprotocol.VERSION_64BIT;
+            if (in.remaining() < (longSize ? 8 : 4)) return false;
+            fileRemaining = longSize ? in.getLong() : in.getInt();
+            packetRemaining = Math.min(PACKET_SIZE, fileRemaining);
+
+            // Uploads land in a hidden file beside the target and replace it once complete
+            if (!transferFailed) {
+                try {
+                    tempPath = partialPath(filePath, commandId);
+                    file = FileChannel.open(tempPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                } catch (IOException e) {
+                    transferFailed = true;
+                }
+            }
+
+            if (windowed) {
+                state = SessionState.PUT_FRAME;
+                return true;
+            }
+
+            state = SessionState.PUT_DATA;
+            if (fileRemaining == 0) finishPut();
+            return true;
+        }
+
+        private boolean readPutFrame() throws IOException {
+
+            // 3. Receive frame length
+            if (in.remaining() < 4) return false;
+            int length = in.getInt();
+            if (length < 0 || length > myftpprotocol.PUT_FRAME_SIZE)
+                throw new IOException("Invalid put frame length " + length);
+
+            // 5. A 0 length frame ends the upload, or acknowledges a cancel
+            if (length == 0) {
+                if (draining) {
+                    transferFailed = true;
+                    finishTransfer();
+                } else {
+                    if (fileRemaining != 0) transferFailed = true;
+                    finishPut();
+                }
+                return true;
+            }
+
+            packetRemaining = length;
+            state = SessionState.PUT_DATA;
+            return true;
+        }
+
+        private boolean readPutData() throws IOException {
+
+            // 3. Receive file packet data
+            if (!in.hasRemaining()) return false;
+            int length = (int) Math.min(in.remaining(), packetRemaining);
+            ByteBuffer data = in.slice();
+            data.limit(length);
+            in.position(in.position() + length);
+            packetRemaining -= length;
+            fileRemaining -= length;
+            received += length;
+
+            if (!transferFailed && !draining) {
+                try {
+                    while (data.hasRemaining()) file.write(data);
+                } catch (IOException e) {
+                    transferFailed = true;
+                }
+            }
+            if (packetRemaining > 0) return true;
+
+            if (windowed) {
+                readPutFrameEnd();
+                return true;
+            }
+
+            // 4. Send termination status (1)
+            if (activeCommand.isCancelled()) {
+                sendInt(ERR);
+                transferFailed = true;
+                finishTransfer();
+                return true;
+            }
+
+            // 4. Send termination status (0)
+            sendInt(OK);
+            if (fileRemaining == 0) {
+                finishPut();
+            } else {
+                packetRemaining = Math.min(PACKET_SIZE, fileRemaining);
             }
+            return true;
         }
 
-        private void listen() {
+        // 4. Send cancel or acknowledgement once a whole frame has been received
+        private void readPutFrameEnd() {
+            state = SessionState.PUT_FRAME;
+            if (draining) return;
+
+            if (activeCommand.isCancelled()) {
+                draining = true;
+                out.add(ByteBuffer.wrap(putMessage(myftpprotocol.PUT_CANCEL, received)));
+            } else if (received - acknowledged >= myftpprotocol.PUT_ACK_INTERVAL) {
+                acknowledged = received;
+                out.add(ByteBuffer.wrap(putMessage(myftpprotocol.PUT_ACK, received)));
+            }
+        }
 
-            while (running) {
+        private void finishPut() throws IOException {
+            if (file != null && !transferFailed) {
+                try {
+                    // Stored whole even with dedup: cutting and hashing the file would stall the event loop
+                    file.close();
+                    PathLock lock = pathLocks.write(filePath);
+                    try {
+                        Files.move(tempPath, filePath, StandardCopyOption.ATOMIC_MOVE);
+                        if (store != null) store.unindex(filePath);
+                        fileCache.invalidate(filePath);
+                        metadata.invalidate(filePath);
+                    } finally {
+                        lock.unlock();
+                    }
+                } catch (IOException e) {
+                    transferFailed = true;
+                }
+            }
+            boolean failed = transferFailed;
+            finishTransfer();
 
-                // ACCEPT CONNECTION
+            // 6. Send download status
+            if (windowed) {
+                out.add(ByteBuffer.wrap(putMessage(failed ? myftpprotocol.PUT_FAILED : myftpprotocol.PUT_DONE, received)));
+            } else {
+                sendInt(failed ? ERR : OK);
+            }
+        }
+
+        // Releases the active transfer, removing a partially uploaded file
+        private void finishTransfer() {
+            closeSource();
+            if (file != null) {
                 try {
-                    socket = server.accept();
+                    file.close();
                 } catch (IOException e) {
-                    System.out.println("Error connecting to client... Restarting.");
-                    continue;
-                } catch (SecurityException e) {
-                    System.out.println("Security Exception: Cannot accept incoming connection.");
-                    System.exit(0);
+                    transferFailed = true;
+                }
+                file = null;
+            }
+            if (tempPath != null) {
+                try {
+                    Files.deleteIfExists(tempPath);
+                } catch (IOException e) {
+                    System.out.println("FTP Server Error: Unable to remove partial upload " + tempPath);
                 }
+                tempPath = null;
+            }
+            listing = null;
+            transferFailed = false;
+            state = SessionState.COMMAND;
+            terminator.removeCommand(activeCommand);
+            metrics.command(commandName, System.nanoTime() - commandStart);
+        }
 
-                // GET SOCKET INPUT/OUTPUT STREAM
+        private void closeSource() {
+            if (source != null) {
                 try {
-                    socket_in = new DataInputStream(socket.getInputStream());
+                    source.close();
                 } catch (IOException e) {
-                    System.out.println("Error creating socket input and output streams... Restarting.");
-                    continue;
+                    // Only read from, nothing is lost
                 }
+                source = null;
+            }
+        }
+
+        /* ========================= */
+        /* ===   other commands  === */
+        /* ========================= */
+
+        private void delete(String filename) throws IOException {
+            Path path = resolve(filename);
+            boolean deleted;
+            PathLock lock = pathLocks.write(path);
+            try {
+                deleted = Files.deleteIfExists(path);
+                if (deleted && store != null) store.unindex(path);
+                fileCache.invalidate(path);
+                metadata.invalidate(path);
+            } finally {
+                lock.unlock();
+            }
 
-                terminateCommand();
+            if (deleted) {
+                reply(OK, "");
+            } else {
+                reply(ERR, "FTP Error: No such file or directory\n");
             }
         }
 
-        private void terminateCommand() {
-            String input;
-            int commandId = -1;
+        /* Same socket protocol as Client.ls(), each batch is formatted by flush() once the last one left */
+        private void ls(String[] cmd_args) throws IOException {
+            myftpprotocol.Arguments arguments = new myftpprotocol.Arguments(cmd_args, "-o", "-n");
+            boolean batched = arguments.has("-b") || framed;
 
+            String error;
             try {
-                input = socket_in.readUTF();
-                commandId = Integer.parseInt(input);
+                listing = Listing.of(curDir, arguments, store);
+                error = null;
+            } catch (IllegalArgumentException e) {
+                error = "FTP Error: " + e.getMessage() + "\n";
             } catch (IOException e) {
-                e.printStackTrace();
-            } catch (NumberFormatException e) {
-                System.out.println("Invalid command id");
+                error = "FTP Error: Unable to list directory\n";
+            }
+
+            // 1. Send status (batched only)
+            if (batched) sendInt(error == null ? OK : ERR);
+            if (error != null) {
+                if (batched) {
+                    out.add(ByteBuffer.wrap(listBatch(error)));
+                    sendInt(0);
+                } else {
+                    sendUTF(error);
+                }
                 return;
             }
 
-            if (commandId < 0) {
-                System.out.println("Invalid command id");
+            listBatched = batched;
+            listSent = false;
+            state = SessionState.LIST_DATA;
+        }
+
+        private void nextListBatch() throws IOException {
+
+            // 2. Send batch
+            String batch = listing.nextBatch();
+            if (batch != null) {
+                if (listBatched) out.add(ByteBuffer.wrap(listBatch(batch)));
+                else sendUTF(batch);
+                listSent = true;
                 return;
             }
 
+            // 3. Send end of listing
+            if (listBatched) sendInt(0);
+            else if (!listSent) sendUTF("");
+            finishTransfer();
+        }
+
+        private void cd(String relativePath) throws IOException {
+            Path path = resolve(relativePath);
+            if (fileExists(path)) {
+                setCurDir(path);
+                reply(OK, "");
+            } else {
+                reply(ERR, "FTP Error: No such file or directory\n");
+            }
+        }
+
+        private void mkdir(String dirname) throws IOException {
+            Path path = resolve(dirname);
+            if (fileExists(path)) {
+                if (framed) reply(ERR, "FTP Error: Directory already exists\n");
+                else sendInt(ERR);
+                return;
+            }
+            if (!framed) sendInt(OK);
             try {
-                socket.close();
+                Files.createDirectory(path);
+                reply(OK, "");
             } catch (IOException e) {
-                e.printStackTrace();
+                reply(ERR, "FTP Error: Unable to create directory\n");
+            }
+            metadata.invalidate(path);
+        }
+
+        private void cdClient(String relativePath, String id) throws IOException {
+
+            Handler parent = client(id);
+            if (parent == null) {
+                reply(ERR, "FTP Error: Unknown client\n");
+                return;
             }
 
-            Client client = map.get(commandId);
-            if (client != null) {
-                client.terminate();
+            Path path = resolve(relativePath);
+            if (fileExists(path)) {
+                parent.setCurDir(path);
+                reply(OK, "");
             } else {
-                System.out.println("No active command associated with id " + commandId);
+                reply(ERR, "FTP Error: No such file or directory\n");
             }
         }
 
-        private void addCommand(int commandId, Client handler) {
-            synchronized (commandMapMutex) {
-                if (handler != null) {
-                    map.put(commandId, handler);
-                }
-            }
+        private void stat(String name) throws IOException {
+            Path path = (name == null) ? null : resolve(name);
+            BasicFileAttributes attributes = (path == null) ? null : logicalAttributes(path, metadata.lookup(path));
+            reply((attributes == null) ? ERR : OK, statLine(name, attributes));
         }
 
-        private void removeCommand(int commandId) {
-            synchronized (commandMapMutex) {
-                if (map.get(commandId) != null) {
-                    map.remove(commandId);
-                }
-            }
+        /* ========================= */
+        /* ===      helpers      === */
+        /* ========================= */
+
+        private void sendInt(int value) {
+            ByteBuffer buffer = ByteBuffer.allocate(4);
+            buffer.putInt(value).flip();
+            out.add(buffer);
         }
 
-        private void printStatus() {
-            synchronized (commandMapMutex) {
-                System.out.println("\t> # Active Commands\t" + map.size());
+        private void sendUTF(String value) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            new DataOutputStream(bytes).writeUTF(value);
+            out.add(ByteBuffer.wrap(bytes.toByteArray()));
+        }
+
+        // Text reply of a command, framed when the client asked for it
+        private void reply(int status, String text) throws IOException {
+            if (framed) out.add(ByteBuffer.wrap(responseFrame(status, text)));
+            else sendUTF(text);
+        }
+
+        private String argument(String[] args, int index) {
+            return (args.length > index) ? args[index] : null;
+        }
+
+        private Path resolve(String filename) {
+            if (filename.charAt(0) == '/')
+                return Paths.get(filename).toAbsolutePath().normalize();
+            return curDir.resolve(filename).toAbsolutePath().normalize();
+        }
+
+        private boolean fileExists(Path filePath) {
+            return metadata.exists(filePath);
+        }
+
+        public Path getCurDir() {
+            return curDir;
+        }
+
+        public void setCurDir(Path dir) {
+            curDir = dir.toAbsolutePath().normalize();
+        }
+
+        public void setRunning(boolean running) {
+            this.running = running;
+        }
+
+        public void terminate() {
+            CancelToken current = activeCommand;
+            if (current != null) current.cancel();
+        }
+
+        public Traffic traffic() {
+            return traffic;
+        }
+
+        private void cleanExit() {
+            clients.remove(id, this);
+            if (state != SessionState.COMMAND) {
+                transferFailed = true;
+                finishTransfer();
+            }
+            if (key != null) key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
             }
         }
     }
 
-
     /* ============================================= */
     /* ===                                       === */
     /* ===            CLIENT THREAD              === */
     /* ===                                       === */
     /* ============================================= */
 
-    private class Client extends Thread implements Runnable {
+    private class Client implements Runnable, Handler {
 
+        private WritableByteChannel channel;
         private Socket socket;
+        private myftpmux.Stream stream;
         private DataInputStream socket_in;
         private DataOutputStream socket_out;
         private Path curDir;
-        private boolean shouldTerminate;
+        private volatile CancelToken activeCommand;
         private boolean running;
         private boolean unique;
         private int id;
+        private int version;
+        private boolean framed;
+        private final Traffic traffic;
 
-        Client(Socket socket, int id) {
-            super();
-            this.socket = socket;
+        Client(SocketChannel channel, int id) {
+            this.channel = channel;
+            this.socket = channel.socket();
             this.id = id;
-            this.shouldTerminate = false;
+            this.version = myftpprotocol.VERSION_LEGACY;
+            this.traffic = new Traffic(metrics.total);
             setRunning(true);
             try {
-                socket_in = new DataInputStream(socket.getInputStream());
-                socket_out = new DataOutputStream(socket.getOutputStream());
+                socket_in = new DataInputStream(new CountingInputStream(socket.getInputStream(), traffic));
+                socket_out = new DataOutputStream(new CountingOutputStream(socket.getOutputStream(), traffic));
             } catch (IOException e) {
                 System.out.println("Error creating socket input and output streams...");
                 setRunning(false);
             }
         }
 
+        // A stream of a multiplexed connection, it works in the same session as the connection it arrived on
+        Client(Client parent, myftpmux.Stream stream) {
+            this.stream = stream;
+            this.channel = Channels.newChannel(stream.output());
+            this.id = parent.id;
+            this.version = parent.version;
+            this.framed = parent.framed;
+            this.traffic = parent.traffic;
+            socket_in = new DataInputStream(new CountingInputStream(stream.input(), traffic));
+            socket_out = new DataOutputStream(new CountingOutputStream(stream.output(), traffic));
+            setRunning(true);
+        }
+
         /* ========================= */
         /* ===        run        === */
         /* ========================= */
@@ -335,18 +2895,33 @@ public class myftpserver {
                     command = socket_in.readUTF();
                     commandId = iterateCommandID();
                     String[] args = command.split(" ");
+                    long start = System.nanoTime();
 
                     // Add to active commands map
-                    terminator.addCommand(commandId, this);
+                    activeCommand = terminator.addCommand(commandId);
 
                     switch (args[0].toLowerCase()) {
 
                         // Normal Commands
                         case "get":
-                            get(args[1]);
+                            myftpprotocol.Arguments getArguments = new myftpprotocol.Arguments(args, "-o", "-l", "-c", "-i");
+                            if (getArguments.has("-r"))
+                                getDirectory(getArguments.operand(0), commandId);
+                            else
+                                get(getArguments, commandId);
                             break;
                         case "put":
-                            put(args[1]);
+                            myftpprotocol.Arguments putArguments = new myftpprotocol.Arguments(args, "-c");
+                            if (putArguments.has("-r"))
+                                putDirectory(putArguments.operand(0), commandId);
+                            else if (putArguments.has("-h") && store != null)
+                                putDeduplicated(putArguments.operand(0), commandId);
+                            else if (putArguments.has("-d"))
+                                putDelta(putArguments.operand(0), commandId);
+                            else if (putArguments.has("-w"))
+                                putWindowed(putArguments.operand(0), putArguments.value("-c"), commandId);
+                            else
+                                put(args[1], commandId);
                             break;
                         case "delete":
                             delete(args[1]);
@@ -363,6 +2938,9 @@ public class myftpserver {
                         case "pwd":
                             pwd();
                             break;
+                        case "stat":
+                            stat(args.length > 1 ? args[1] : null);
+                            break;
                         case "quit":
                             quit();
                             break;
@@ -381,22 +2959,41 @@ public class myftpserver {
                             break;
                         case "$":
                             printStatus();
-                            socket_out.writeUTF("");
+                            reply(OK, "");
+                            break;
+                        case "$hello":
+                            hello(args);
+                            break;
+                        case myftpmux.MUX:
+                            mux();
+                            break;
+                        case myftpprotocol.TERMINATE:
+                            cancel(args.length > 1 ? args[1] : null);
+                            break;
+                        case myftpprotocol.GLOB:
+                            glob(args.length > 1 ? args[1] : null);
+                            break;
+                        case myftpprotocol.STATS:
+                            stats();
                             break;
 
                         // Default
                         default:
-                            socket_out.writeUTF("FTP Error: Invalid command \"" + command + "\"\n");
+                            reply(ERR, "FTP Error: Invalid command \"" + command + "\"\n");
                             break;
                     }
 
                     // Remove from active commands map
-                    terminator.removeCommand(commandId);
+                    terminator.removeCommand(activeCommand);
+                    metrics.command(args[0].toLowerCase(), System.nanoTime() - start);
                 }
             } catch (EOFException e) {
                 //
             } catch (IOException e) {
                 System.out.println("\n*** Connection broken with client ***");
+            } catch (RuntimeException e) {
+                // A malformed command only costs this client, the connection is still cleaned up
+                e.printStackTrace();
             }
             cleanExit();
         }
@@ -406,186 +3003,617 @@ public class myftpserver {
         /* ===        get        === */
         /* ========================= */
 
-        /* Socket Protocol:
-         *          1. Send Command ID
-         *          2. Send file status (Exists or not)
-         *          3. Send file size
-         *   Loop:  4. Send packet size / EOF
-         *          5. Send file packet data
-         *          6. Send download status (after loop)
+        /* Socket Protocol:
+         *          1. Send Command ID
+         *          2. Send file status (Exists or not)
+         *          3. Send file size
+         *   Loop:  4. Send packet size / EOF
+         *          5. Send file packet data
+         *          6. Send download status (after loop)
+         *
+         *      With -o/-l only the requested range is sent, see myftpprotocol for the ranged header.
+         *      With -c the packets are replaced by compressed blocks, see myftpcodec.
+         */
+        private void get(myftpprotocol.Arguments arguments, int commandId) throws IOException {
+
+            // 1. Send Command ID
+            socket_out.writeInt(commandId);
+
+            // 2. Check and send file status (p1)
+            String filename = arguments.operand(0);
+            boolean ranged = arguments.has("-o") || arguments.has("-l");
+            long offset, length;
+            try {
+                offset = arguments.longValue("-o", 0);
+                length = arguments.longValue("-l", Long.MAX_VALUE);
+            } catch (NumberFormatException e) {
+                filename = null;
+                offset = length = 0;
+            }
+            myftpcodec.Codec codec = arguments.has("-c") ? myftpcodec.forName(arguments.value("-c")) : null;
+            if (filename == null || offset < 0 || length < 0
+                    || ((ranged || arguments.has("-c")) && version < myftpprotocol.VERSION_64BIT)
+                    || (arguments.has("-c") && codec == null)) {
+                socket_out.writeInt(ERR);
+                return;
+            }
+
+            // Check for absolute or relative path
+            Path filePath;
+            if (filename.charAt(0) != '/')
+                filename = appendFileNameToCurDir(filename);
+            filePath = getPath(filename);
+
+            // 2. Check and send file status (p2)
+            //      Legacy clients read an int size into a 1000 byte buffer, so they only get what fits
+            FileSource file;
+            try {
+                file = openSource(filePath);
+                if (version < myftpprotocol.VERSION_64BIT && file.size() > Integer.MAX_VALUE) {
+                    file.close();
+                    throw new IOException("File too large for protocol version " + version);
+                }
+            } catch (IOException e) {
+                if (codec != null) codec.close();
+                socket_out.writeInt(ERR);
+                return;
+            }
+
+            try {
+                long fileSize = file.size();
+                String validator = arguments.value("-i");
+                if (offset > fileSize || (validator != null && !validator.equals(file.validator()))) {
+                    socket_out.writeInt(myftpprotocol.ERR_RANGE);
+                    return;
+                }
+                socket_out.writeInt(OK);
+                socket_out.flush();
+
+                // 3. Send file size
+                writeSize(fileSize);
+                long end = offset + Math.min(length, fileSize - offset);
+                if (ranged) socket_out.writeLong(end - offset);
+                if (arguments.has("-m")) socket_out.writeLong(file.modified());
+                if (codec != null) {
+                    sendBlocks(file, offset, end, new myftpcodec.Encoder(codec));
+                    return;
+                }
+                int windowSize = (version < myftpprotocol.VERSION_64BIT) ? PACKET_SIZE : GET_WINDOW_SIZE;
+
+                // For every transfer window...
+                long position = offset;
+                while (position < end) {
+
+                    // Windows are large, so the page cache to socket copy is done by the kernel in few calls
+                    int packetLength = (int) Math.min(windowSize, end - position);
+
+                    // Check termination signal
+                    if (activeCommand.isCancelled()) {
+
+                        // 4. Send packet EOF
+                        socket_out.writeInt(EOF);
+                        return;
+                    }
+
+                    // 4. Send packet size
+                    socket_out.writeInt(packetLength);
+
+                    // 5. Send file packet data (sendfile, or from the cache)
+                    transferFully(file, position, packetLength);
+                    position += packetLength;
+                }
+            } finally {
+                if (codec != null) codec.close();
+                file.close();
+            }
+            socket_out.flush();
+        }
+
+        /* Socket Protocol (compressed get, see myftpcodec):
+         *   Loop:  4. Send block, or a 0 length when terminated
+         */
+        private void sendBlocks(FileSource file, long position, long end, myftpcodec.Encoder encoder)
+                throws IOException {
+            byte[] raw = new byte[myftpcodec.BLOCK_SIZE];
+            byte[] block = new byte[myftpcodec.BLOCK_BUFFER_SIZE];
+            while (position < end) {
+
+                // Check termination signal
+                if (activeCommand.isCancelled()) {
+                    socket_out.writeInt(EOF);
+                    return;
+                }
+
+                int length = (int) Math.min(raw.length, end - position);
+                file.read(position, raw, length);
+                socket_out.write(block, 0, encoder.encode(raw, length, block));
+                position += length;
+            }
+            socket_out.flush();
+        }
+
+
+        /* ========================= */
+        /* ===        put        === */
+        /* ========================= */
+
+        /* Socket Protocol:
+         *          1. Send Command ID
+         *          2. Receive file size
+         *   Loop:  3. Receive file packet data
+         *          4. Send termination status
+         */
+        private void put(String fileName, int commandId) throws IOException {
+
+            // 1. Send Command ID
+            socket_out.writeInt(commandId);
+
+            // Get file name from input
+            String[] filePath = fileName.split("/");
+            Path target = getPath(appendFileNameToCurDir(filePath[filePath.length-1]));
+
+            // Chunks are streamed into a hidden file beside the target, so memory use stays at one
+            // buffer whatever the upload size and the old file stays intact until the upload completes
+            Path partial = partialPath(target, commandId);
+            OutputStream fileOut = openPartial(partial);
+
+            boolean committed = false;
+            try {
+
+                byte[] buffer = new byte[PACKET_SIZE];
+
+                // 2. Receive file size
+                long fileSize = readSize();
+                long downloadSize = 0;
+
+                // While download is incomplete
+                while (downloadSize < fileSize) {
+
+                    // 3. Receive file packet data, the client waits for a status after every chunk
+                    int length = (int) Math.min(PACKET_SIZE, fileSize - downloadSize);
+                    socket_in.readFully(buffer, 0, length);
+                    downloadSize += length;
+
+                    // Write packet to the partial file
+                    if (fileOut != null) {
+                        try {
+                            fileOut.write(buffer, 0, length);
+                        } catch (IOException e) {
+                            fileOut = closeQuietly(fileOut);
+                        }
+                    }
+
+                    // Check termination signal
+                    if (activeCommand.isCancelled()) {
+
+                        // 4. Send termination status (1)
+                        socket_out.writeInt(ERR);
+                        return;
+                    }
+
+                    // 4. Send termination status (0)
+                    socket_out.writeInt(OK);
+                }
+
+                // Move the complete file into place
+                if (fileOut != null) {
+                    committed = commitPartial(fileOut, partial, target);
+                    fileOut = null;
+                }
+
+            } finally {
+
+                // Terminated, failed or broken uploads leave nothing behind
+                if (!committed) {
+                    closeQuietly(fileOut);
+                    Files.deleteIfExists(partial);
+                }
+            }
+
+            // 6. Send download status
+            socket_out.writeInt(committed ? OK : ERR);
+        }
+
+        /* Socket Protocol: see myftpprotocol (windowed put)
+         *      Status is only sent every PUT_ACK_INTERVAL bytes, so the client keeps up to a whole
+         *      window in flight instead of waiting one round trip per chunk. With a codec every frame is a
+         *      compressed block, see myftpcodec.
+         */
+        private void putWindowed(String fileName, String codecName, int commandId) throws IOException {
+
+            // 1. Send Command ID
+            socket_out.writeInt(commandId);
+
+            // Get file name from input
+            String[] filePath = fileName.split("/");
+            Path target = getPath(appendFileNameToCurDir(filePath[filePath.length-1]));
+            Path partial = partialPath(target, commandId);
+            OutputStream fileOut = openPartial(partial);
+
+            // Frames of an unknown codec are read and dropped, the upload fails
+            myftpcodec.Decoder decoder = null;
+            if (codecName != null) {
+                myftpcodec.Codec codec = myftpcodec.forName(codecName);
+                if (codec != null) decoder = new myftpcodec.Decoder(codec);
+                else fileOut = closeQuietly(fileOut);
+            }
+
+            boolean committed = false;
+            try {
+
+                byte[] buffer = new byte[(codecName != null) ? myftpcodec.BLOCK_BUFFER_SIZE : myftpprotocol.PUT_FRAME_SIZE];
+
+                // 2. Receive file size
+                long fileSize = socket_in.readLong();
+                long received = 0;
+                long acknowledged = 0;
+
+                while (true) {
+
+                    // 3. Receive frame, a 0 length frame ends the upload
+                    int length = (decoder != null) ? decoder.read(socket_in, buffer) : readPutFrame(buffer);
+                    if (length == 0) break;
+                    received += length;
+
+                    // Write frame to the partial file
+                    if (fileOut != null) {
+                        try {
+                            fileOut.write(buffer, 0, length);
+                        } catch (IOException e) {
+                            fileOut = closeQuietly(fileOut);
+                        }
+                    }
+
+                    // 4. Send cancel, then skip the frames the client sent before reading it
+                    if (activeCommand.isCancelled()) {
+                        sendPutMessage(myftpprotocol.PUT_CANCEL, received);
+                        while (readPutFrame(buffer) != 0);
+                        return;
+                    }
+
+                    // 4. Send acknowledgement
+                    if (received - acknowledged >= myftpprotocol.PUT_ACK_INTERVAL) {
+                        sendPutMessage(myftpprotocol.PUT_ACK, received);
+                        acknowledged = received;
+                    }
+                }
+
+                // Move the complete file into place
+                if (fileOut != null && received == fileSize) {
+                    committed = commitPartial(fileOut, partial, target);
+                    fileOut = null;
+                }
+
+                // 6. Send upload status
+                sendPutMessage(committed ? myftpprotocol.PUT_DONE : myftpprotocol.PUT_FAILED, received);
+
+            } finally {
+                if (decoder != null) decoder.close();
+
+                // Terminated, failed or broken uploads leave nothing behind
+                if (!committed) {
+                    closeQuietly(fileOut);
+                    Files.deleteIfExists(partial);
+                }
+            }
+        }
+
+
+        /* Socket Protocol: see myftpprotocol (deduplicated put)
+         *      Only chunks the store does not have yet are asked for, each one only once even if the file
+         *      repeats it. The manifest is written from the client's chunk list once every chunk arrived
+         *      and matched its hash.
          */
-        private void get(String filename) throws IOException {
+        private void putDeduplicated(String fileName, int commandId) throws IOException {
 
             // 1. Send Command ID
             socket_out.writeInt(commandId);
 
-            // 2. Check and send file status (p1)
-            if (filename == null) {
-                socket_out.writeInt(ERR);
-                return;
+            // Get file name from input
+            String[] filePath = fileName.split("/");
+            Path target = getPath(appendFileNameToCurDir(filePath[filePath.length-1]));
+            Path partial = partialPath(target, commandId);
+
+            // 2. Receive file size and chunk list
+            long fileSize = socket_in.readLong();
+            int count = socket_in.readInt();
+            if (count < 0 || count > myftpchunk.CHUNKS_MAX || count > fileSize / myftpchunk.CHUNK_MIN + 1)
+                throw new IOException("Invalid chunk count " + count);
+            long entriesSize = (long) count * (4 + myftpchunk.HASH_SIZE);
+            byte[] entries = new byte[(int) entriesSize];
+            socket_in.readFully(entries);
+            Manifest manifest = Manifest.read(fileSize, count, ByteBuffer.wrap(entries));
+
+            // 3. Send the indexes of the chunks the store is missing
+            List<Integer> missing = new ArrayList<>();
+            Set<String> requested = new HashSet<>();
+            for (int i = 0; i < count; i++) {
+                byte[] hash = manifest.hashes[i];
+                if (!store.contains(hash) && requested.add(myftpchunk.hex(hash))) missing.add(i);
             }
+            ByteBuffer indexes = ByteBuffer.allocate(4 + 4 * missing.size()).putInt(missing.size());
+            for (int index : missing) indexes.putInt(index);
+            socket_out.write(indexes.array());
 
-            // Check for absolute or relative path
-            Path filePath;
-            if (filename.charAt(0) != '/')
-                filename = appendFileNameToCurDir(filename);
-            filePath = getPath(filename);
+            boolean committed = false;
+            try {
 
-            // 2. Check and send file status (p2)
-            if (!fileExists(filePath)) {
-                socket_out.writeInt(ERR);
-                return;
-            } else {
-                socket_out.writeInt(OK);
-            }
-            socket_out.flush();
+                // 4. Receive the missing chunks, each has to match its hash
+                MessageDigest digest = myftpchunk.hashDigest();
+                byte[] buffer = new byte[myftpchunk.CHUNK_MAX];
+                boolean failed = false;
+                int next = 0;
+                while (true) {
+                    int length = readPutFrame(buffer);
+                    if (length == 0) break;
+                    if (next >= missing.size()) throw new IOException("Unexpected chunk");
+
+                    int chunk = missing.get(next++);
+                    digest.update(buffer, 0, length);
+                    if (!failed && length == manifest.length(chunk)
+                            && MessageDigest.isEqual(digest.digest(), manifest.hashes[chunk])) {
+                        try {
+                            store.store(manifest.hashes[chunk], buffer, length);
+                        } catch (IOException e) {
+                            failed = true;
+                        }
+                    } else {
+                        digest.reset();
+                        failed = true;
+                    }
 
-            // Load file
-            byte[] byteArr;
-            synchronized (fileSystemMutex) {
-                byteArr = Files.readAllBytes(filePath);
-            }
+                    // 4. Send cancel, then skip the chunks the client sent before reading it
+                    if (activeCommand.isCancelled()) {
+                        sendPutMessage(myftpprotocol.PUT_CANCEL, manifest.offsets[chunk + 1]);
+                        while (readPutFrame(buffer) != 0);
+                        return;
+                    }
+                }
 
-            // Set file data
-            int packetSize = 1000;
-            int remainder = byteArr.length % packetSize;
-            int numPackets = byteArr.length / packetSize;
+                // Write the manifest and move it into place
+                if (!failed && next == missing.size()) {
+                    try {
+                        store.writeManifest(partial, fileSize, count, entries);
+                        committed = movePartial(partial, target);
+                    } catch (IOException e) {
+                        committed = false;
+                    }
+                }
 
-            // Add extra iteration to send remaining data
-            if (remainder != 0) numPackets++;
+                // 6. Send upload status
+                sendPutMessage(committed ? myftpprotocol.PUT_DONE : myftpprotocol.PUT_FAILED, fileSize);
 
-            // 3. Send file size
-            socket_out.writeInt(byteArr.length);
+            } finally {
+                if (!committed) Files.deleteIfExists(partial);
+            }
+        }
 
-            // For every packet...
-            for (int i = 0; i < numPackets; i++) {
+        /* Socket Protocol: see myftpprotocol (delta put)
+         *      Copies are read from the old file as it was opened for the signature, so an upload that
+         *      replaces it in the meantime does not change the blocks the client matched against.
+         */
+        private void putDelta(String fileName, int commandId) throws IOException {
 
-                // Get the current packet's offset in the byte array
-                int offset = i * packetSize;
+            // 1. Send Command ID
+            socket_out.writeInt(commandId);
 
-                // Get the current packet's length in the byte array
-                int length = packetSize;
+            // Get file name from input
+            String[] filePath = fileName.split("/");
+            Path target = getPath(appendFileNameToCurDir(filePath[filePath.length-1]));
+            Path partial = partialPath(target, commandId);
 
-                // If we're dealing with a partial packet, set it to the remainder
-                if (i == numPackets - 1 && remainder != 0) length = remainder;
+            // Without an old copy every byte arrives as a literal
+            FileSource basis = null;
+            try {
+                basis = openSource(target);
+            } catch (IOException e) {
+                // No old copy
+            }
+            OutputStream fileOut = openPartial(partial);
 
-                // Check termination signal
-                synchronized (clientTerminateMutex) {
+            boolean committed = false;
+            try {
 
-                    // System.out.println("(" + i + ") ShouldTerminate: " + shouldTerminate);
+                // 2. Send signature
+                long basisSize = (basis != null) ? basis.size() : 0;
+                int blockSize = myftpdelta.blockSize(basisSize);
+                int blockCount = myftpdelta.blockCount(basisSize, blockSize);
+                byte[] buffer = new byte[Math.max(myftpdelta.BLOCK_MAX, myftpdelta.LITERAL_MAX)];
+                myftpdelta.Signer signer = new myftpdelta.Signer(socket_out, blockSize, basisSize);
+                for (int block = 0; block < blockCount; block++) {
+                    int length = (int) Math.min(blockSize, basisSize - (long) block * blockSize);
+                    basis.read((long) block * blockSize, buffer, length);
+                    signer.add(buffer, length);
+                }
+                signer.finish();
+
+                // 3. Receive ops and rebuild the file
+                MessageDigest digest = myftpdelta.strongDigest();
+                byte[] header = new byte[myftpdelta.OP_HEADER_SIZE];
+                long received = 0;
+                while (true) {
+                    socket_in.readFully(header);
+                    ByteBuffer op = ByteBuffer.wrap(header);
+                    byte type = op.get();
+                    int first = op.getInt();
+                    int second = op.getInt();
+                    if (type == myftpdelta.OP_END) break;
+
+                    if (type == myftpdelta.OP_LITERAL && first > 0 && first <= myftpdelta.LITERAL_MAX) {
+                        socket_in.readFully(buffer, 0, first);
+                        fileOut = writeDelta(fileOut, digest, buffer, first);
+                        received += first;
+                    } else if (type == myftpdelta.OP_COPY && first >= 0 && second > 0 && second <= blockCount - first) {
+                        for (int block = first; block < first + second; block++) {
+                            int length = (int) Math.min(blockSize, basisSize - (long) block * blockSize);
+                            basis.read((long) block * blockSize, buffer, length);
+                            fileOut = writeDelta(fileOut, digest, buffer, length);
+                            received += length;
+                        }
+                    } else {
+                        throw new IOException("Invalid delta op " + type);
+                    }
 
-                    // 4. Send packet EOF
-                    if (shouldTerminate) {
-                        socket_out.writeInt(EOF);
-                        shouldTerminate = false;
+                    // 4. Send cancel, then skip the ops the client sent before reading it
+                    if (activeCommand.isCancelled()) {
+                        sendPutMessage(myftpprotocol.PUT_CANCEL, received);
+                        skipDelta(header, buffer);
                         return;
-
-                    // 4. Send packet size
-                    } else {
-                        socket_out.writeInt(length);
                     }
                 }
 
-                // 5. Send file packet data
-                socket_out.write(byteArr, offset, length);
+                // 5. Receive the MD5 of the new file, move the rebuilt file into place if it matches
+                byte[] expected = new byte[myftpdelta.STRONG_SIZE];
+                socket_in.readFully(expected);
+                if (fileOut != null && MessageDigest.isEqual(expected, digest.digest())) {
+                    committed = commitPartial(fileOut, partial, target);
+                    fileOut = null;
+                }
+
+                // 6. Send upload status
+                sendPutMessage(committed ? myftpprotocol.PUT_DONE : myftpprotocol.PUT_FAILED, received);
+
+            } finally {
+                if (basis != null) basis.close();
 
-                // Debug: Sleep
-                // try {
-                //     Thread.sleep(34);
-                // } catch (InterruptedException e) {
-                //     System.out.print("");
-                // }
+                // Terminated, failed or broken uploads leave nothing behind
+                if (!committed) {
+                    closeQuietly(fileOut);
+                    Files.deleteIfExists(partial);
+                }
             }
-            socket_out.flush();
         }
 
+        // Reads ops up to and including the end op and its MD5
+        private void skipDelta(byte[] header, byte[] buffer) throws IOException {
+            while (true) {
+                socket_in.readFully(header);
+                byte type = header[0];
+                if (type == myftpdelta.OP_END) break;
+                int length = ByteBuffer.wrap(header, 1, 4).getInt();
+                if (type == myftpdelta.OP_LITERAL) {
+                    if (length <= 0 || length > buffer.length) throw new IOException("Invalid delta op " + type);
+                    socket_in.readFully(buffer, 0, length);
+                }
+            }
+            socket_in.readFully(buffer, 0, myftpdelta.STRONG_SIZE);
+        }
+
+        // Writes rebuilt data to the partial file, returns null once writing failed
+        private OutputStream writeDelta(OutputStream fileOut, MessageDigest digest, byte[] data, int length) {
+            digest.update(data, 0, length);
+            if (fileOut == null) return null;
+            try {
+                fileOut.write(data, 0, length);
+                return fileOut;
+            } catch (IOException e) {
+                return closeQuietly(fileOut);
+            }
+        }
 
         /* ========================= */
-        /* ===        put        === */
+        /* ===  get -r / put -r  === */
         /* ========================= */
 
-        /* Socket Protocol:
-         *          1. Send Command ID
-         *          2. Receive file size
-         *   Loop:  3. Receive file packet data
-         *          4. Send termination status
+        /* Socket Protocol: see myftpprotocol (directories)
+         *      The tree is walked and read on a thread of its own while this one sends, see myftparchive.
+         *      Uploads in progress and the chunk store are left out.
          */
-        private void put(String fileName) throws IOException {
+        private void getDirectory(String dirname, int commandId) throws IOException {
 
             // 1. Send Command ID
             socket_out.writeInt(commandId);
 
-            int downloadStatus = 0;
-            try {
-
-                // Initialize file data structures
-                ByteArrayOutputStream fileOut = new ByteArrayOutputStream();
-                byte[] buffer = new byte[1000];
-                int bufSize;
+            // 2. Send directory status
+            Path dir = (dirname == null) ? null : getPath(getAbsolutePath(dirname)).normalize();
+            if (dir == null || version < myftpprotocol.VERSION_64BIT || !Files.isDirectory(dir)) {
+                socket_out.writeInt(ERR);
+                return;
+            }
+            socket_out.writeInt(OK);
 
-                // 2. Receive file size
-                int fileSize = socket_in.readInt();
-                int downloadSize = 0;
+            // 3. Send the tree, stop with an abort record when terminated
+            myftparchive.Writer writer = new myftparchive.Writer(dir, myftpserver.this::isInternal,
+                    file -> new SourceStream(openSource(file)), threads);
+            CancelToken command = activeCommand;
+            writer.send(socket_out, command::isCancelled);
+        }
 
-                // System.out.println("fileSize: " + fileSize);
+        /* Socket Protocol: see myftpprotocol (directories)
+         *      Every file is written to a hidden file beside its target and moved into place once it is
+         *      complete, like a put. The tree is created under the current directory, by the last name
+         *      of the client's directory.
+         */
+        private void putDirectory(String dirname, int commandId) throws IOException {
 
-                // While download is incomplete
-                while (downloadSize < fileSize) {
+            // 1. Send Command ID
+            socket_out.writeInt(commandId);
 
-                    // 4. Receive file packet data
-                    bufSize = socket_in.read(buffer, 0, buffer.length);
+            // A name that does not stay in the current directory gets the tree read and dropped
+            String[] dirPath = (dirname == null) ? new String[] {""} : dirname.split("/");
+            String name = (dirPath.length > 0) ? dirPath[dirPath.length - 1] : "";
+            boolean valid = !name.isEmpty() && !name.equals(".") && !name.equals("..");
+            Path root = getPath(appendFileNameToCurDir(valid ? name : "")).normalize();
 
-                    // Write packet to byte array
-                    fileOut.write(buffer, 0, bufSize);
-                    downloadSize += bufSize;
+            myftparchive.Reader reader = new myftparchive.Reader(root, new DirectorySink(commandId));
+            if (!valid) reader.discard();
 
-                    // Check termination signal
-                    synchronized (clientTerminateMutex) {
+            // 2. Receive the tree, 3. send cancel and skip the rest of it when terminated
+            boolean cancelled = false;
+            try {
+                while (reader.next(socket_in)) {
+                    if (!cancelled && activeCommand.isCancelled()) {
+                        sendPutMessage(myftpprotocol.PUT_CANCEL, reader.bytes());
+                        reader.discard();
+                        cancelled = true;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+            if (cancelled) return;
 
-                        // System.out.println("(" + downloadSize + " / " + fileSize + ") ShouldTerminate: " + shouldTerminate);
+            // 4. Send upload status
+            boolean done = valid && reader.complete() && reader.failed() == 0;
+            sendPutMessage(done ? myftpprotocol.PUT_DONE : myftpprotocol.PUT_FAILED, reader.bytes());
+        }
 
-                        // 4. Send termination status (1)
-                        if (shouldTerminate) {
-                            socket_out.writeInt(ERR);
-                            shouldTerminate = false;
-                            return;
-
-                        // 4. Send termination status (0)
-                        } else {
-                            socket_out.writeInt(OK);
-                        }
-                    }
+        /* The files of a put -r, written like the file of a put */
+        private class DirectorySink implements myftparchive.Sink {
 
-                    // Debug: Sleep
-                    // try {
-                    //     Thread.sleep(34);
-                    // } catch (InterruptedException e) {
-                    //     System.out.print("");
-                    // }
-                }
+            private final int commandId;
 
-                // Get file name from input
-                String[] filePath = fileName.split("/");
-                fileName = filePath[filePath.length-1];
-                fileName = appendFileNameToCurDir(fileName);
+            DirectorySink(int commandId) {
+                this.commandId = commandId;
+            }
 
-                // Write file to file system
-                synchronized (fileSystemMutex) {
-                    File file = new File(fileName);
-                    FileOutputStream fos = new FileOutputStream(file);
-                    fileOut.writeTo(fos);
-                    fos.close();
+            public void directory(Path dir) throws IOException {
+                if (!metadata.exists(dir)) {
+                    Files.createDirectories(dir);
+                    metadata.invalidate(dir);
                 }
-                fileOut.close();
+            }
 
-            } catch (IOException e) {
-                downloadStatus = 1;
+            public OutputStream create(Path file) throws IOException {
+                OutputStream out = openPartial(partialPath(file, commandId));
+                if (out == null) throw new IOException("Unable to create " + file);
+                return out;
             }
 
-            // 6. Send download status
-            socket_out.writeInt(downloadStatus);
-        }
+            public void commit(Path file, OutputStream out, FileTime modified) throws IOException {
+                if (!commitPartial(out, partialPath(file, commandId), file, modified))
+                    throw new IOException("Unable to replace " + file);
+            }
 
+            public void discard(Path file, OutputStream out) {
+                closeQuietly(out);
+                try {
+                    Files.deleteIfExists(partialPath(file, commandId));
+                } catch (IOException e) {
+                    // Nothing was written
+                }
+            }
+        }
 
         /* ========================= */
         /* ===       delete      === */
@@ -597,14 +3625,24 @@ public class myftpserver {
             Path delete_path = getPath(absolutePath);
 
             // Delete the file, if possible
-            synchronized (fileSystemMutex) {
+            boolean deleted = false;
+            PathLock lock = pathLocks.write(delete_path);
+            try {
                 File file = new File(delete_path.toString());
                 if (file.exists()) {
-                    file.delete();
-                    socket_out.writeUTF("");
-                } else {
-                    socket_out.writeUTF("FTP Error: No such file or directory\n");
+                    deleted = file.delete();
                 }
+                if (deleted && store != null) store.unindex(delete_path);
+                fileCache.invalidate(delete_path);
+                metadata.invalidate(delete_path);
+            } finally {
+                lock.unlock();
+            }
+
+            if (deleted) {
+                reply(OK, "");
+            } else {
+                reply(ERR, "FTP Error: No such file or directory\n");
             }
         }
 
@@ -613,10 +3651,50 @@ public class myftpserver {
         /* ===         ls        === */
         /* ========================= */
 
+        /* Socket Protocol: see myftpprotocol, batched listing.
+         *      Every batch is flushed as soon as it is formatted.
+         */
         private void ls(String[] cmd_args) throws IOException {
-            if (cmd_args.length > 1)
-                socket_out.writeUTF("FTP Error: \"ls\" command doesn't take any arguments\n");
-            exec("ls " + getCurDirString());
+            myftpprotocol.Arguments arguments = new myftpprotocol.Arguments(cmd_args, "-o", "-n");
+            boolean batched = arguments.has("-b") || framed;
+
+            // 1. Send status (batched only)
+            Listing listing;
+            try {
+                listing = Listing.of(getCurDir(), arguments, store);
+            } catch (IllegalArgumentException | IOException e) {
+                String error = (e instanceof IOException) ? "Unable to list directory" : e.getMessage();
+                sendListBatch(batched, "FTP Error: " + error + "\n", ERR);
+                return;
+            }
+            if (batched) socket_out.writeInt(OK);
+
+            // 2. Send batches
+            String batch;
+            boolean sent = false;
+            while ((batch = listing.nextBatch()) != null) {
+                if (batched) socket_out.write(listBatch(batch));
+                else socket_out.writeUTF(batch);
+                socket_out.flush();
+                sent = true;
+            }
+
+            // 3. Send end of listing
+            if (batched) socket_out.writeInt(0);
+            else if (!sent) socket_out.writeUTF("");
+            socket_out.flush();
+        }
+
+        // A listing that is a single message, used for errors
+        private void sendListBatch(boolean batched, String message, int status) throws IOException {
+            if (batched) {
+                socket_out.writeInt(status);
+                socket_out.write(listBatch(message));
+                socket_out.writeInt(0);
+            } else {
+                socket_out.writeUTF(message);
+            }
+            socket_out.flush();
         }
 
 
@@ -630,9 +3708,9 @@ public class myftpserver {
             Path cd_path = getPath(absolutePath);
             if (fileExists(cd_path)) {
                 setCurDir(cd_path);
-                socket_out.writeUTF("");
+                reply(OK, "");
             } else {
-                socket_out.writeUTF("FTP Error: No such file or directory\n");
+                reply(ERR, "FTP Error: No such file or directory\n");
             }
         }
 
@@ -645,14 +3723,33 @@ public class myftpserver {
             // Get path of directory to make
             String absolutePath = getAbsolutePath(dirname);
             Path cd_path = getPath(absolutePath);
-            if (Files.exists(cd_path)) {
-                socket_out.writeInt(ERR);
+            if (fileExists(cd_path)) {
+                if (framed) reply(ERR, "FTP Error: Directory already exists\n");
+                else socket_out.writeInt(ERR);
                 return;
-            } else {
+            } else if (!framed) {
                 socket_out.writeInt(OK);
             }
-            exec("mkdir " + absolutePath);
-            socket_out.writeUTF("");
+
+            // Created in-process, forking mkdir cost a process per call
+            try {
+                Files.createDirectory(cd_path);
+                reply(OK, "");
+            } catch (IOException e) {
+                reply(ERR, "FTP Error: Unable to create directory\n");
+            }
+            metadata.invalidate(cd_path);
+        }
+
+
+        /* ========================= */
+        /* ===        stat       === */
+        /* ========================= */
+
+        private void stat(String filename) throws IOException {
+            Path path = (filename == null) ? null : getPath(getAbsolutePath(filename));
+            BasicFileAttributes attributes = (path == null) ? null : logicalAttributes(path, metadata.lookup(path));
+            reply((attributes == null) ? ERR : OK, statLine(filename, attributes));
         }
 
 
@@ -661,7 +3758,7 @@ public class myftpserver {
         /* ========================= */
 
         private void pwd() throws IOException {
-            socket_out.writeUTF(getCurDirString() + "\n");
+            reply(OK, getCurDirString() + "\n");
         }
 
 
@@ -679,8 +3776,79 @@ public class myftpserver {
         /* ========================= */
 
         private void gwd(String id) {
-            int clientId = Integer.parseInt(id);
-            setCurDir(clients.get(clientId).getCurDir().toAbsolutePath());
+            Handler parent = client(id);
+            if (parent != null) setCurDir(parent.getCurDir().toAbsolutePath());
+        }
+
+
+        /* ========================= */
+        /* ===      $hello       === */
+        /* ========================= */
+
+        /* Sent by the client right after the handlerId handshake. Clients that never send it, and
+         * servers that do not know it (their reply is an invalid command error), stay on version 1.
+         */
+        private void hello(String[] args) throws IOException {
+            version = negotiateVersion(args[1]);
+            framed = clientWantsFraming(version, args);
+            socket_out.writeUTF(helloReply(version, true));
+        }
+
+
+        /* ========================= */
+        /* ===     $terminate    === */
+        /* ========================= */
+
+        private void cancel(String id) throws IOException {
+            if (cancelCommand(id)) reply(OK, "");
+            else reply(ERR, "FTP Error: No active command associated with id " + id + "\n");
+        }
+
+
+        /* ========================= */
+        /* ===       $glob       === */
+        /* ========================= */
+
+        private void glob(String pattern) throws IOException {
+            String names = globNames(getCurDir(), pattern);
+            if (names.isEmpty()) reply(ERR, "FTP Error: No files match \"" + pattern + "\"\n");
+            else reply(OK, names);
+        }
+
+
+        /* ========================= */
+        /* ===       $stats      === */
+        /* ========================= */
+
+        private void stats() throws IOException {
+            String text = metrics.render();
+            if (framed) {
+                reply(OK, text);
+                return;
+            }
+            for (String piece : utfPieces(text)) socket_out.writeUTF(piece);
+            socket_out.flush();
+        }
+
+        /* ========================= */
+        /* ===        $mux       === */
+        /* ========================= */
+
+        /* Socket Protocol: see myftpprotocol (multiplexing)
+         *      This thread becomes the frame reader of the connection, every stream gets a client thread of its
+         *      own, and commands on streams can be terminated like any other command.
+         */
+        private void mux() throws IOException {
+            socket_out.writeUTF(myftpmux.MUX);
+            socket_out.flush();
+
+            myftpmux mux = new myftpmux(socket);
+            mux.run(stream -> {
+                Client handler = new Client(this, stream);
+                stream.onCancel(handler::terminate);
+                threads.newThread(handler).start();
+            });
+            setRunning(false);
         }
 
 
@@ -690,10 +3858,9 @@ public class myftpserver {
 
         private void cdClient(String relativePath, String id) throws IOException{
 
-            int handlerId;
-            try {
-                handlerId = Integer.parseInt(id);
-            } catch (NumberFormatException e) {
+            Handler parent = client(id);
+            if (parent == null) {
+                reply(ERR, "FTP Error: Unknown client\n");
                 return;
             }
 
@@ -701,11 +3868,11 @@ public class myftpserver {
             Path cd_path = getPath(absolutePath);
             if (fileExists(cd_path)) {
                 Path newPath = cd_path.toAbsolutePath().normalize();
-                clients.get(handlerId).setCurDir(newPath);
+                parent.setCurDir(newPath);
+                reply(OK, "");
             } else {
-                socket_out.writeUTF("FTP Error: No such file or directory\n");
+                reply(ERR, "FTP Error: No such file or directory\n");
             }
-            socket_out.writeUTF("");
         }
 
 
@@ -714,10 +3881,8 @@ public class myftpserver {
         /* ========================= */
 
         private void quitClient(String id) {
-            int handlerId = Integer.parseInt(id);
-            synchronized (clientMapMutex) {
-                clients.get(handlerId).setRunning(false);
-            }
+            Handler parent = client(id);
+            if (parent != null) parent.setRunning(false);
         }
 
         /* ============================================= */
@@ -726,71 +3891,73 @@ public class myftpserver {
         /* ===                                       === */
         /* ============================================= */
 
-        private void exec(String cmd) throws IOException {
-            Process process;
-            process = Runtime.getRuntime().exec(cmd);
-            socket_out.writeUTF(getProcessOutput(process));
+        // Text reply of a command, framed when the client asked for it
+        private void reply(int status, String text) throws IOException {
+            if (framed) socket_out.write(responseFrame(status, text));
+            else socket_out.writeUTF(text);
             socket_out.flush();
         }
 
-        private String getProcessOutput(Process p) throws IOException{
-            BufferedReader br = new BufferedReader(new InputStreamReader(p.getInputStream()));
-            String line, output = "";
-            while ((line = br.readLine()) != null)
-                output += line + "\n";
-            return output;
-        }
-
 //        private void waitForResponse() throws IOException, InterruptedException {
 //            while (socket_in.available() <= 0) {
 //                Thread.sleep(50);
 //            }
 //        }
 
-        private void setRunning(boolean running) {
-            synchronized (clientRunningMutex) {
+        public void setRunning(boolean running) {
+            clientRunningMutex.lock();
+            try {
                 this.running = running;
+            } finally {
+                clientRunningMutex.unlock();
             }
         }
 
         private void setRelativeDir(String dir) {
-            Path path;
-            synchronized (fileSystemMutex) {
-                path = Paths.get(dir).toAbsolutePath();
-            }
-            synchronized (clientDirectoryMutex) {
+            Path path = Paths.get(dir).toAbsolutePath();
+            clientDirectoryMutex.lock();
+            try {
                 curDir = path;
+            } finally {
+                clientDirectoryMutex.unlock();
             }
         }
 
-        private void setCurDir(Path dir) {
-            synchronized (clientDirectoryMutex) {
+        public void setCurDir(Path dir) {
+            clientDirectoryMutex.lock();
+            try {
                 curDir = dir.toAbsolutePath().normalize();
+            } finally {
+                clientDirectoryMutex.unlock();
             }
         }
 
-        private Path getCurDir() {
+        public Path getCurDir() {
             return curDir;
         }
 
         private Path getPath(String path) {
-            synchronized (fileSystemMutex) {
-                return Paths.get(path).toAbsolutePath();
-            }
+            return Paths.get(path).toAbsolutePath();
         }
 
         private String getCurDirString() {
             String curDirString;
-            synchronized (clientDirectoryMutex) {
+            clientDirectoryMutex.lock();
+            try {
                 curDirString = curDir.toString();
+            } finally {
+                clientDirectoryMutex.unlock();
             }
             return curDirString;
         }
 
         private String appendFileNameToCurDir(String filepath) {
             String newFilepath;
-            synchronized (clientDirectoryMutex) {
+            clientDirectoryMutex.lock();
+            try {
                 newFilepath = curDir.toAbsolutePath().toString() + "/" + filepath;
+            } finally {
+                clientDirectoryMutex.unlock();
             }
             return newFilepath;
         }
@@ -802,22 +3969,106 @@ public class myftpserver {
             return absolutePath;
         }
 
-        private boolean fileExists(Path filePath) {
-            boolean exists;
-            synchronized (fileSystemMutex) {
-                exists = Files.exists(filePath);
+        // Opens the hidden file an upload is streamed into, null if it cannot be created
+        private OutputStream openPartial(Path partial) {
+            try {
+                return new BufferedOutputStream(Files.newOutputStream(partial, StandardOpenOption.CREATE_NEW,
+                        StandardOpenOption.WRITE), UPLOAD_BUFFER_SIZE);
+            } catch (IOException e) {
+                // Still read the upload, the failure is reported in the upload status
+                return null;
+            }
+        }
+
+        // Moves a complete upload over its target, as a manifest when the server stores chunks
+        private boolean commitPartial(OutputStream fileOut, Path partial, Path target) {
+            return commitPartial(fileOut, partial, target, null);
+        }
+
+        // The same, with the modification time the file had on the client (null to keep the current time)
+        private boolean commitPartial(OutputStream fileOut, Path partial, Path target, FileTime modified) {
+            try {
+                fileOut.close();
+                if (store != null) store.ingest(partial);
+                if (modified != null) Files.setLastModifiedTime(partial, modified);
+                return movePartial(partial, target);
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        // Moves a finished partial file, upload or manifest, over its target
+        private boolean movePartial(Path partial, Path target) {
+            PathLock lock = pathLocks.write(target);
+            try {
+                if (store != null) store.index(partial, target);
+                Files.move(partial, target, StandardCopyOption.ATOMIC_MOVE);
+                fileCache.invalidate(target);
+                metadata.invalidate(target);
+                return true;
+            } catch (IOException e) {
+                return false;
+            } finally {
+                lock.unlock();
             }
-            return exists;
         }
 
-        private void terminate() {
-            synchronized (clientTerminateMutex) {
-                shouldTerminate = true;
+        // File sizes are 64 bit from protocol version 2 on
+        private void writeSize(long size) throws IOException {
+            if (version < myftpprotocol.VERSION_64BIT) socket_out.writeInt((int) size);
+            else socket_out.writeLong(size);
+        }
+
+        private long readSize() throws IOException {
+            return (version < myftpprotocol.VERSION_64BIT) ? socket_in.readInt() : socket_in.readLong();
+        }
+
+        private int readPutFrame(byte[] buffer) throws IOException {
+            int length = socket_in.readInt();
+            if (length < 0 || length > buffer.length) throw new IOException("Invalid put frame length " + length);
+            socket_in.readFully(buffer, 0, length);
+            return length;
+        }
+
+        private void sendPutMessage(int code, long received) throws IOException {
+            socket_out.write(putMessage(code, received));
+        }
+
+        // Streams a file range straight from the page cache (or the file cache) to the socket
+        private void transferFully(FileSource file, long position, long length) throws IOException {
+            while (length > 0) {
+                long sent = file.transferTo(position, length, channel);
+                if (sent <= 0 && position >= file.size()) throw new EOFException("File truncated during transfer");
+                traffic.sent(sent);
+                position += sent;
+                length -= sent;
             }
         }
 
+        private boolean fileExists(Path filePath) {
+            return metadata.exists(filePath);
+        }
+
+        public void terminate() {
+            CancelToken current = activeCommand;
+            if (current != null) current.cancel();
+        }
+
+        public Traffic traffic() {
+            return traffic;
+        }
+
         private void cleanExit () {
-            clients.remove(id);
+            if (stream != null) {
+                try {
+                    socket_in.close();
+                    socket_out.close();
+                } catch (IOException e) {
+                    // The multiplexed connection is gone
+                }
+                return;
+            }
+            clients.remove(id, this);
             try {
                 socket.close();
                 socket_in.close();
@@ -832,15 +4083,126 @@ public class myftpserver {
         }
 
         private void printStatus() {
-            System.out.println();
-            System.out.println("\t> Current Client Id\t" + id);
-            System.out.println("\t> Current Command Id\t" + commandId);
-            synchronized (clientMapMutex) {
-                System.out.println("\t> # Active clients\t" + clients.size());
+            myftpserver.this.printStatus(id, commandIds.get());
+        }
+    }
+
+    // Reply to stat, one ls -l line answered from the metadata cache
+    private static String statLine(String name, BasicFileAttributes attributes) {
+        if (name == null) return "FTP Error: \"stat\" command requires a file name\n";
+        if (attributes == null) return "FTP Error: No such file or directory\n";
+
+        StringBuilder line = new StringBuilder();
+        Listing.appendAttributes(line, attributes);
+        return line.append(name).append('\n').toString();
+    }
+
+    // Highest protocol version both sides speak
+    private static int negotiateVersion(String clientVersion) {
+        try {
+            return Math.max(myftpprotocol.VERSION_LEGACY,
+                    Math.min(Integer.parseInt(clientVersion), myftpprotocol.VERSION));
+        } catch (NumberFormatException e) {
+            return myftpprotocol.VERSION_LEGACY;
+        }
+    }
+
+    // Agreed version followed by the optional features this server implements for it
+    // Multiplexed streams, compression, delta and deduplicated puts and directory transfers need a thread
+    // per connection, the reactor has one thread for all of its connections and can not block on a stream
+    // or spend its time hashing and compressing
+    private String helloReply(int version, boolean blocking) {
+        String reply = myftpprotocol.HELLO + " " + version;
+        if (version >= myftpprotocol.VERSION_64BIT) {
+            reply += " " + myftpprotocol.FEATURE_RANGE + " " + myftpprotocol.FEATURE_LIST
+                    + " " + myftpprotocol.FEATURE_FRAMED + " " + myftpprotocol.FEATURE_CANCEL
+                    + " " + myftpprotocol.FEATURE_GLOB + " " + myftpprotocol.FEATURE_VALIDATE;
+            if (blocking) reply += " " + myftpprotocol.FEATURE_MUX + " " + myftpcodec.DEFLATE
+                    + " " + myftpprotocol.FEATURE_DELTA + " " + myftpprotocol.FEATURE_ARCHIVE;
+            if (blocking && store != null) reply += " " + myftpprotocol.FEATURE_DEDUP;
+        }
+        return reply;
+    }
+
+    // "$hello <version> [features...]", framing is only used when the client asks for it
+    private static boolean clientWantsFraming(int version, String[] args) {
+        return version >= myftpprotocol.VERSION_64BIT && Arrays.asList(args).contains(myftpprotocol.FEATURE_FRAMED);
+    }
+
+    // Framed text reply: status, the text as one chunk, end of response
+    private static byte[] responseFrame(int status, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(4 + (bytes.length > 0 ? 4 + bytes.length : 0) + 4);
+        frame.putInt(status);
+        if (bytes.length > 0) frame.putInt(bytes.length).put(bytes);
+        return frame.putInt(0).array();
+    }
+
+    // Windowed put server message: code and bytes received so far
+    private static byte[] putMessage(int code, long received) {
+        return ByteBuffer.allocate(myftpprotocol.PUT_MESSAGE_SIZE).putInt(code).putLong(received).array();
+    }
+
+    // Hidden file an upload is written to before it replaces the target
+    private static Path partialPath(Path target, int commandId) {
+        return target.resolveSibling("." + target.getFileName() + "." + commandId + ".part");
+    }
+
+    private static OutputStream closeQuietly(OutputStream out) {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // The partial file is discarded anyway
+            }
+        }
+        return null;
+    }
+
+    // $glob <pattern>: the regular files in dir whose names match, sorted, one per line, empty if none do
+    private static String globNames(Path dir, String pattern) {
+        if (pattern == null) return "";
+        List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir, pattern)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                if (!name.startsWith(".") && Files.isRegularFile(entry)) names.add(name);
             }
-            terminator.printStatus();
-            System.out.println();
+        } catch (IOException | IllegalArgumentException e) {
+            // Unreadable directory or invalid pattern, nothing matches
+            return "";
+        }
+        Collections.sort(names);
+        StringBuilder text = new StringBuilder();
+        for (String name : names) text.append(name).append('\n');
+        return text.toString();
+    }
+
+    // Files a directory transfer leaves out: uploads still in progress and the chunk store
+    private boolean isInternal(Path path) {
+        String name = path.getFileName().toString();
+        return (name.startsWith(".") && name.endsWith(".part")) || (store != null && path.equals(store.dir));
+    }
+
+    // $terminate <command id>, returns false if no command with this id is active
+    private boolean cancelCommand(String id) {
+        try {
+            return id != null && terminator.cancel(Integer.parseInt(id));
+        } catch (NumberFormatException e) {
+            return false;
         }
     }
+
+    private void printStatus(int clientId, int commandId) {
+        System.out.println();
+        System.out.println("\t> Current Client Id\t" + clientId);
+        System.out.println("\t> Current Command Id\t" + commandId);
+        System.out.println("\t> # Active clients\t" + clients.size());
+        terminator.printStatus();
+        fileCache.printStatus();
+        metadata.printStatus();
+        if (store != null) store.printStatus();
+        System.out.println();
+    }
 }
 
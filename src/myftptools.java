@@ -0,0 +1,58 @@
+/* FTP TOOLS:
+ *      Helpers the benchmark (myftpbench) and the load generator (myftpload) share: sizes as they are given on
+ *      the command line, the random files both transfer, and the latency percentiles both report.
+ */
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+final class myftptools {
+
+    private myftptools() {
+    }
+
+    private static final int FILL_BUFFER_SIZE = 1024 * 1024;
+
+    // "64", "64K", "64M" or "64G" bytes
+    static long parseSize(String size) {
+        String digits = size.toUpperCase();
+        long unit = 1;
+        int last = digits.length() - 1;
+        if (last > 0 && "KMG".indexOf(digits.charAt(last)) >= 0) {
+            unit = 1L << (10 * ("KMG".indexOf(digits.charAt(last)) + 1));
+            digits = digits.substring(0, last);
+        }
+        try {
+            long value = Long.parseLong(digits) * unit;
+            if (value < 0) throw new IllegalArgumentException(size);
+            return value;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(size);
+        }
+    }
+
+    // A file of random data of the given size, the same data every time for the same size
+    static void createRandomFile(Path file, String size) throws IOException {
+        Random random = new Random(size.hashCode());
+        byte[] buffer = new byte[FILL_BUFFER_SIZE];
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (long left = parseSize(size); left > 0; left -= buffer.length) {
+                random.nextBytes(buffer);
+                out.write(buffer, 0, (int) Math.min(buffer.length, left));
+            }
+        }
+    }
+
+    // Nearest rank percentile of sorted values, 0 when there are none
+    static long percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0) return 0;
+        int rank = (int) Math.ceil(quantile * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}